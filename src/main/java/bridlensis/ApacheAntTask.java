@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Locale;
 import java.util.Scanner;
 
 import org.apache.tools.ant.BuildException;
@@ -76,6 +77,67 @@ public class ApacheAntTask extends Task {
 		args.setDir(dir);
 	}
 
+	public void setOptimize(boolean optimize) {
+		args.setOptimize(optimize);
+	}
+
+	public void setNativeJumps(boolean nativeJumps) {
+		args.setNativeJumps(nativeJumps);
+	}
+
+	public void setRegisterCalls(boolean registerCalls) {
+		args.setRegisterCalls(registerCalls);
+	}
+
+	public void setAutoInclude(boolean autoInclude) {
+		args.setAutoInclude(autoInclude);
+	}
+
+	public void setPreprocess(boolean preprocess) {
+		args.setPreprocess(preprocess);
+	}
+
+	public void setMinify(boolean minify) {
+		args.setMinify(minify);
+	}
+
+	public void setAmalgamate(boolean amalgamate) {
+		args.setAmalgamate(amalgamate);
+	}
+
+	public void setStdin(boolean stdin) {
+		args.setStdin(stdin);
+	}
+
+	public void setCache(boolean cache) {
+		args.setCache(cache);
+	}
+
+	public void setBuildCache(boolean buildCache) {
+		args.setBuildCache(buildCache);
+	}
+
+	public void setDependencies(boolean dependencies) {
+		args.setDependencies(dependencies);
+	}
+
+	public void setProfile(boolean profile) {
+		args.setProfile(profile);
+	}
+
+	public void setParallel(boolean parallel) {
+		args.setParallel(parallel);
+	}
+
+	public void setExcludeMode(String excludeMode) {
+		try {
+			args.setExcludeMode(Parser.ExcludeMode.valueOf(excludeMode
+					.toUpperCase(Locale.ENGLISH)));
+		} catch (IllegalArgumentException e) {
+			throw new BuildException("Invalid excludemode: " + excludeMode);
+		}
+	}
+
 	public void setFailOnError(boolean failOnError) {
 		this.failOnError = failOnError;
 	}
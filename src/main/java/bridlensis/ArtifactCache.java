@@ -0,0 +1,102 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Local cache of installers built by makensis, keyed by the
+ * {@link BuildFingerprint} of the build. Only the most recently used
+ * installers are kept.
+ */
+class ArtifactCache {
+
+	private static final Logger logger = Logger.getInstance();
+
+	static final int MAX_ENTRIES = 5;
+
+	private final Path dir;
+
+	public ArtifactCache(File dir) {
+		this.dir = dir.toPath();
+	}
+
+	/**
+	 * Copies the installer built with the fingerprint to the given file and
+	 * returns <code>true</code>, or returns <code>false</code> if there is no
+	 * such installer.
+	 */
+	public boolean restore(String fingerprint, File installer)
+			throws IOException {
+		Path entry = dir.resolve(fingerprint);
+		Path cached = entry.resolve(installer.getName());
+		if (!Files.isRegularFile(cached)) {
+			return false;
+		}
+		Files.createDirectories(installer.getAbsoluteFile().getParentFile()
+				.toPath());
+		Files.copy(cached, installer.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.COPY_ATTRIBUTES);
+		touch(entry);
+		logger.debug("Restored installer from " + cached);
+		return true;
+	}
+
+	public void store(String fingerprint, File installer) throws IOException {
+		Path entry = dir.resolve(fingerprint);
+		Files.createDirectories(entry);
+		Path temp = Files.createTempFile(entry, installer.getName(), ".tmp");
+		try {
+			Files.copy(installer.toPath(), temp,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(temp, entry.resolve(installer.getName()),
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		touch(entry);
+		prune();
+	}
+
+	private static void touch(Path entry) {
+		entry.toFile().setLastModified(System.currentTimeMillis());
+	}
+
+	private void prune() throws IOException {
+		List<File> entries = new ArrayList<>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+			for (Path path : paths) {
+				entries.add(path.toFile());
+			}
+		}
+		Collections.sort(entries, new Comparator<File>() {
+
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+
+		});
+		for (File entry : entries.subList(Math.min(MAX_ENTRIES,
+				entries.size()), entries.size())) {
+			logger.debug("Remove cached installer " + entry);
+			File[] files = entry.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					Files.delete(file.toPath());
+				}
+			}
+			Files.delete(entry.toPath());
+		}
+	}
+
+}
@@ -15,6 +15,20 @@ public class BridleNSISArguments {
 	private ArrayList<String> nsisOptions;
 	private ArrayList<String> excludeFiles;
 	private int logLevel;
+	private boolean optimize;
+	private boolean nativeJumps;
+	private boolean registerCalls;
+	private boolean autoInclude;
+	private boolean preprocess;
+	private boolean minify;
+	private boolean amalgamate;
+	private boolean stdin;
+	private boolean cache;
+	private boolean buildCache;
+	private boolean dependencies;
+	private boolean profile;
+	private boolean parallel;
+	private Parser.ExcludeMode excludeMode;
 
 	public BridleNSISArguments() {
 		inputFile = null;
@@ -25,6 +39,20 @@ public class BridleNSISArguments {
 		nsisOptions = new ArrayList<String>();
 		excludeFiles = new ArrayList<String>();
 		logLevel = Logger.INFO;
+		optimize = false;
+		nativeJumps = false;
+		registerCalls = false;
+		autoInclude = false;
+		preprocess = false;
+		minify = false;
+		amalgamate = false;
+		stdin = false;
+		cache = false;
+		buildCache = false;
+		dependencies = false;
+		profile = false;
+		parallel = false;
+		excludeMode = Parser.ExcludeMode.COPY;
 	}
 
 	public File getInputFile() {
@@ -84,7 +112,7 @@ public class BridleNSISArguments {
 	}
 
 	public void addAllExcludes(List<String> filespecs) {
-		excludeFiles.addAll(excludeFiles);
+		excludeFiles.addAll(filespecs);
 	}
 
 	public int getLogLevel() {
@@ -95,4 +123,116 @@ public class BridleNSISArguments {
 		this.logLevel = logLevel;
 	}
 
+	public boolean isOptimize() {
+		return optimize;
+	}
+
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	public boolean isNativeJumps() {
+		return nativeJumps;
+	}
+
+	public void setNativeJumps(boolean nativeJumps) {
+		this.nativeJumps = nativeJumps;
+	}
+
+	public boolean isRegisterCalls() {
+		return registerCalls;
+	}
+
+	public void setRegisterCalls(boolean registerCalls) {
+		this.registerCalls = registerCalls;
+	}
+
+	public boolean isAutoInclude() {
+		return autoInclude;
+	}
+
+	public void setAutoInclude(boolean autoInclude) {
+		this.autoInclude = autoInclude;
+	}
+
+	public boolean isPreprocess() {
+		return preprocess;
+	}
+
+	public void setPreprocess(boolean preprocess) {
+		this.preprocess = preprocess;
+	}
+
+	public boolean isMinify() {
+		return minify;
+	}
+
+	public void setMinify(boolean minify) {
+		this.minify = minify;
+	}
+
+	public boolean isAmalgamate() {
+		return amalgamate;
+	}
+
+	public void setAmalgamate(boolean amalgamate) {
+		this.amalgamate = amalgamate;
+	}
+
+	public boolean isStdin() {
+		return stdin;
+	}
+
+	public void setStdin(boolean stdin) {
+		this.stdin = stdin;
+	}
+
+	public boolean isCache() {
+		return cache;
+	}
+
+	public void setCache(boolean cache) {
+		this.cache = cache;
+	}
+
+	public boolean isBuildCache() {
+		return buildCache;
+	}
+
+	public void setBuildCache(boolean buildCache) {
+		this.buildCache = buildCache;
+	}
+
+	public boolean isDependencies() {
+		return dependencies;
+	}
+
+	public void setDependencies(boolean dependencies) {
+		this.dependencies = dependencies;
+	}
+
+	public boolean isProfile() {
+		return profile;
+	}
+
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public Parser.ExcludeMode getExcludeMode() {
+		return excludeMode;
+	}
+
+	public void setExcludeMode(Parser.ExcludeMode excludeMode) {
+		this.excludeMode = excludeMode;
+	}
+
 }
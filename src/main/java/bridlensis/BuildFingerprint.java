@@ -0,0 +1,194 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Fingerprint of everything makensis reads to build the installer: the
+ * converted scripts, the scripts they include, the payload files of
+ * <code>File</code> and <code>ReserveFile</code> instructions and any other
+ * existing file named in the scripts, e.g. icons and license files. Files
+ * are resolved relative to the makensis work directory.
+ * <p>
+ * The fingerprint is not available if a payload or the installer file name
+ * depends on variables or defines, or the scripts name more than one
+ * installer file.
+ */
+class BuildFingerprint extends PayloadScanner {
+
+	private static final Logger logger = Logger.getInstance();
+
+	private static final Pattern SCRIPT_FILE = Pattern.compile(
+			".*\\.b?ns[hi]", Pattern.CASE_INSENSITIVE);
+	private final Charset charset;
+	private final MessageDigest digest = Hashes.sha256();
+	private final Set<File> files = new HashSet<>();
+	private final Set<String> installers = new HashSet<>();
+	private boolean resolved = true;
+
+	public BuildFingerprint(File workDir, String encoding) {
+		super(workDir);
+		this.charset = Charset.forName(encoding);
+	}
+
+	/**
+	 * Adds a value such as a compiler option or version.
+	 */
+	public void add(String value) {
+		digest.update(value.getBytes(Charset.forName("UTF-8")));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Adds the script and every file it names.
+	 */
+	public void addScript(File script) throws IOException {
+		if (!addFile(script)) {
+			return;
+		}
+		scan(new String(Files.readAllBytes(script.toPath()), charset));
+	}
+
+	@Override
+	protected void installer(String name) {
+		if (isVariable(name)) {
+			unresolved("OutFile " + name);
+		}
+		installers.add(resolve(name).getAbsolutePath());
+	}
+
+	@Override
+	protected void instruction(List<String> words) throws IOException {
+		for (String word : words.subList(1, words.size())) {
+			addNamedFile(word);
+		}
+	}
+
+	private void addNamedFile(String word) throws IOException {
+		if (word.isEmpty() || isVariable(word) || isPattern(word)) {
+			return;
+		}
+		File file = resolve(word);
+		if (!file.isFile()) {
+			return;
+		}
+		if (SCRIPT_FILE.matcher(file.getName()).matches()) {
+			addScript(file);
+		} else {
+			addFile(file);
+		}
+	}
+
+	@Override
+	protected void payload(String name, boolean recursive) throws IOException {
+		if (isVariable(name)) {
+			unresolved("File " + name);
+			return;
+		}
+		File spec = resolve(name);
+		if (spec.isDirectory()) {
+			addFiles(spec.toPath(), "*", true);
+		} else if (recursive || isPattern(name)) {
+			addFiles(spec.getParentFile().toPath(), spec.getName(), recursive);
+		} else {
+			addFile(spec);
+		}
+	}
+
+	private void addFiles(Path dir, String glob, final boolean recursive)
+			throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+				"glob:" + glob);
+		final Path root = dir;
+		final List<File> matches = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) {
+				return recursive || dir.equals(root) ? FileVisitResult.CONTINUE
+						: FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (matcher.matches(file.getFileName())) {
+					matches.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+		Collections.sort(matches);
+		for (File file : matches) {
+			addFile(file);
+		}
+	}
+
+	/**
+	 * Adds the path and content of the file, returns <code>false</code> if
+	 * the file was added before.
+	 */
+	private boolean addFile(File file) throws IOException {
+		file = file.getCanonicalFile();
+		if (!files.add(file)) {
+			return false;
+		}
+		logger.debug("Fingerprint file: " + file.getAbsolutePath());
+		add(file.getAbsolutePath());
+		if (file.isFile()) {
+			digest.update(Files.readAllBytes(file.toPath()));
+		}
+		digest.update((byte) 0);
+		return true;
+	}
+
+	private void unresolved(String instruction) {
+		if (resolved) {
+			logger.info("Unable to fingerprint the build: '" + instruction
+					+ "' depends on variables or defines.");
+		}
+		resolved = false;
+	}
+
+	/**
+	 * Returns the installer file or <code>null</code> if not known.
+	 */
+	public File getInstaller() {
+		if (!resolved || installers.size() != 1) {
+			return null;
+		}
+		return new File(installers.iterator().next());
+	}
+
+	/**
+	 * Returns the fingerprint or <code>null</code> if the build can't be
+	 * fingerprinted. Call only once, after adding everything.
+	 */
+	public String get() {
+		if (getInstaller() == null) {
+			return null;
+		}
+		return Hashes.hex(digest.digest());
+	}
+
+}
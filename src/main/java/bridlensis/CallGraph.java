@@ -0,0 +1,209 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Functions of the script and the functions they call, scanned from the
+ * script and its include files before parsing. Tells the functions which
+ * can pass arguments in variables: those which are neither recursive nor
+ * referenced by name, e.g. with <code>Call</code>,
+ * <code>GetFunctionAddress</code> or as a callback, because then the
+ * caller doesn't know to assign the argument variables.
+ */
+class CallGraph {
+
+	private static final Logger logger = Logger.getInstance();
+
+	private static final Pattern BLOCK_COMMENT = Pattern.compile("/\\*.*?\\*/",
+			Pattern.DOTALL);
+	private static final Pattern INCLUDE = Pattern.compile(
+			"^!include[ \\t]+(?:/\\w+[ \\t]+)*"
+					+ "(?:\"([^\"]+)\"|'([^']+)'|`([^`]+)`|([^\\s;#]+))",
+			Pattern.CASE_INSENSITIVE);
+
+	private final File baseDir;
+	private final String encoding;
+	private final Collection<String> excludeFiles;
+	private final Set<String> scannedFiles = new HashSet<>();
+	private final Map<String, Set<String>> calls = new HashMap<>();
+	private final Set<String> referenced = new HashSet<>();
+	private String function = null;
+	private boolean insideMacro = false;
+
+	public CallGraph(File baseDir, String encoding,
+			Collection<String> excludeFiles) {
+		this.baseDir = baseDir;
+		this.encoding = encoding;
+		this.excludeFiles = excludeFiles;
+	}
+
+	/**
+	 * Scans the file and the include files it follows. Excluded include
+	 * files are scanned as plain NSIS code, where any function is referenced
+	 * by name.
+	 */
+	public void scanFile(File file) throws IOException {
+		scanFile(file, false);
+	}
+
+	private void scanFile(File file, boolean plain) throws IOException {
+		if (!file.isFile() || !scannedFiles.add(file.getCanonicalPath())) {
+			return;
+		}
+		logger.debug("Scan functions: " + file.getAbsolutePath());
+		scan(new String(Files.readAllBytes(file.toPath()),
+				Charset.forName(encoding)), plain);
+	}
+
+	public void scan(String code) throws IOException {
+		scan(code, false);
+	}
+
+	private void scan(String code, boolean plain) throws IOException {
+		String enclosing = function;
+		boolean enclosingMacro = insideMacro;
+		function = null;
+		insideMacro = false;
+		code = NSISStatements.LINE_CONTINUE.matcher(code).replaceAll(" ");
+		code = BLOCK_COMMENT.matcher(code).replaceAll(" ");
+		for (String line : code.split("\\r?\\n")) {
+			scanLine(line.trim(), plain);
+		}
+		function = enclosing;
+		insideMacro = enclosingMacro;
+	}
+
+	private void scanLine(String line, boolean plain) throws IOException {
+		String keyword = line.split("[\\s(;#]", 2)[0].toLowerCase();
+		if (keyword.equals("!include")) {
+			Matcher matcher = INCLUDE.matcher(line);
+			if (matcher.find()) {
+				String name = null;
+				for (int group = 1; name == null; group++) {
+					name = matcher.group(group);
+				}
+				File include = new File(baseDir, name);
+				scanFile(include, plain || excludeFiles.contains(name)
+						|| excludeFiles.contains(include.getAbsolutePath()));
+			}
+			return;
+		} else if (keyword.equals("!macro")) {
+			insideMacro = true;
+		} else if (keyword.equals("!macroend")) {
+			insideMacro = false;
+		} else if (keyword.equals("function") && !plain && !insideMacro) {
+			String name = line.substring(keyword.length()).trim()
+					.split("[\\s(;#]", 2)[0].toLowerCase();
+			if (!calls.containsKey(name)) {
+				calls.put(name, new HashSet<String>());
+			}
+			if (name.startsWith(".") || name.startsWith("un.on")) {
+				// Callback functions are called by the installer
+				referenced.add(name);
+			}
+			function = name;
+			return;
+		} else if (keyword.equals("functionend")) {
+			function = null;
+		}
+		scanWords(line, plain || insideMacro);
+	}
+
+	/**
+	 * Records a call for each word followed by an opening parenthesis in
+	 * BridleNSIS code and a reference by name for other words, except
+	 * variables and comments.
+	 */
+	private void scanWords(String line, boolean plain) {
+		char quote = 0;
+		int i = 0;
+		while (i < line.length()) {
+			char c = line.charAt(i);
+			if (c == '$') {
+				// Variable, constant or escaped character
+				i++;
+				if (i < line.length() && line.charAt(i) == '\\') {
+					i += 2;
+				}
+				while (i < line.length() && isWordChar(line.charAt(i))) {
+					i++;
+				}
+			} else if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+					i++;
+				} else if (isWordChar(c)) {
+					i = scanWord(line, i, true);
+				} else {
+					i++;
+				}
+			} else if (c == '"' || c == '\'' || c == '`') {
+				quote = c;
+				i++;
+			} else if (c == ';' || c == '#') {
+				break;
+			} else if (isWordChar(c)) {
+				i = scanWord(line, i, plain);
+			} else {
+				i++;
+			}
+		}
+	}
+
+	private int scanWord(String line, int begin, boolean plain) {
+		int end = begin;
+		while (end < line.length() && isWordChar(line.charAt(end))) {
+			end++;
+		}
+		String name = line.substring(begin, end).toLowerCase();
+		if (!plain && end < line.length() && line.charAt(end) == '(') {
+			if (function != null) {
+				calls.get(function).add(name);
+			}
+		} else {
+			referenced.add(name);
+		}
+		return end;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+	}
+
+	/**
+	 * Returns <code>true</code> if the function is defined in the scanned
+	 * code, isn't referenced by name and doesn't call itself directly or
+	 * through other functions.
+	 */
+	public boolean isRegisterCallSafe(String name) {
+		String key = name.toLowerCase();
+		return calls.containsKey(key) && !referenced.contains(key)
+				&& !isRecursive(key);
+	}
+
+	private boolean isRecursive(String key) {
+		Set<String> visited = new HashSet<>();
+		LinkedList<String> queue = new LinkedList<>(calls.get(key));
+		while (!queue.isEmpty()) {
+			String callee = queue.removeFirst();
+			if (callee.equals(key)) {
+				return true;
+			} else if (visited.add(callee) && calls.containsKey(callee)) {
+				queue.addAll(calls.get(callee));
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,99 @@
+package bridlensis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Collects the content of an output file in memory and writes it to the file
+ * when closed only if the content differs from the existing file, so that
+ * the modification time of unchanged files is kept. The file is replaced
+ * atomically via a temporary file in the same directory.
+ */
+class ChangedFileOutputStream extends ByteArrayOutputStream {
+
+	private static final Logger logger = Logger.getInstance();
+
+	private final File file;
+	private boolean closed = false;
+	private boolean rewritten = false;
+	private boolean dryRun = false;
+
+	public ChangedFileOutputStream(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Keeps the content in memory only, without writing the file when
+	 * closed.
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Returns <code>true</code> if the file was written when closed.
+	 */
+	public boolean isRewritten() {
+		return rewritten;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (dryRun) {
+			return;
+		} else if (isUnchanged()) {
+			logger.info("Output file unchanged: " + file.getAbsolutePath());
+			return;
+		}
+		Path target = file.toPath();
+		Path temp = Files.createTempFile(target.getParent(), file.getName(),
+				".tmp");
+		try {
+			Files.write(temp, toByteArray());
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		rewritten = true;
+		logger.info("Output file rewritten: " + file.getAbsolutePath());
+	}
+
+	private boolean isUnchanged() throws IOException {
+		if (!file.isFile() || file.length() != size()) {
+			return false;
+		}
+		MessageDigest existing = Hashes.sha256();
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				existing.update(buffer, 0, read);
+			}
+		}
+		MessageDigest content = Hashes.sha256();
+		content.update(buf, 0, count);
+		return Arrays.equals(existing.digest(), content.digest());
+	}
+
+}
@@ -0,0 +1,170 @@
+package bridlensis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bridlensis.env.ComparisonStatement;
+import bridlensis.env.NameGenerator;
+import bridlensis.env.TypeObject;
+
+/**
+ * Lowers a chain of comparison statements (<code>If a And b Or c</code>) to
+ * native NSIS conditional jumps. Like LogicLib, <code>And</code> and
+ * <code>Or</code> are evaluated left to right without precedence and short
+ * circuit as soon as the outcome is known. Setup instructions of a term are
+ * run only when the term is tested.
+ */
+class Condition {
+
+	private static final String LABEL_PREFIX = "cond_";
+	private static final String NEXT = "0";
+
+	private final List<ComparisonStatement> terms;
+	private final NameGenerator nameGenerator;
+
+	public Condition(List<ComparisonStatement> terms,
+			NameGenerator nameGenerator) {
+		this.terms = new ArrayList<>(terms);
+		this.nameGenerator = nameGenerator;
+	}
+
+	private static boolean isAnd(ComparisonStatement term) {
+		return term.getKey().toLowerCase().startsWith("and");
+	}
+
+	private static boolean isOr(ComparisonStatement term) {
+		return term.getKey().toLowerCase().startsWith("or");
+	}
+
+	/**
+	 * Returns instructions that jump to <code>trueLabel</code> when the
+	 * condition holds and to <code>falseLabel</code> otherwise. Either one of
+	 * the labels may be <code>null</code> to continue right after the
+	 * returned instructions.
+	 */
+	public String jumps(String indent, String trueLabel, String falseLabel) {
+		int count = terms.size();
+		String[] labels = new String[count + 1];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (labels[i] != null) {
+				sb.append(NSISStatements.label(indent, labels[i]));
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			String jumpTrue;
+			String jumpFalse;
+			if (i == count - 1) {
+				jumpTrue = trueLabel == null ? NEXT : trueLabel;
+				jumpFalse = falseLabel == null ? NEXT : falseLabel;
+			} else if (isAnd(terms.get(i + 1))) {
+				jumpTrue = NEXT;
+				jumpFalse = targetOf(false, i, labels, falseLabel);
+			} else {
+				jumpTrue = targetOf(true, i, labels, trueLabel);
+				jumpFalse = NEXT;
+			}
+			ComparisonStatement term = terms.get(i);
+			if (term.isNot()) {
+				String swap = jumpTrue;
+				jumpTrue = jumpFalse;
+				jumpFalse = swap;
+			}
+			sb.append(term.getSetup());
+			sb.append(test(indent, term, jumpTrue, jumpFalse));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		if (labels[count] != null) {
+			sb.append(NSISStatements.label(indent, labels[count]));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Outcome of terms up to <code>index</code> is known: skip to the next
+	 * term that could still change it, or to the final target.
+	 */
+	private String targetOf(boolean outcome, int index, String[] labels,
+			String finalLabel) {
+		for (int i = index + 1; i < terms.size(); i++) {
+			if (outcome ? isAnd(terms.get(i)) : isOr(terms.get(i))) {
+				return labelAt(i, labels);
+			}
+		}
+		return finalLabel == null ? labelAt(terms.size(), labels)
+				: finalLabel;
+	}
+
+	private String labelAt(int index, String[] labels) {
+		if (labels[index] == null) {
+			labels[index] = LABEL_PREFIX + nameGenerator.generate();
+		}
+		return labels[index];
+	}
+
+	private static String test(String indent, ComparisonStatement term,
+			String jumpTrue, String jumpFalse) {
+		List<TypeObject> left = new ArrayList<>(term.getLeft());
+		List<TypeObject> right = new ArrayList<>(term.getRight());
+		String compare = term.getCompare();
+		if (compare == null && right.isEmpty() && !left.isEmpty()) {
+			String flag = left.get(0).getValue();
+			if (flag.equalsIgnoreCase("${Errors}") && left.size() == 1) {
+				return NSISStatements.flagTest(indent, "IfErrors", null,
+						jumpTrue, jumpFalse);
+			} else if (flag.equalsIgnoreCase("${Abort}") && left.size() == 1) {
+				return NSISStatements.flagTest(indent, "IfAbort", null,
+						jumpTrue, jumpFalse);
+			} else if (flag.equalsIgnoreCase("${RebootFlag}")
+					&& left.size() == 1) {
+				return NSISStatements.flagTest(indent, "IfRebootFlag", null,
+						jumpTrue, jumpFalse);
+			} else if (flag.equalsIgnoreCase("${Silent}") && left.size() == 1) {
+				return NSISStatements.flagTest(indent, "IfSilent", null,
+						jumpTrue, jumpFalse);
+			} else if (flag.equalsIgnoreCase("${FileExists}")
+					&& left.size() == 2) {
+				return NSISStatements.flagTest(indent, "IfFileExists",
+						left.get(1), jumpTrue, jumpFalse);
+			}
+		} else if (compare != null && left.size() == 1 && right.size() == 1) {
+			TypeObject a = left.get(0);
+			TypeObject b = right.get(0);
+			switch (compare) {
+			case "==":
+				return NSISStatements.strCmp(indent, false, a, b, jumpTrue,
+						jumpFalse);
+			case "!=":
+				return NSISStatements.strCmp(indent, false, a, b, jumpFalse,
+						jumpTrue);
+			case "S==":
+				return NSISStatements.strCmp(indent, true, a, b, jumpTrue,
+						jumpFalse);
+			case "S!=":
+				return NSISStatements.strCmp(indent, true, a, b, jumpFalse,
+						jumpTrue);
+			case "=":
+				return NSISStatements.intCmp(indent, a, b, jumpTrue,
+						jumpFalse, jumpFalse);
+			case "<>":
+				return NSISStatements.intCmp(indent, a, b, jumpFalse,
+						jumpTrue, jumpTrue);
+			case "<":
+				return NSISStatements.intCmp(indent, a, b, jumpFalse,
+						jumpTrue, jumpFalse);
+			case ">":
+				return NSISStatements.intCmp(indent, a, b, jumpFalse,
+						jumpFalse, jumpTrue);
+			case "<=":
+				return NSISStatements.intCmp(indent, a, b, jumpTrue, jumpTrue,
+						jumpFalse);
+			case ">=":
+				return NSISStatements.intCmp(indent, a, b, jumpTrue,
+						jumpFalse, jumpTrue);
+			}
+		}
+		// No native counterpart, let LogicLib evaluate the test
+		return NSISStatements.logicLibJump(indent, term, jumpTrue, jumpFalse);
+	}
+
+}
@@ -0,0 +1,264 @@
+package bridlensis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import bridlensis.env.Callable;
+import bridlensis.env.ComparisonStatement;
+import bridlensis.env.SimpleTypeObject;
+import bridlensis.env.TypeObject;
+import bridlensis.env.TypeObject.Type;
+
+/**
+ * Compile time evaluation of literal comparisons and a whitelist of pure
+ * built-in instructions. Evaluation follows the NSIS runtime semantics, e.g.
+ * string comparisons are case-insensitive and integers are parsed like NSIS
+ * does (hexadecimal <code>0x</code> and octal <code>0</code> prefixes, 32 bit
+ * overflow).
+ */
+class ConstantEvaluator {
+
+	private ConstantEvaluator() {
+		// Static helpers only
+	}
+
+	public static boolean isConstant(TypeObject object) {
+		if (object == NSISStatements.NULL) {
+			return true;
+		}
+		return (object.getType() == Type.STRING || object.getType() == Type.INTEGER)
+				&& SimpleTypeObject.stripString(object).indexOf('$') == -1;
+	}
+
+	private static String valueOf(TypeObject object) {
+		if (object == NSISStatements.NULL) {
+			return "";
+		}
+		return SimpleTypeObject.stripString(object);
+	}
+
+	/**
+	 * Parses integer like NSIS <code>myatoi</code>: optional minus sign,
+	 * hexadecimal (<code>0x</code>) or octal (leading <code>0</code>) prefix
+	 * and digits up to the first invalid character.
+	 */
+	public static int atoi(String value) {
+		int index = 0;
+		int sign = 1;
+		int base = 10;
+		char top = '9';
+		if (index < value.length() && value.charAt(index) == '-') {
+			index++;
+			sign = -1;
+		}
+		if (index < value.length() && value.charAt(index) == '0') {
+			index++;
+			if (index < value.length() && value.charAt(index) >= '0'
+					&& value.charAt(index) <= '7') {
+				base = 8;
+				top = '7';
+			} else if (index < value.length()
+					&& Character.toUpperCase(value.charAt(index)) == 'X') {
+				base = 16;
+				index++;
+			}
+		}
+		int result = 0;
+		for (; index < value.length(); index++) {
+			char c = value.charAt(index);
+			char upper = Character.toUpperCase(c);
+			int digit;
+			if (c >= '0' && c <= top) {
+				digit = c - '0';
+			} else if (base == 16 && upper >= 'A' && upper <= 'F') {
+				digit = upper - 'A' + 10;
+			} else {
+				break;
+			}
+			result = result * base + digit;
+		}
+		return result * sign;
+	}
+
+	/**
+	 * Evaluates a single comparison or <code>null</code> if the outcome is
+	 * not known at compile time.
+	 */
+	public static Boolean compare(ComparisonStatement statement) {
+		if (statement.getCompare() == null
+				|| statement.getLeft().size() != 1
+				|| statement.getRight().size() != 1) {
+			return null;
+		}
+		TypeObject left = statement.getLeft().iterator().next();
+		TypeObject right = statement.getRight().iterator().next();
+		if (!isConstant(left) || !isConstant(right)) {
+			return null;
+		}
+		String a = valueOf(left);
+		String b = valueOf(right);
+		Boolean result;
+		switch (statement.getCompare()) {
+		case "==":
+			result = a.equalsIgnoreCase(b);
+			break;
+		case "!=":
+			result = !a.equalsIgnoreCase(b);
+			break;
+		case "S==":
+			result = a.equals(b);
+			break;
+		case "S!=":
+			result = !a.equals(b);
+			break;
+		case "=":
+			result = atoi(a) == atoi(b);
+			break;
+		case "<>":
+			result = atoi(a) != atoi(b);
+			break;
+		case "<":
+			result = atoi(a) < atoi(b);
+			break;
+		case ">":
+			result = atoi(a) > atoi(b);
+			break;
+		case "<=":
+			result = atoi(a) <= atoi(b);
+			break;
+		case ">=":
+			result = atoi(a) >= atoi(b);
+			break;
+		default:
+			return null;
+		}
+		return statement.isNot() ? !result : result;
+	}
+
+	/**
+	 * Evaluates an <code>And</code>/<code>Or</code> chain left to right or
+	 * returns <code>null</code> if the outcome is not known at compile time.
+	 */
+	public static Boolean evaluate(Collection<ComparisonStatement> statements) {
+		Boolean result = null;
+		boolean first = true;
+		for (ComparisonStatement statement : statements) {
+			Boolean value = compare(statement);
+			String key = statement.getKey().toLowerCase();
+			if (first) {
+				result = value;
+				first = false;
+			} else if (key.startsWith("and")) {
+				if (Boolean.FALSE.equals(result) || Boolean.FALSE.equals(value)) {
+					result = Boolean.FALSE;
+				} else if (result == null || value == null) {
+					result = null;
+				}
+			} else if (key.startsWith("or")) {
+				if (Boolean.TRUE.equals(result) || Boolean.TRUE.equals(value)) {
+					result = Boolean.TRUE;
+				} else if (result == null || value == null) {
+					result = null;
+				}
+			} else {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates a call to a whitelisted pure built-in instruction with
+	 * constant arguments. Returns <code>null</code> when the call must be
+	 * made at runtime.
+	 */
+	public static TypeObject call(Callable callable, List<TypeObject> args) {
+		List<String> values = new ArrayList<>();
+		for (TypeObject arg : args) {
+			if (!isConstant(arg)) {
+				return null;
+			}
+			values.add(valueOf(arg));
+		}
+		switch (callable.getName().toLowerCase()) {
+		case "strlen":
+			return integer(values.get(0).length());
+		case "strcpy":
+			return strCpy(values.get(0), values.get(1), values.get(2));
+		case "intop":
+			return intOp(values.get(0), values.get(1), values.get(2));
+		}
+		return null;
+	}
+
+	private static TypeObject integer(int value) {
+		return new SimpleTypeObject(Type.INTEGER, value);
+	}
+
+	/**
+	 * Copies like NSIS <code>EW_ASSIGNVAR</code>: only an empty maximum
+	 * length means no limit, and an offset before the beginning of the string
+	 * gives an empty string.
+	 */
+	private static TypeObject strCpy(String str, String maxLen, String offset) {
+		int length = str.length();
+		int start = atoi(offset);
+		if (start < 0) {
+			start += length;
+		}
+		if (start < 0) {
+			return new SimpleTypeObject(Type.STRING, "");
+		}
+		String result = str.substring(Math.min(start, length));
+		if (!maxLen.isEmpty()) {
+			int newLength = atoi(maxLen);
+			if (newLength < 0) {
+				newLength = Math.max(result.length() + newLength, 0);
+			}
+			result = result.substring(0, Math.min(newLength, result.length()));
+		}
+		return new SimpleTypeObject(Type.STRING, result);
+	}
+
+	/**
+	 * Returns <code>null</code> for a division by zero, which sets the error
+	 * flag when run.
+	 */
+	static TypeObject intOp(String value1, String op, String value2) {
+		int a = atoi(value1);
+		int b = atoi(value2);
+		switch (op) {
+		case "+":
+			return integer(a + b);
+		case "-":
+			return integer(a - b);
+		case "*":
+			return integer(a * b);
+		case "/":
+			return b == 0 ? null : integer(a / b);
+		case "%":
+			return b == 0 ? null : integer(a % b);
+		case "&":
+			return integer(a & b);
+		case "|":
+			return integer(a | b);
+		case "^":
+			return integer(a ^ b);
+		case "<<":
+			return integer(a << b);
+		case ">>":
+			return integer(a >> b);
+		case "~":
+			return integer(~a);
+		case "!":
+			return integer(a == 0 ? 1 : 0);
+		case "&&":
+			return integer(a != 0 && b != 0 ? 1 : 0);
+		case "||":
+			return integer(a != 0 || b != 0 ? 1 : 0);
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,34 @@
+package bridlensis;
+
+import bridlensis.env.NameGenerator;
+
+/**
+ * Counts the names generated, so that the transpile cache knows where the
+ * names of a file start and how many to skip when the file is restored.
+ */
+class CountingNameGenerator implements NameGenerator {
+
+	private final NameGenerator nameGenerator;
+	private int count = 0;
+
+	public CountingNameGenerator(NameGenerator nameGenerator) {
+		this.nameGenerator = nameGenerator;
+	}
+
+	@Override
+	public String generate() {
+		count++;
+		return nameGenerator.generate();
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void skip(int names) {
+		for (int i = 0; i < names; i++) {
+			generate();
+		}
+	}
+
+}
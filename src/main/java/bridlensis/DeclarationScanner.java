@@ -0,0 +1,243 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Functions and global variables declared in the script and its include
+ * files, scanned before parsing in the order the parser follows the include
+ * files. An include file parsed ahead of its turn starts with the
+ * declarations found before it, as if the files before it were parsed. The
+ * scan only guesses what the parser will find, e.g. it doesn't evaluate
+ * conditional compiler commands, and the parser checks the symbols the file
+ * read before using a file parsed ahead.
+ */
+class DeclarationScanner {
+
+	private static final Logger logger = Logger.getInstance();
+
+	private static final Pattern BLOCK_COMMENT = Pattern.compile("/\\*.*?\\*/",
+			Pattern.DOTALL);
+	private static final Pattern INCLUDE = Pattern.compile(
+			"^!include[ \\t]+(?:\"([^\"]+)\"|'([^']+)'|`([^`]+)`|([^\\s;#]+))",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern ASSIGNMENT = Pattern
+			.compile("^(\\w+)\\s*=(?!=)");
+
+	/**
+	 * Include file of the script and the number of declarations before it.
+	 */
+	static class Include {
+
+		private final File file;
+		private final String path;
+		private final int declarations;
+
+		private Include(File file, String path, int declarations) {
+			this.file = file;
+			this.path = path;
+			this.declarations = declarations;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Canonical path of the file.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public int getDeclarations() {
+			return declarations;
+		}
+
+	}
+
+	private final File baseDir;
+	private final String encoding;
+	private final Collection<String> excludeFiles;
+	private final Collection<String> omittedFiles;
+	private final List<List<String>> declarations = new ArrayList<>();
+	private final List<Include> includes = new ArrayList<>();
+	private final Set<String> followedFiles = new HashSet<>();
+	private final Set<String> variables = new HashSet<>();
+	private final Set<String> functions = new HashSet<>();
+	private int depth = 0;
+	private boolean insideMacro = false;
+	private List<String> function = null;
+	private boolean placeholders = false;
+
+	/**
+	 * Include files are resolved like the parser does, relative to the base
+	 * directory. Excluded and omitted files, e.g. the headers included
+	 * automatically, are not followed.
+	 */
+	public DeclarationScanner(File baseDir, String encoding,
+			Collection<String> excludeFiles, Collection<String> omittedFiles) {
+		this.baseDir = baseDir;
+		this.encoding = encoding;
+		this.excludeFiles = excludeFiles;
+		this.omittedFiles = omittedFiles;
+	}
+
+	/**
+	 * Declarations in the order found, in the form of changes replayed by
+	 * the parser: <code>declare</code> with the name of a function, whether
+	 * it returns a value and the full names of its arguments,
+	 * <code>variable</code>, <code>parsed</code> for an include file
+	 * followed and <code>clear</code> for an include file not followed.
+	 */
+	public List<List<String>> getDeclarations() {
+		return declarations;
+	}
+
+	/**
+	 * Include files followed from the top level of the script, outside
+	 * functions and macros, where they are parsed on their own.
+	 */
+	public List<Include> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * Returns <code>true</code> if any scanned file contains the prefix of
+	 * the placeholder names of files parsed ahead.
+	 */
+	public boolean containsPlaceholders() {
+		return placeholders;
+	}
+
+	public void scanFile(File file) throws IOException {
+		followedFiles.add(file.getCanonicalPath());
+		scan(file);
+	}
+
+	private void scan(File file) throws IOException {
+		logger.debug("Scan declarations: " + file.getAbsolutePath());
+		String code = new String(Files.readAllBytes(file.toPath()),
+				Charset.forName(encoding));
+		if (code.contains(PlaceholderNameGenerator.PREFIX)) {
+			placeholders = true;
+		}
+		code = NSISStatements.LINE_CONTINUE.matcher(code).replaceAll(" ");
+		code = BLOCK_COMMENT.matcher(code).replaceAll(" ");
+		for (String line : code.split("\\r?\\n")) {
+			scanLine(line.trim());
+		}
+	}
+
+	private void scanLine(String line) throws IOException {
+		String keyword = line.split("[\\s(;#]", 2)[0].toLowerCase();
+		String rest = line.substring(keyword.length()).trim();
+		if (keyword.equals("!include")) {
+			Matcher matcher = INCLUDE.matcher(line);
+			if (matcher.find()) {
+				String name = null;
+				for (int group = 1; name == null; group++) {
+					name = matcher.group(group);
+				}
+				include(name);
+			}
+		} else if (keyword.equals("!macro")) {
+			insideMacro = true;
+		} else if (keyword.equals("!macroend")) {
+			insideMacro = false;
+		} else if (insideMacro) {
+			return;
+		} else if (keyword.equals("function")) {
+			function = rest.isEmpty() ? null : functionOf(rest);
+		} else if (keyword.equals("functionend") && function != null) {
+			if (functions.add(function.get(1).toLowerCase())) {
+				declarations.add(function);
+			}
+			function = null;
+		} else if (function != null) {
+			if (keyword.equals("return") && !rest.isEmpty()
+					&& rest.charAt(0) != ';' && rest.charAt(0) != '#') {
+				function.set(2, "true");
+			}
+		} else if (keyword.equals("var")) {
+			for (String word : rest.split("\\s+")) {
+				if (word.startsWith(";") || word.startsWith("#")) {
+					break;
+				} else if (!word.isEmpty() && !word.startsWith("/")) {
+					declareVariable(word);
+				}
+			}
+		} else {
+			Matcher matcher = ASSIGNMENT.matcher(line);
+			if (matcher.find()) {
+				declareVariable(matcher.group(1));
+			}
+		}
+	}
+
+	private void include(String name) throws IOException {
+		File file = new File(baseDir, name);
+		if (omittedFiles.contains(name.toLowerCase())
+				|| excludeFiles.contains(name)
+				|| excludeFiles.contains(file.getAbsolutePath())
+				|| !file.exists()) {
+			// Symbols defined before are unknown to the preprocessor
+			declarations.add(Arrays.asList("clear"));
+			return;
+		}
+		String path = file.getCanonicalPath();
+		if (!followedFiles.add(path)) {
+			return;
+		}
+		declarations.add(Arrays.asList("parsed", path,
+				MakeBridleNSIS.convertToBridleFilename(name)));
+		if (depth == 0 && function == null && !insideMacro) {
+			includes.add(new Include(file, path, declarations.size()));
+		}
+		depth++;
+		try {
+			scan(file);
+		} finally {
+			depth--;
+		}
+	}
+
+	private void declareVariable(String name) {
+		if (variables.add(name.toLowerCase())) {
+			declarations.add(Arrays.asList("variable", name.toLowerCase(),
+					"false"));
+		}
+	}
+
+	/**
+	 * Returns the declaration of the function, not returning a value until
+	 * a <code>Return</code> with a value is found.
+	 */
+	private static List<String> functionOf(String declaration) {
+		String name = declaration.split("[\\s(;#]", 2)[0];
+		List<String> function = new ArrayList<>(Arrays.asList("declare",
+				name, "false"));
+		int open = declaration.indexOf('(');
+		int close = declaration.indexOf(')', open + 1);
+		if (open != -1 && close != -1) {
+			for (String arg : declaration.substring(open + 1, close).split(
+					",")) {
+				if (!arg.trim().isEmpty()) {
+					function.add(name + "." + arg.trim().toLowerCase());
+				}
+			}
+		}
+		return function;
+	}
+
+}
@@ -0,0 +1,189 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Files a compilation depends on: the script and include files parsed, the
+ * excluded include files and the payload files of <code>File</code> and
+ * <code>ReserveFile</code> instructions with literal paths. Written as a
+ * Makefile dependency file and as a JSON manifest for other build tools.
+ */
+class Dependencies extends PayloadScanner {
+
+	private final Set<String> inputs = new LinkedHashSet<>();
+	private final Set<String> excluded = new LinkedHashSet<>();
+	private final Set<String> payloads = new LinkedHashSet<>();
+	private final Set<String> payloadPatterns = new LinkedHashSet<>();
+	private String installer = null;
+	private SymbolLog symbols = new SymbolLog();
+
+	/**
+	 * Payload paths are resolved relative to the makensis work directory.
+	 */
+	public Dependencies(File workDir) {
+		super(workDir);
+	}
+
+	/**
+	 * Records the dependencies added, so that they can be added again when
+	 * a file is restored from the cache.
+	 */
+	public void setSymbolLog(SymbolLog symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Adds a dependency recorded before by a file restored from the cache.
+	 */
+	public void replay(List<String> change) {
+		String name = change.get(1);
+		switch (change.get(0)) {
+		case "input":
+			addInput(new File(name));
+			break;
+		case "excluded":
+			addExcluded(new File(name));
+			break;
+		case "installer":
+			installer(name);
+			break;
+		case "payload":
+			payload(name, Boolean.parseBoolean(change.get(2)));
+			break;
+		}
+	}
+
+	public void addInput(File file) {
+		inputs.add(file.getAbsolutePath());
+		symbols.change(null, "dependency", "input", file.getAbsolutePath());
+	}
+
+	public void addExcluded(File file) {
+		excluded.add(file.getAbsolutePath());
+		symbols.change(null, "dependency", "excluded", file.getAbsolutePath());
+	}
+
+	@Override
+	protected void installer(String name) {
+		symbols.change(null, "dependency", "installer", name);
+		if (!isVariable(name)) {
+			installer = resolve(name).getAbsolutePath();
+		}
+	}
+
+	@Override
+	protected void payload(String name, boolean recursive) {
+		symbols.change(null, "dependency", "payload", name,
+				String.valueOf(recursive));
+		if (isVariable(name)) {
+			// Known only by makensis
+			return;
+		} else if (recursive || isPattern(name)) {
+			payloadPatterns.add(resolve(name).getAbsolutePath());
+		} else {
+			payloads.add(resolve(name).getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Writes the Makefile rule of the targets with an empty rule for each
+	 * dependency, so that make doesn't fail when one is removed.
+	 */
+	public void writeDepFile(Writer writer, File target) throws IOException {
+		Set<String> dependencies = new LinkedHashSet<>();
+		dependencies.addAll(inputs);
+		dependencies.addAll(excluded);
+		dependencies.addAll(payloads);
+		writer.write(makePath(target.getAbsolutePath()));
+		if (installer != null) {
+			writer.write(' ');
+			writer.write(makePath(installer));
+		}
+		writer.write(':');
+		for (String dependency : dependencies) {
+			writer.write(" \\");
+			writer.write(NSISStatements.NEWLINE_MARKER);
+			writer.write("  ");
+			writer.write(makePath(dependency));
+		}
+		writer.write(NSISStatements.NEWLINE_MARKER);
+		for (String dependency : dependencies) {
+			writer.write(NSISStatements.NEWLINE_MARKER);
+			writer.write(makePath(dependency));
+			writer.write(':');
+			writer.write(NSISStatements.NEWLINE_MARKER);
+		}
+	}
+
+	public void writeManifest(Writer writer, File target) throws IOException {
+		writer.write("{");
+		writer.write(NSISStatements.NEWLINE_MARKER);
+		writeField(writer, "output", jsonString(target.getAbsolutePath()));
+		writeField(writer, "installer", installer == null ? "null"
+				: jsonString(installer));
+		writeField(writer, "inputs", jsonArray(inputs));
+		writeField(writer, "excluded", jsonArray(excluded));
+		writeField(writer, "payloads", jsonArray(payloads));
+		writer.write("  \"payloadPatterns\": ");
+		writer.write(jsonArray(payloadPatterns));
+		writer.write(NSISStatements.NEWLINE_MARKER);
+		writer.write("}");
+		writer.write(NSISStatements.NEWLINE_MARKER);
+	}
+
+	private static void writeField(Writer writer, String name, String value)
+			throws IOException {
+		writer.write("  ");
+		writer.write(jsonString(name));
+		writer.write(": ");
+		writer.write(value);
+		writer.write(",");
+		writer.write(NSISStatements.NEWLINE_MARKER);
+	}
+
+	private static String makePath(String path) {
+		StringBuilder sb = new StringBuilder(path.length());
+		for (char c : path.toCharArray()) {
+			if (c == ' ' || c == '#') {
+				sb.append('\\');
+			} else if (c == '$') {
+				sb.append('$');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String jsonArray(Collection<String> values) {
+		StringBuilder sb = new StringBuilder("[");
+		for (String value : values) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(jsonString(value));
+		}
+		return sb.append(']').toString();
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+}
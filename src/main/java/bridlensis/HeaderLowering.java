@@ -0,0 +1,243 @@
+package bridlensis;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bridlensis.env.Callable;
+import bridlensis.env.SimpleTypeObject;
+import bridlensis.env.TypeObject;
+import bridlensis.env.TypeObject.Type;
+import bridlensis.env.Variable;
+
+/**
+ * Specialized instruction sequences for header function calls with constant
+ * options. The generic header macros pull large runtime routines into the
+ * installer, so the common simple cases are lowered to a few instructions
+ * instead. Calls without a specialized lowering use the macro.
+ */
+class HeaderLowering {
+
+	private static final TypeObject ZERO = new SimpleTypeObject(Type.INTEGER,
+			0);
+	private static final TypeObject ONE = new SimpleTypeObject(Type.INTEGER, 1);
+	private static final TypeObject EMPTY = new SimpleTypeObject(Type.STRING,
+			"");
+
+	/**
+	 * Receiver of the lowered instructions.
+	 */
+	static interface Target {
+
+		Variable acquire() throws InvalidSyntaxException;
+
+		String label();
+
+		String instruction(String name, Variable output, TypeObject... args)
+				throws InvalidSyntaxException;
+
+	}
+
+	private static interface Lowering {
+
+		boolean accepts(List<TypeObject> args);
+
+		void lower(Code code, List<TypeObject> args, Variable returnVar)
+				throws InvalidSyntaxException;
+
+	}
+
+	private static final Map<String, Lowering> LOWERINGS = new HashMap<>();
+
+	static {
+		LOWERINGS.put("wordfind", new WordFindLowering(false));
+		LOWERINGS.put("wordfinds", new WordFindLowering(true));
+	}
+
+	private HeaderLowering() {
+		// Static helpers only
+	}
+
+	/**
+	 * Returns the specialized instructions for the call or <code>null</code>
+	 * when the generic macro must be used.
+	 */
+	public static String lower(String indent, Callable callable,
+			List<TypeObject> args, Variable returnVar, Target target)
+			throws InvalidSyntaxException {
+		Lowering lowering = LOWERINGS.get(callable.getName().toLowerCase());
+		if (lowering == null || returnVar == null || !lowering.accepts(args)) {
+			return null;
+		}
+		Code code = new Code(indent, target);
+		lowering.lower(code, args, returnVar);
+		return code.toString();
+	}
+
+	private static boolean isConstant(TypeObject object, String value) {
+		return object != NSISStatements.NULL
+				&& ConstantEvaluator.isConstant(object)
+				&& SimpleTypeObject.stripString(object).equals(value);
+	}
+
+	private static boolean isCharacter(TypeObject object) {
+		return object != NSISStatements.NULL
+				&& ConstantEvaluator.isConstant(object)
+				&& SimpleTypeObject.stripString(object).length() == 1;
+	}
+
+	/**
+	 * Instruction lines of one lowered call.
+	 */
+	private static class Code {
+
+		private final String indent;
+		private final Target target;
+		private final StringBuilder sb = new StringBuilder();
+
+		private Code(String indent, Target target) {
+			this.indent = indent;
+			this.target = target;
+		}
+
+		private Variable acquire() throws InvalidSyntaxException {
+			return target.acquire();
+		}
+
+		private String label() {
+			return target.label();
+		}
+
+		private void instruction(String name, Variable output,
+				TypeObject... args) throws InvalidSyntaxException {
+			append(target.instruction(name, output, args));
+		}
+
+		private void append(String line) {
+			if (sb.length() > 0) {
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			sb.append(line);
+		}
+
+		private void label(String label) {
+			append(NSISStatements.label(indent, label));
+		}
+
+		private void goTo(String label) {
+			append(NSISStatements.goTo(indent, label));
+		}
+
+		@Override
+		public String toString() {
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * First (<code>+1</code>) or last (<code>-1</code>) word separated by a
+	 * single character delimiter. Like <code>WordFind</code>, delimiters at
+	 * the ends are skipped and the string is returned as is when there are
+	 * no words.
+	 */
+	private static class WordFindLowering implements Lowering {
+
+		private static final int STRING_INDEX = 0;
+		private static final int OPTIONS_INDEX = 1;
+		private static final int DELIM1_INDEX = 2;
+		private static final int DELIM2_INDEX = 3;
+		private static final int CENTER_INDEX = 4;
+
+		private final boolean caseSensitive;
+
+		private WordFindLowering(boolean caseSensitive) {
+			this.caseSensitive = caseSensitive;
+		}
+
+		@Override
+		public boolean accepts(List<TypeObject> args) {
+			return (isConstant(args.get(OPTIONS_INDEX), "+1") || isConstant(
+					args.get(OPTIONS_INDEX), "-1"))
+					&& isCharacter(args.get(DELIM1_INDEX))
+					&& args.get(DELIM2_INDEX) == NSISStatements.NULL
+					&& args.get(CENTER_INDEX) == NSISStatements.NULL;
+		}
+
+		@Override
+		public void lower(Code code, List<TypeObject> args, Variable returnVar)
+				throws InvalidSyntaxException {
+			TypeObject string = args.get(STRING_INDEX);
+			TypeObject delimiter = args.get(DELIM1_INDEX);
+			Variable start = code.acquire();
+			Variable end = code.acquire();
+			Variable c = code.acquire();
+			String skip = code.label();
+			String word = code.label();
+			String next = code.label();
+			String none = code.label();
+			String done = code.label();
+			if (isConstant(args.get(OPTIONS_INDEX), "+1")) {
+				// Skip leading delimiters, then scan to the end of the word
+				String found = code.label();
+				code.instruction("StrCpy", start, ZERO);
+				code.label(skip);
+				code.instruction("StrCpy", c, string, ONE, start);
+				code.append(NSISStatements.strCmp(code.indent, true, c, EMPTY,
+						none, "0"));
+				code.append(NSISStatements.strCmp(code.indent, caseSensitive,
+						c, delimiter, "0", word));
+				code.instruction("IntOp", start, start, plus(), ONE);
+				code.goTo(skip);
+				code.label(word);
+				code.instruction("StrCpy", end, start);
+				code.label(next);
+				code.instruction("IntOp", end, end, plus(), ONE);
+				code.instruction("StrCpy", c, string, ONE, end);
+				code.append(NSISStatements.strCmp(code.indent, true, c, EMPTY,
+						found, "0"));
+				code.append(NSISStatements.strCmp(code.indent, caseSensitive,
+						c, delimiter, "0", next));
+				code.label(found);
+				code.instruction("IntOp", end, end, minus(), start);
+			} else {
+				// Skip trailing delimiters, then scan to the start of the word
+				code.instruction("StrLen", end, string);
+				code.label(skip);
+				code.instruction("IntOp", end, end, minus(), ONE);
+				code.append(NSISStatements.intCmp(code.indent, end, ZERO, "0",
+						none, "0"));
+				code.instruction("StrCpy", c, string, ONE, end);
+				code.append(NSISStatements.strCmp(code.indent, caseSensitive,
+						c, delimiter, skip, "0"));
+				code.instruction("StrCpy", start, end);
+				code.label(next);
+				code.instruction("IntOp", start, start, minus(), ONE);
+				code.append(NSISStatements.intCmp(code.indent, start, ZERO,
+						"0", word, "0"));
+				code.instruction("StrCpy", c, string, ONE, start);
+				code.append(NSISStatements.strCmp(code.indent, caseSensitive,
+						c, delimiter, "0", next));
+				code.label(word);
+				code.instruction("IntOp", start, start, plus(), ONE);
+				code.instruction("IntOp", end, end, minus(), start);
+				code.instruction("IntOp", end, end, plus(), ONE);
+			}
+			code.instruction("StrCpy", returnVar, string, end, start);
+			code.goTo(done);
+			code.label(none);
+			code.instruction("StrCpy", returnVar, string);
+			code.label(done);
+		}
+
+		private static TypeObject plus() {
+			return new SimpleTypeObject(Type.SPECIAL, "+");
+		}
+
+		private static TypeObject minus() {
+			return new SimpleTypeObject(Type.SPECIAL, "-");
+		}
+
+	}
+
+}
@@ -40,6 +40,7 @@ public class InputReader {
 	private String indent;
 	private WordTail tail;
 	private int linesRead;
+	private int statementLine;
 
 	public InputReader(File file, String encoding) throws FileNotFoundException {
 		this(new Scanner(file, encoding));
@@ -65,6 +66,13 @@ public class InputReader {
 		return linesRead;
 	}
 
+	/**
+	 * Line number of the first line of the current statement.
+	 */
+	public int getStatementLine() {
+		return statementLine;
+	}
+
 	public String getIndent() {
 		return indent;
 	}
@@ -76,6 +84,7 @@ public class InputReader {
 	public boolean goToNextStatement() throws InvalidSyntaxException {
 		if (input.hasNextLine()) {
 			tail = EMPTY_TAIL;
+			statementLine = linesRead + 1;
 			String statement = getStatement();
 			int startPos = indexOfNextNonSpace(statement);
 			indent = statement.substring(0, startPos);
@@ -98,6 +107,14 @@ public class InputReader {
 		return text.get();
 	}
 
+	/**
+	 * Returns the statement without moving forward in it. Unlike
+	 * {@link #getCurrentStatement()} comment blocks are not completed.
+	 */
+	public String peekStatement() {
+		return text.get();
+	}
+
 	public WordTail getWordTail() {
 		return tail;
 	}
@@ -126,6 +143,18 @@ public class InputReader {
 		return new Word(word);
 	}
 
+	/**
+	 * Returns the next word without moving forward in the statement.
+	 */
+	public Word peekWord() throws InvalidSyntaxException {
+		int cursor = text.cursorPos();
+		WordTail current = tail;
+		Word word = nextWord();
+		text.cursorTo(cursor);
+		tail = current;
+		return word;
+	}
+
 	private String getStatement() throws InvalidSyntaxException {
 		String line = pullNextLine();
 		if (line.length() > 0
@@ -88,6 +88,10 @@ class InputText {
 		return cursor;
 	}
 
+	protected void cursorTo(int pos) {
+		cursor = Math.min(pos, text.length());
+	}
+
 	@Override
 	public String toString() {
 		return "InputText[cursor=" + cursor + ", text=" + text + "]";
@@ -0,0 +1,192 @@
+package bridlensis;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import bridlensis.env.SimpleTypeObject;
+import bridlensis.env.TypeObject;
+import bridlensis.env.Variable;
+
+/**
+ * Integer expression with the usual operator precedence. Constant
+ * sub-expressions are folded at compile time and the rest is lowered to
+ * <code>IntOp</code> instructions.
+ */
+class IntegerExpression {
+
+	/**
+	 * Operators from the lowest to the highest precedence. Operators sharing
+	 * the same precedence are on the same row.
+	 */
+	private static final List<List<String>> PRECEDENCE = Arrays.asList(
+			Arrays.asList("|"), Arrays.asList("^"), Arrays.asList("&"),
+			Arrays.asList("+", "-"), Arrays.asList("*", "/", "%"));
+
+	/**
+	 * Receiver of the lowered instructions.
+	 */
+	static interface Target {
+
+		Variable acquire() throws InvalidSyntaxException;
+
+		void release(Variable variable);
+
+		boolean isScratch(TypeObject object);
+
+		void intOp(Variable output, TypeObject value1, String op,
+				TypeObject value2) throws InvalidSyntaxException;
+
+	}
+
+	private static class Node {
+
+		private TypeObject value;
+		private final String op;
+		private Node left;
+		private Node right;
+
+		private Node(TypeObject value) {
+			this.value = value;
+			this.op = null;
+		}
+
+		private Node(Node left, String op, Node right) {
+			this.left = left;
+			this.op = op;
+			this.right = right;
+		}
+
+		private boolean isConstant() {
+			return value != null && ConstantEvaluator.isConstant(value);
+		}
+
+		private String constant() {
+			return SimpleTypeObject.stripString(value);
+		}
+
+	}
+
+	private final Node root;
+
+	public IntegerExpression(List<TypeObject> operands, List<String> operators) {
+		if (operands.size() != operators.size() + 1) {
+			throw new IllegalArgumentException(
+					"Expected one operand more than operators");
+		}
+		LinkedList<Node> values = new LinkedList<>();
+		LinkedList<String> ops = new LinkedList<>();
+		values.push(new Node(operands.get(0)));
+		for (int i = 0; i < operators.size(); i++) {
+			String op = operators.get(i);
+			while (!ops.isEmpty() && precedence(ops.peek()) >= precedence(op)) {
+				reduce(values, ops);
+			}
+			ops.push(op);
+			values.push(new Node(operands.get(i + 1)));
+		}
+		while (!ops.isEmpty()) {
+			reduce(values, ops);
+		}
+		root = values.pop();
+	}
+
+	public static boolean isOperator(String word) {
+		return precedence(word) != -1;
+	}
+
+	private static int precedence(String op) {
+		for (int i = 0; i < PRECEDENCE.size(); i++) {
+			if (PRECEDENCE.get(i).contains(op)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void reduce(LinkedList<Node> values, LinkedList<String> ops) {
+		Node right = values.pop();
+		Node left = values.pop();
+		values.push(fold(new Node(left, ops.pop(), right)));
+	}
+
+	private static Node fold(Node node) {
+		if (node.left.isConstant() && node.right.isConstant()) {
+			TypeObject constant = ConstantEvaluator.intOp(
+					node.left.constant(), node.op, node.right.constant());
+			return constant == null ? node : new Node(constant);
+		}
+		if (node.right.isConstant() && node.left.op != null
+				&& node.left.right.isConstant()) {
+			// Combine constants of (x + c1) - c2 and (x * c1) * c2
+			String inner = node.left.op;
+			String outer = node.op;
+			boolean additive = (inner.equals("+") || inner.equals("-"))
+					&& (outer.equals("+") || outer.equals("-"));
+			if (additive || (inner.equals("*") && outer.equals("*"))) {
+				String combine;
+				if (!additive) {
+					combine = "*";
+				} else {
+					combine = inner.equals(outer) ? "+" : "-";
+				}
+				TypeObject constant = ConstantEvaluator.intOp(
+						node.left.right.constant(), combine,
+						node.right.constant());
+				return new Node(node.left.left, inner, new Node(constant));
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the constant value if the expression was folded completely,
+	 * otherwise <code>null</code>.
+	 */
+	public TypeObject getConstant() {
+		return root.op == null ? root.value : null;
+	}
+
+	/**
+	 * Lowers the expression to <code>IntOp</code> instructions and returns
+	 * the object holding the result. The last instruction writes into
+	 * <code>output</code> when it's given.
+	 */
+	public TypeObject lower(Target target, Variable output)
+			throws InvalidSyntaxException {
+		if (root.op == null) {
+			return root.value;
+		}
+		return lower(root, target, output);
+	}
+
+	private static TypeObject lower(Node node, Target target, Variable output)
+			throws InvalidSyntaxException {
+		if (node.op == null) {
+			return node.value;
+		}
+		TypeObject value1 = lower(node.left, target, null);
+		TypeObject value2 = lower(node.right, target, null);
+		Variable result = output;
+		if (target.isScratch(value1)) {
+			if (result == null) {
+				result = (Variable) value1;
+			} else {
+				target.release((Variable) value1);
+			}
+		}
+		if (target.isScratch(value2)) {
+			if (result == null) {
+				result = (Variable) value2;
+			} else {
+				target.release((Variable) value2);
+			}
+		}
+		if (result == null) {
+			result = target.acquire();
+		}
+		target.intOp(result, value1, node.op, value2);
+		return result;
+	}
+
+}
@@ -1,6 +1,8 @@
 package bridlensis;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Logger {
 
@@ -20,6 +22,7 @@ public class Logger {
 
 	private PrintStream output;
 	private int level;
+	private final ThreadLocal<List<String>> held = new ThreadLocal<>();
 
 	private Logger() {
 		output = System.out;
@@ -34,9 +37,41 @@ public class Logger {
 		this.level = level;
 	}
 
+	/**
+	 * Holds back the messages logged on the current thread until released,
+	 * e.g. while parsing a file on another thread.
+	 */
+	public void hold() {
+		held.set(new ArrayList<String>());
+	}
+
+	/**
+	 * Returns the messages held back on the current thread and logs the
+	 * next messages again.
+	 */
+	public List<String> release() {
+		List<String> messages = held.get();
+		held.remove();
+		return messages;
+	}
+
+	/**
+	 * Logs the messages held back on another thread.
+	 */
+	public void print(List<String> messages) {
+		for (String msg : messages) {
+			output.println(msg);
+		}
+	}
+
 	private void log(int level, String msg) {
 		if (level <= this.level) {
-			output.println(msg);
+			List<String> messages = held.get();
+			if (messages != null) {
+				messages.add(msg);
+			} else {
+				output.println(msg);
+			}
 		}
 	}
 
@@ -2,15 +2,18 @@ package bridlensis;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Locale;
 import java.util.Scanner;
 
-import bridlensis.env.DefaultNameGenerator;
+import bridlensis.env.CompactNameGenerator;
 import bridlensis.env.EnvironmentFactory;
 import bridlensis.env.NameGenerator;
 
@@ -22,8 +25,10 @@ public class MakeBridleNSIS {
 	public static final int EXIT_MAKEBRIDLENSISERROR = 11;
 	public static final int EXIT_MAKENSIS_NOT_FOUND = 12;
 	public static final int EXIT_MAKENSISERROR = 13;
+	public static final int EXIT_ARGUMENTERROR = 14;
 
 	private static final String MAKENSIS_EXE = "makensis.exe";
+	private static final String CACHE_DIR = ".bridlecache";
 
 	private static final Logger logger = Logger.getInstance();
 
@@ -60,7 +65,16 @@ public class MakeBridleNSIS {
 	public static void main(String[] args) {
 		logger.warn(header());
 
-		BridleNSISArguments arguments = parseArguments(args);
+		BridleNSISArguments arguments;
+		try {
+			arguments = parseArguments(args);
+		} catch (BridleNSISException e) {
+			logger.error(e);
+			logger.warn("Usage: ");
+			logger.warn("  " + usage());
+			System.exit(e.getErrorCode());
+			return;
+		}
 
 		if (arguments.getInputFile() == null) {
 			logger.warn("Usage: ");
@@ -86,15 +100,176 @@ public class MakeBridleNSIS {
 			throws BridleNSISException {
 		File outputFile = getOutFile(arguments.getOutDir(),
 				arguments.getInputFile());
-		makeBridleNSIS(new DefaultNameGenerator(), arguments.getInputFile(),
-				outputFile, arguments.getEncoding(),
-				arguments.getExcludeFiles());
+		if (arguments.isStdin()) {
+			return makeNSISFromStdin(outputFile, arguments);
+		}
+		makeBridleNSIS(new CompactNameGenerator(), arguments.getInputFile(),
+				outputFile, arguments);
 		String nsisHome = findNSISHome(arguments.getNsisHome());
+		if (arguments.isBuildCache()) {
+			return makeNSISCached(outputFile, nsisHome, arguments);
+		}
 		return makeNSIS(arguments.getDir(), outputFile.getAbsolutePath(),
 				nsisHome, arguments.getNSISOptions());
 	}
 
-	private static BridleNSISArguments parseArguments(String[] args) {
+	/**
+	 * Restores the installer from the artifact cache instead of running
+	 * makensis if the build fingerprint is found, and stores the installer
+	 * built otherwise.
+	 */
+	private static int makeNSISCached(File outputFile, String nsisHome,
+			BridleNSISArguments arguments) throws BridleNSISException {
+		BuildFingerprint fingerprint = new BuildFingerprint(getWorkDir(
+				outputFile, arguments), arguments.getEncoding());
+		File installer = null;
+		String key = null;
+		try {
+			fingerprint.add(VERSION);
+			fingerprint.add(getNSISVersion(nsisHome));
+			for (String option : arguments.getNSISOptions()) {
+				fingerprint.add(option);
+			}
+			fingerprint.addScript(outputFile);
+			installer = fingerprint.getInstaller();
+			key = fingerprint.get();
+		} catch (IOException e) {
+			logger.info("Unable to fingerprint the build: " + e.getMessage());
+		}
+		ArtifactCache cache = new ArtifactCache(new File(
+				outputFile.getAbsoluteFile().getParentFile(), CACHE_DIR
+						+ File.separator + "installers"));
+		if (key != null) {
+			try {
+				if (cache.restore(key, installer)) {
+					logger.warn(String.format(
+							"Nothing changed, installer %s restored from cache.",
+							installer.getAbsolutePath()));
+					return 0;
+				}
+			} catch (IOException e) {
+				logger.info("Unable to restore installer: " + e.getMessage());
+			}
+		}
+		int exitCode = makeNSIS(arguments.getDir(),
+				outputFile.getAbsolutePath(), nsisHome,
+				arguments.getNSISOptions());
+		if (exitCode == 0 && key != null && installer.isFile()) {
+			try {
+				cache.store(key, installer);
+			} catch (IOException e) {
+				logger.info("Unable to cache installer: " + e.getMessage());
+			}
+		}
+		return exitCode;
+	}
+
+	/**
+	 * Starts makensis reading the script from standard input and parses the
+	 * script into it. makensis runs in the output directory, where it would
+	 * change to with the converted script file, so that relative paths and
+	 * converted include files are found.
+	 */
+	private static int makeNSISFromStdin(File outputFile,
+			BridleNSISArguments arguments) throws BridleNSISException {
+		String nsisHome = findNSISHome(arguments.getNsisHome());
+		final Process process = startNSIS(outputFile.getParentFile(), "-",
+				nsisHome, arguments.getNSISOptions());
+		Thread outputReader = new Thread() {
+
+			@Override
+			public void run() {
+				readNSISOutput(process);
+			}
+
+		};
+		outputReader.start();
+		NSISInput stdin = new NSISInput(process.getOutputStream());
+		try {
+			makeBridleNSIS(new CompactNameGenerator(),
+					arguments.getInputFile(), outputFile, arguments, stdin);
+		} catch (BridleNSISException e) {
+			if (!stdin.failed) {
+				// Kill makensis before the truncated script ends with EOF
+				process.destroy();
+				waitForNSIS(process, outputReader);
+				closeNSISInput(stdin);
+				throw e;
+			}
+			// makensis stopped reading, e.g. due to a syntax error, and
+			// reports the error itself
+			logger.debug("Unable to write makensis.exe input: "
+					+ e.getMessage());
+		}
+		closeNSISInput(stdin);
+		return waitForNSIS(process, outputReader);
+	}
+
+	private static void closeNSISInput(OutputStream stdin) {
+		try {
+			stdin.close();
+		} catch (IOException e) {
+			logger.debug("Unable to close makensis.exe input: "
+					+ e.getMessage());
+		}
+	}
+
+	private static int waitForNSIS(Process process, Thread outputReader)
+			throws BridleNSISException {
+		try {
+			outputReader.join();
+			return process.waitFor();
+		} catch (InterruptedException e) {
+			throw new BridleNSISException(EXIT_MAKENSISERROR, e);
+		}
+	}
+
+	/**
+	 * Standard input of makensis telling if a write failed because makensis
+	 * stopped reading.
+	 */
+	private static class NSISInput extends FilterOutputStream {
+
+		private boolean failed = false;
+
+		private NSISInput(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+	}
+
+	private static BridleNSISArguments parseArguments(String[] args)
+			throws BridleNSISException {
 		BridleNSISArguments arguments = new BridleNSISArguments();
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("-d")) {
@@ -108,6 +283,44 @@ public class MakeBridleNSIS {
 			} else if (args[i].equals("-x")) {
 				arguments.addAllExcludes(Arrays.asList(args[++i].split(System
 						.getProperty("path.separator"))));
+			} else if (args[i].equals("-O")) {
+				arguments.setOptimize(true);
+			} else if (args[i].equals("--native-jumps")) {
+				arguments.setNativeJumps(true);
+			} else if (args[i].equals("--register-calls")) {
+				arguments.setRegisterCalls(true);
+			} else if (args[i].equals("--auto-include")) {
+				arguments.setAutoInclude(true);
+			} else if (args[i].equals("--preprocess")) {
+				arguments.setPreprocess(true);
+			} else if (args[i].equals("--minify")) {
+				arguments.setMinify(true);
+			} else if (args[i].equals("--amalgamate")) {
+				arguments.setAmalgamate(true);
+			} else if (args[i].equals("--cache")) {
+				arguments.setCache(true);
+			} else if (args[i].equals("--build-cache")) {
+				arguments.setBuildCache(true);
+			} else if (args[i].equals("--deps")) {
+				arguments.setDependencies(true);
+			} else if (args[i].equals("--profile")) {
+				arguments.setProfile(true);
+			} else if (args[i].equals("--parallel")) {
+				arguments.setParallel(true);
+			} else if (args[i].equals("--exclude-mode")) {
+				if (++i == args.length) {
+					throw new BridleNSISException(EXIT_ARGUMENTERROR,
+							"Missing exclude mode");
+				}
+				try {
+					arguments.setExcludeMode(Parser.ExcludeMode.valueOf(args[i]
+							.toUpperCase(Locale.ENGLISH)));
+				} catch (IllegalArgumentException e) {
+					throw new BridleNSISException(EXIT_ARGUMENTERROR,
+							"Invalid exclude mode: " + args[i]);
+				}
+			} else if (args[i].equals("--stdin")) {
+				arguments.setStdin(true);
 			} else if (args[i].equals("-q")) {
 				arguments.setLogLevel(Logger.WARN);
 			} else if (args[i].equals("-v")) {
@@ -121,6 +334,27 @@ public class MakeBridleNSIS {
 		return arguments;
 	}
 
+	/**
+	 * Returns the directory makensis resolves relative file names in: the
+	 * directory of the script unless <code>/NOCD</code> is given, and the
+	 * directory makensis is started in otherwise.
+	 */
+	private static File getWorkDir(File outputFile,
+			BridleNSISArguments arguments) {
+		File outDir = outputFile.getAbsoluteFile().getParentFile();
+		if (arguments.isStdin()) {
+			// Started in the output directory, the script has no directory
+			return outDir;
+		}
+		for (String option : arguments.getNSISOptions()) {
+			if (option.equalsIgnoreCase("/NOCD")) {
+				return arguments.getDir() == null ? new File(
+						System.getProperty("user.dir")) : arguments.getDir();
+			}
+		}
+		return outDir;
+	}
+
 	private static File getOutFile(File outDir, File inputFile)
 			throws BridleNSISException {
 		if (outDir == null) {
@@ -166,6 +400,17 @@ public class MakeBridleNSIS {
 				"NSIS home not found.");
 	}
 
+	private static String getNSISVersion(String nsisHome) throws IOException {
+		String exec = nsisHome.trim().isEmpty() ? MAKENSIS_EXE : new File(
+				nsisHome, MAKENSIS_EXE).getPath();
+		Process process = new ProcessBuilder(exec, "/VERSION").start();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), System.getProperty("file.encoding")))) {
+			String version = reader.readLine();
+			return version == null ? "" : version;
+		}
+	}
+
 	private static boolean isNSISHome(String dir) {
 		String exec;
 		if (dir == null || dir.trim().isEmpty()) {
@@ -213,6 +458,28 @@ public class MakeBridleNSIS {
 	protected static void makeBridleNSIS(NameGenerator nameGenerator,
 			File inputFile, File outputFile, String encoding,
 			Collection<String> excludeFiles) throws BridleNSISException {
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(encoding);
+		if (excludeFiles != null) {
+			arguments.getExcludeFiles().addAll(excludeFiles);
+		}
+		makeBridleNSIS(nameGenerator, inputFile, outputFile, arguments);
+	}
+
+	protected static void makeBridleNSIS(NameGenerator nameGenerator,
+			File inputFile, File outputFile, BridleNSISArguments arguments)
+			throws BridleNSISException {
+		makeBridleNSIS(nameGenerator, inputFile, outputFile, arguments, null);
+	}
+
+	/**
+	 * Converts the script to the given stream instead of the output file if
+	 * the stream is not <code>null</code>.
+	 */
+	protected static void makeBridleNSIS(NameGenerator nameGenerator,
+			File inputFile, File outputFile, BridleNSISArguments arguments,
+			OutputStream out) throws BridleNSISException {
+		String encoding = arguments.getEncoding();
 		if (outputFile.equals(inputFile)) {
 			throw new BridleNSISException(EXIT_MAKEBRIDLENSISERROR,
 					"Cannot override input file");
@@ -225,14 +492,41 @@ public class MakeBridleNSIS {
 		logger.info("Encoding: " + encoding);
 		logger.info("");
 
+		// The cache counts the names generated by each file
+		CountingNameGenerator names = new CountingNameGenerator(nameGenerator);
 		StatementParser statementParser = new StatementParser(
-				EnvironmentFactory.build(nameGenerator), nameGenerator);
+				EnvironmentFactory.build(names), names);
+		statementParser.setNativeJumps(arguments.isNativeJumps());
+		statementParser.setRegisterCalls(arguments.isRegisterCalls());
 		Parser parser = new Parser(statementParser, baseDir, outDir, encoding,
-				excludeFiles);
+				arguments.getExcludeFiles());
+		parser.setOptimize(arguments.isOptimize());
+		parser.setAutoInclude(arguments.isAutoInclude());
+		parser.setMinify(arguments.isMinify());
+		parser.setAmalgamate(arguments.isAmalgamate());
+		parser.setExcludeMode(arguments.getExcludeMode());
+		if (arguments.isDependencies()) {
+			parser.setDependencies(getWorkDir(outputFile, arguments));
+		}
+		parser.setProfile(arguments.isProfile());
+		if (arguments.isCache() && out == null) {
+			parser.setCache(new TranspileCache(new File(outDir, CACHE_DIR),
+					cacheKey(nameGenerator, inputFile, outputFile, arguments)),
+					names);
+		}
+		parser.setParallel(arguments.isParallel(), names);
+		if (arguments.isPreprocess()) {
+			parser.setPreprocessorDefines(Preprocessor.definesOf(arguments
+					.getNSISOptions()));
+		}
 
 		long time = System.currentTimeMillis();
 		try {
-			parser.parse(inputFile.getName(), outputFile.getName());
+			if (out == null) {
+				parser.parse(inputFile.getName(), outputFile.getName());
+			} else {
+				parser.parse(inputFile.getName(), outputFile.getName(), out);
+			}
 		} catch (IOException | ParserException e) {
 			throw new BridleNSISException(EXIT_MAKEBRIDLENSISERROR, e);
 		}
@@ -242,10 +536,62 @@ public class MakeBridleNSIS {
 		logger.warn(String.format(
 				"%nParsed in %d seconds total of %d lines in %d file(s).%n",
 				time, parser.getInputLines(), parser.getFileCount()));
+		logger.info(String.format(
+				"Rewrote %d of %d output file(s), others unchanged.%n",
+				parser.getRewrittenFileCount(), parser.getOutputFileCount()));
+		if (arguments.isPreprocess()) {
+			logger.info(String.format(
+					"Skipped %d statements in branches never compiled.%n",
+					parser.getSkippedStatements()));
+		}
+		if (arguments.isOptimize()) {
+			logger.info(String.format(
+					"Optimized total of %d instructions to %d.%n",
+					parser.getInstructionsIn(), parser.getInstructionsOut()));
+		}
+	}
+
+	/**
+	 * Everything besides the input files that changes the converted files.
+	 */
+	private static String cacheKey(NameGenerator nameGenerator,
+			File inputFile, File outputFile, BridleNSISArguments arguments) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(VERSION);
+		sb.append('|').append(nameGenerator.getClass().getName());
+		sb.append('|').append(inputFile.getAbsolutePath());
+		sb.append('|').append(outputFile.getName());
+		sb.append('|').append(arguments.getEncoding());
+		sb.append('|').append(arguments.isOptimize());
+		sb.append('|').append(arguments.isNativeJumps());
+		sb.append('|').append(arguments.isRegisterCalls());
+		sb.append('|').append(arguments.isAutoInclude());
+		sb.append('|').append(arguments.isMinify());
+		sb.append('|').append(arguments.isAmalgamate());
+		sb.append('|').append(arguments.getExcludeMode());
+		sb.append('|').append(arguments.isDependencies());
+		sb.append('|').append(arguments.isProfile());
+		sb.append('|').append(arguments.getExcludeFiles());
+		if (arguments.isPreprocess()) {
+			sb.append('|').append(arguments.getNSISOptions());
+		}
+		return sb.toString();
 	}
 
 	private static int makeNSIS(File dir, String filename, String nsisHome,
 			Collection<String> nsisOptions) throws BridleNSISException {
+		Process process = startNSIS(dir, filename, nsisHome, nsisOptions);
+		readNSISOutput(process);
+		try {
+			return process.waitFor();
+		} catch (InterruptedException e) {
+			throw new BridleNSISException(EXIT_MAKENSISERROR, e);
+		}
+	}
+
+	private static Process startNSIS(File dir, String filename,
+			String nsisHome, Collection<String> nsisOptions)
+			throws BridleNSISException {
 		ArrayList<String> cmd = new ArrayList<String>();
 
 		String exec = new File(nsisHome, MAKENSIS_EXE).getAbsolutePath();
@@ -272,14 +618,15 @@ public class MakeBridleNSIS {
 		logger.info("Work directory: \"" + dir.getAbsolutePath() + "\" ");
 		builder.directory(dir);
 		builder.redirectErrorStream(true);
-		Process process;
 		try {
 			logger.warn("\nMakeNSIS ---->\n");
-			process = builder.start();
+			return builder.start();
 		} catch (IOException e) {
 			throw new BridleNSISException(EXIT_MAKENSISERROR, e);
 		}
+	}
 
+	private static void readNSISOutput(Process process) {
 		InputStream processInput = process.getInputStream();
 		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
 				processInput, "Cp1252"))) {
@@ -290,12 +637,6 @@ public class MakeBridleNSIS {
 		} catch (IOException e) {
 			logger.warn("Unable to read makensis.exe output: " + e.getMessage());
 		}
-
-		try {
-			return process.waitFor();
-		} catch (InterruptedException e) {
-			throw new BridleNSISException(EXIT_MAKENSISERROR, e);
-		}
 	}
 
 }
@@ -0,0 +1,129 @@
+package bridlensis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Strips comments and blank lines, joins continued lines and collapses
+ * whitespace outside of strings in the generated NSIS code. Source line
+ * numbers are read from {@link NSISStatements#lineMarker(int, String)}
+ * comments and kept as a line map, one input line number per output line (0
+ * for code generated by the compiler). Lines of inlined include files are
+ * mapped as <code>file:line</code>.
+ */
+class Minifier {
+
+	private final List<String> lineMap = new ArrayList<>();
+
+	public List<String> getLineMap() {
+		return lineMap;
+	}
+
+	public String minify(String code) {
+		StringBuilder out = new StringBuilder(code.length());
+		StringBuilder line = new StringBuilder();
+		String sourceLine = "0";
+		String lineStart = sourceLine;
+		boolean inBlockComment = false;
+		for (String physical : code.split(NSISStatements.NEWLINE_MARKER, -1)) {
+			if (!inBlockComment && line.length() == 0
+					&& physical.startsWith(NSISStatements.LINE_MARKER)) {
+				sourceLine = sourceLine(physical.substring(
+						NSISStatements.LINE_MARKER.length()).trim());
+				continue;
+			}
+			if (line.length() == 0) {
+				lineStart = sourceLine;
+			}
+			inBlockComment = append(line, physical, inBlockComment);
+			if (inBlockComment || endsWithContinue(line)) {
+				if (!inBlockComment) {
+					line.setLength(line.length() - 1);
+				}
+				continue;
+			}
+			String text = line.toString().trim();
+			line.setLength(0);
+			if (!text.isEmpty()) {
+				if (out.length() > 0) {
+					out.append(NSISStatements.NEWLINE_MARKER);
+				}
+				out.append(text);
+				lineMap.add(lineStart);
+			}
+		}
+		if (out.length() > 0) {
+			out.append(NSISStatements.NEWLINE_MARKER);
+		}
+		return out.toString();
+	}
+
+	private static String sourceLine(String marker) {
+		int index = marker.indexOf(' ');
+		if (index == -1) {
+			return marker;
+		}
+		return marker.substring(index + 1) + ":"
+				+ Integer.parseInt(marker.substring(0, index));
+	}
+
+	private static boolean endsWithContinue(StringBuilder line) {
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) == ' ') {
+			end--;
+		}
+		line.setLength(end);
+		return end > 0 && line.charAt(end - 1) == '\\';
+	}
+
+	/**
+	 * Appends the physical line without comments and with whitespace
+	 * collapsed. Returns <code>true</code> if a comment block continues on
+	 * the next line.
+	 */
+	private static boolean append(StringBuilder line, String physical,
+			boolean inBlockComment) {
+		char quote = 0;
+		int i = 0;
+		while (i < physical.length()) {
+			char c = physical.charAt(i);
+			if (inBlockComment) {
+				if (physical.startsWith("*/", i)) {
+					inBlockComment = false;
+					i++;
+				}
+			} else if (quote != 0) {
+				line.append(c);
+				if (c == '$' && physical.startsWith("\\", i + 1)
+						&& i + 2 < physical.length()) {
+					// Escaped character
+					line.append(physical, i + 1, i + 3);
+					i += 2;
+				} else if (c == quote) {
+					quote = 0;
+				}
+			} else if (physical.startsWith("/*", i)) {
+				inBlockComment = true;
+				i++;
+			} else if ((c == ';' || c == '#') && isWordStart(line)) {
+				break;
+			} else if (Character.isWhitespace(c)) {
+				if (line.length() > 0 && line.charAt(line.length() - 1) != ' ') {
+					line.append(' ');
+				}
+			} else {
+				if (c == '"' || c == '\'' || c == '`') {
+					quote = c;
+				}
+				line.append(c);
+			}
+			i++;
+		}
+		return inBlockComment;
+	}
+
+	private static boolean isWordStart(StringBuilder line) {
+		return line.length() == 0 || line.charAt(line.length() - 1) == ' ';
+	}
+
+}
@@ -1,6 +1,8 @@
 package bridlensis;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import bridlensis.env.Callable;
 import bridlensis.env.ComparisonStatement;
@@ -17,6 +19,15 @@ public class NSISStatements {
 
 	public static final String DEFAULT_INDENT = "    ";
 	public static final String NEWLINE_MARKER = "\r\n";
+	public static final String LINE_MARKER = ";@line ";
+	public static final Pattern LINE_CONTINUE = Pattern
+			.compile("\\\\[ \\t]*\\r?\\n");
+
+	private static final String PROFILE_PREFIX = "bridle.profile.";
+	private static final String PROFILE_TICK = "$" + PROFILE_PREFIX + "tick";
+	private static final String PROFILE_FILE = "$" + PROFILE_PREFIX + "file";
+	private static final String PROFILE_WRITE = PROFILE_PREFIX + "write";
+	private static final String GET_TICK_COUNT = "System::Call \"kernel32::GetTickCount()i.s\"";
 
 	private static StringBuilder begin(String indent) {
 		StringBuilder sb = new StringBuilder(80);
@@ -24,6 +35,19 @@ public class NSISStatements {
 		return sb;
 	}
 
+	/**
+	 * Comment telling the source line of the following statement to
+	 * {@link Minifier}.
+	 */
+	public static String lineMarker(int line) {
+		return LINE_MARKER + line;
+	}
+
+	public static String lineMarker(int line, String fileName) {
+		return fileName == null ? lineMarker(line) : LINE_MARKER + line + " "
+				+ fileName;
+	}
+
 	public static String nullDefine() {
 		StringBuilder sb = new StringBuilder(80);
 		sb.append("!ifndef BRIDLE_NULL");
@@ -55,20 +79,42 @@ public class NSISStatements {
 	}
 
 	public static String functionBegin(String indent, UserFunction function) {
-		StringBuilder sb = begin(indent);
-		sb.append("Function ");
-		sb.append(function.getName());
-		for (int i = 0; i < function.getArgsCount(); i++) {
+		StringBuilder sb = new StringBuilder(80);
+		if (function.isProfile()) {
+			sb.append(profileDeclare(indent, function));
 			sb.append(NEWLINE_MARKER);
-			if (indent.length() != 0) {
-				sb.append(indent);
+			String callback = profileCallback(function.getName());
+			if (callback != null) {
 				sb.append(indent);
-			} else {
-				sb.append(DEFAULT_INDENT);
+				sb.append("!define ");
+				sb.append(callback);
+				sb.append(NEWLINE_MARKER);
 			}
+		}
+		sb.append(indent);
+		sb.append("Function ");
+		sb.append(function.getName());
+		String bodyIndent = indent.length() != 0 ? indent + indent
+				: DEFAULT_INDENT;
+		int pops = function.isRegisterCall() ? 0 : function.getArgsCount();
+		for (int i = 0; i < pops; i++) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(bodyIndent);
 			sb.append("Pop ");
 			sb.append(function.getArgument(i).getValue());
 		}
+		if (function.isProfile()) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(bodyIndent);
+			sb.append(intAdd(profileCounter(function, "calls"), "1"));
+			if (profileCallback(function.getName()) != null) {
+				// Counters are written before the rest of the callback
+				sb.append(NEWLINE_MARKER);
+				sb.append(bodyIndent);
+				sb.append("Call ");
+				sb.append(profileWriter(function.getName()));
+			}
+		}
 		return sb.toString();
 	}
 
@@ -91,6 +137,203 @@ public class NSISStatements {
 		return sb.toString();
 	}
 
+	/**
+	 * Declares the profiling counters of the function. The declarations are
+	 * guarded so that they may be repeated wherever the counters are used.
+	 */
+	public static String profileDeclare(String indent, UserFunction function) {
+		return guardedDeclare(indent, "BRIDLE_PROFILE_" + function.getName(),
+				profileCounter(function, "calls"),
+				profileCounter(function, "timed"),
+				profileCounter(function, "ms"),
+				profileCounter(function, "depth"));
+	}
+
+	/**
+	 * Wraps the call of the function in instructions adding the elapsed
+	 * milliseconds to the profiling counters. The start time is kept in the
+	 * stack and only the outermost of recursive calls is timed, so that the
+	 * time of the inner calls isn't counted twice.
+	 */
+	public static String profileCall(String indent, UserFunction function,
+			String call) {
+		String ms = profileCounter(function, "ms");
+		String depth = profileCounter(function, "depth");
+		String outermost = "IntCmp " + depth + " 0 0 +%d +%d";
+		StringBuilder sb = new StringBuilder();
+		sb.append(guardedDeclare(indent, "BRIDLE_PROFILE", PROFILE_TICK,
+				PROFILE_FILE));
+		sb.append(NEWLINE_MARKER);
+		sb.append(profileDeclare(indent, function));
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append(intAdd(depth, "1"));
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append(GET_TICK_COUNT);
+		sb.append(NEWLINE_MARKER);
+		sb.append(call);
+		// Relative jumps skip plain instructions only, not plug-in calls
+		for (String line : new String[] { intOp(depth, depth, "-", "1"),
+				GET_TICK_COUNT, "Pop " + PROFILE_TICK,
+				String.format(outermost, 2, 2), intAdd(ms, PROFILE_TICK),
+				"Pop " + PROFILE_TICK, String.format(outermost, 3, 3),
+				intOp(ms, ms, "-", PROFILE_TICK),
+				intAdd(profileCounter(function, "timed"), "1") }) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(indent);
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Functions appending the profiling counters of the functions to the log
+	 * file <code>${BRIDLE_PROFILE_LOG}</code> and <code>.onGUIEnd</code>
+	 * callbacks calling them unless defined in the script.
+	 */
+	public static String profileLog(Collection<UserFunction> functions) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(NEWLINE_MARKER);
+		sb.append("!ifndef BRIDLE_PROFILE_LOG");
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("!define BRIDLE_PROFILE_LOG \"$TEMP\\BridleNSIS.profile\"");
+		sb.append(NEWLINE_MARKER);
+		sb.append("!endif");
+		sb.append(NEWLINE_MARKER);
+		sb.append(guardedDeclare("", "BRIDLE_PROFILE", PROFILE_TICK,
+				PROFILE_FILE));
+		sb.append(NEWLINE_MARKER);
+		boolean uninstaller = false;
+		for (UserFunction function : functions) {
+			sb.append(profileDeclare("", function));
+			sb.append(NEWLINE_MARKER);
+			uninstaller |= function.getName().toLowerCase().startsWith("un.");
+		}
+		sb.append(NEWLINE_MARKER);
+		sb.append("!macro BRIDLE_PROFILE_WRITE");
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("FileOpen " + PROFILE_FILE + " \"${BRIDLE_PROFILE_LOG}\" a");
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("FileSeek " + PROFILE_FILE + " 0 END");
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("FileWrite " + PROFILE_FILE + " \"run$\\t$EXEFILE$\\r$\\n\"");
+		for (UserFunction function : functions) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(DEFAULT_INDENT);
+			sb.append("FileWrite ");
+			sb.append(PROFILE_FILE);
+			sb.append(" \"");
+			sb.append(function.getName());
+			sb.append("$\\t");
+			sb.append(profileCounter(function, "calls"));
+			sb.append("$\\t");
+			sb.append(profileCounter(function, "timed"));
+			sb.append("$\\t");
+			sb.append(profileCounter(function, "ms"));
+			sb.append("$\\r$\\n\"");
+		}
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("FileClose " + PROFILE_FILE);
+		sb.append(NEWLINE_MARKER);
+		sb.append("!macroend");
+		sb.append(NEWLINE_MARKER);
+		sb.append(profileCallbackFunctions(".onGUIEnd"));
+		if (uninstaller) {
+			sb.append(profileCallbackFunctions("un.onGUIEnd"));
+		}
+		return sb.toString();
+	}
+
+	private static String profileCallbackFunctions(String callback) {
+		String writer = profileWriter(callback);
+		StringBuilder sb = new StringBuilder();
+		sb.append(NEWLINE_MARKER);
+		sb.append("Function ");
+		sb.append(writer);
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("!insertmacro BRIDLE_PROFILE_WRITE");
+		sb.append(NEWLINE_MARKER);
+		sb.append("FunctionEnd");
+		sb.append(NEWLINE_MARKER);
+		sb.append(NEWLINE_MARKER);
+		sb.append("!ifndef ");
+		sb.append(profileCallback(callback));
+		sb.append(NEWLINE_MARKER);
+		sb.append("Function ");
+		sb.append(callback);
+		sb.append(NEWLINE_MARKER);
+		sb.append(DEFAULT_INDENT);
+		sb.append("Call ");
+		sb.append(writer);
+		sb.append(NEWLINE_MARKER);
+		sb.append("FunctionEnd");
+		sb.append(NEWLINE_MARKER);
+		sb.append("!endif");
+		sb.append(NEWLINE_MARKER);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the define telling the script has the callback writing the
+	 * profiling log, or <code>null</code> if the function is not one.
+	 */
+	private static String profileCallback(String name) {
+		if (name.equalsIgnoreCase(".onGUIEnd")) {
+			return "BRIDLE_PROFILE_ONGUIEND";
+		} else if (name.equalsIgnoreCase("un.onGUIEnd")) {
+			return "BRIDLE_PROFILE_UNONGUIEND";
+		}
+		return null;
+	}
+
+	private static String profileWriter(String callback) {
+		return callback.toLowerCase().startsWith("un.") ? "un."
+				+ PROFILE_WRITE : PROFILE_WRITE;
+	}
+
+	private static String profileCounter(UserFunction function, String name) {
+		return "$" + PROFILE_PREFIX + function.getName() + "." + name;
+	}
+
+	private static String guardedDeclare(String indent, String guard,
+			String... variables) {
+		StringBuilder sb = begin(indent);
+		sb.append("!ifndef ");
+		sb.append(guard);
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append(DEFAULT_INDENT);
+		sb.append("!define ");
+		sb.append(guard);
+		for (String variable : variables) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(indent);
+			sb.append(DEFAULT_INDENT);
+			sb.append("Var /GLOBAL ");
+			sb.append(variable.substring(1));
+		}
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append("!endif");
+		return sb.toString();
+	}
+
+	private static String intAdd(String variable, String value) {
+		return intOp(variable, variable, "+", value);
+	}
+
+	private static String intOp(String target, String left, String operator,
+			String right) {
+		return "IntOp " + target + " " + left + " " + operator + " " + right;
+	}
+
 	public static String include(String indent, String filename) {
 		StringBuilder sb = begin(indent);
 		sb.append("!include \"");
@@ -99,6 +342,27 @@ public class NSISStatements {
 		return sb.toString();
 	}
 
+	/**
+	 * Wraps the code of an inlined include file in a guard so that it is
+	 * compiled once although written at each <code>!include</code> of it.
+	 */
+	public static String inlined(String indent, int id, String code) {
+		String guard = "BRIDLE_INLINED_" + id;
+		StringBuilder sb = begin(indent);
+		sb.append("!ifndef ");
+		sb.append(guard);
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append("!define ");
+		sb.append(guard);
+		sb.append(NEWLINE_MARKER);
+		sb.append(code);
+		sb.append(NEWLINE_MARKER);
+		sb.append(indent);
+		sb.append("!endif");
+		return sb.toString();
+	}
+
 	public static String logicLibComparisonStatement(String indent,
 			ComparisonStatement statement) {
 		return logicLibComparisonStatement(indent, "", statement);
@@ -154,6 +418,80 @@ public class NSISStatements {
 		return sb.toString();
 	}
 
+	public static String strCmp(String indent, boolean caseSensitive,
+			TypeObject left, TypeObject right, String jumpEqual,
+			String jumpNotEqual) {
+		StringBuilder sb = begin(indent);
+		sb.append(caseSensitive ? "StrCmpS " : "StrCmp ");
+		sb.append(left.getValue());
+		sb.append(' ');
+		sb.append(right.getValue());
+		sb.append(' ');
+		sb.append(jumpEqual);
+		sb.append(' ');
+		sb.append(jumpNotEqual);
+		return sb.toString();
+	}
+
+	public static String intCmp(String indent, TypeObject left,
+			TypeObject right, String jumpEqual, String jumpLess,
+			String jumpMore) {
+		StringBuilder sb = begin(indent);
+		sb.append("IntCmp ");
+		sb.append(left.getValue());
+		sb.append(' ');
+		sb.append(right.getValue());
+		sb.append(' ');
+		sb.append(jumpEqual);
+		sb.append(' ');
+		sb.append(jumpLess);
+		sb.append(' ');
+		sb.append(jumpMore);
+		return sb.toString();
+	}
+
+	public static String flagTest(String indent, String instruction,
+			TypeObject arg, String jumpTrue, String jumpFalse) {
+		StringBuilder sb = begin(indent);
+		sb.append(instruction);
+		if (arg != null) {
+			sb.append(' ');
+			sb.append(arg.getValue());
+		}
+		sb.append(' ');
+		sb.append(jumpTrue);
+		sb.append(' ');
+		sb.append(jumpFalse);
+		return sb.toString();
+	}
+
+	public static String logicLibJump(String indent,
+			ComparisonStatement statement, String jumpTrue, String jumpFalse) {
+		boolean fallThrough = jumpTrue.equals("0");
+		StringBuilder sb = begin(indent);
+		sb.append(fallThrough ? "${IfNotThen}" : "${IfThen}");
+		for (TypeObject left : statement.getLeft()) {
+			sb.append(' ');
+			sb.append(left.getValue());
+		}
+		if (statement.getCompare() != null) {
+			sb.append(' ');
+			sb.append(statement.getCompare());
+		}
+		for (TypeObject right : statement.getRight()) {
+			sb.append(' ');
+			sb.append(right.getValue());
+		}
+		sb.append(" ${|} ");
+		sb.append(goTo("", fallThrough ? jumpFalse : jumpTrue));
+		sb.append(" ${|}");
+		if (!fallThrough && !jumpFalse.equals("0")) {
+			sb.append(NEWLINE_MARKER);
+			sb.append(goTo(indent, jumpFalse));
+		}
+		return sb.toString();
+	}
+
 	public static String label(String indent, String label) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(indent);
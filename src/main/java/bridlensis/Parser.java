@@ -2,17 +2,34 @@ package bridlensis;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
+import bridlensis.env.Callable.ReturnType;
 import bridlensis.env.EnvironmentException;
+import bridlensis.env.UserFunction;
 
 public class Parser {
 
@@ -21,6 +38,39 @@ public class Parser {
 
 	private static final Logger logger = Logger.getInstance();
 
+	/**
+	 * How excluded include files are made available to makensis.
+	 */
+	public static enum ExcludeMode {
+		/** Copy to the output directory unless already copied. */
+		COPY,
+		/** Include from the original location by absolute path. */
+		REFERENCE,
+		/** Hard link into the output directory. */
+		HARDLINK,
+		/** Symbolic link into the output directory. */
+		SYMLINK
+	}
+
+	private static final List<String> AUTO_INCLUDE_HEADERS = Arrays.asList(
+			"logiclib.nsh", "filefunc.nsh", "textfunc.nsh", "wordfunc.nsh");
+
+	/**
+	 * Include file parsed ahead of its turn and the messages logged while
+	 * parsing it.
+	 */
+	private static class ParsedAhead {
+
+		private final TranspileCache.Entry entry;
+		private final List<String> messages;
+
+		private ParsedAhead(TranspileCache.Entry entry, List<String> messages) {
+			this.entry = entry;
+			this.messages = messages;
+		}
+
+	}
+
 	private File baseDir;
 	private File outDir;
 	private String encoding;
@@ -29,6 +79,36 @@ public class Parser {
 	private int inputLines = 0;
 	private StatementParser statementParser;
 	private boolean insideMacro;
+	private boolean optimize = false;
+	private boolean autoInclude = false;
+	private Preprocessor preprocessor = null;
+	private Map<String, String> preprocessorDefines = null;
+	private boolean minify = false;
+	private boolean amalgamate = false;
+	private final Map<String, String> parsedFiles = new HashMap<>();
+	private final Map<String, String> inlinedFiles = new HashMap<>();
+	private final Map<String, String> resolvedFiles = new HashMap<>();
+	private final List<String> includeStack = new ArrayList<>();
+	private String inlineName = null;
+	private final List<ChangedFileOutputStream> outputFiles = new ArrayList<>();
+	private ExcludeMode excludeMode = ExcludeMode.COPY;
+	private boolean asyncCopy = true;
+	private ExecutorService copyExecutor = null;
+	private final List<Future<Void>> copies = new ArrayList<>();
+	private TranspileCache cache = null;
+	private CountingNameGenerator names = null;
+	private final SymbolLog symbols = new SymbolLog();
+	private final Map<String, String> fileHashes = new HashMap<>();
+	private boolean parallel = false;
+	private boolean ahead = false;
+	private ForkJoinPool pool = null;
+	private final Map<String, ForkJoinTask<ParsedAhead>> parsedAhead =
+			new HashMap<>();
+	private File workDir = null;
+	private boolean profile = false;
+	private Dependencies dependencies = null;
+	private int instructionsIn = 0;
+	private int instructionsOut = 0;
 
 	public Parser(StatementParser statementParser, File baseDir, File outDir,
 			String encoding, Collection<String> excludeFiles) {
@@ -40,6 +120,7 @@ public class Parser {
 		if (excludeFiles != null) {
 			this.excludeFiles.addAll(excludeFiles);
 		}
+		statementParser.setSymbolLog(symbols);
 	}
 
 	public int getInputLines() {
@@ -50,20 +131,285 @@ public class Parser {
 		return fileCount;
 	}
 
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+		statementParser.setOptimize(optimize);
+	}
+
+	/**
+	 * Include the needed NSIS header files at the top of the output instead
+	 * of the <code>!include</code> statements of the script.
+	 */
+	public void setAutoInclude(boolean autoInclude) {
+		this.autoInclude = autoInclude;
+	}
+
+	/**
+	 * Skip branches of conditional compiler commands that are never compiled
+	 * with the given defines.
+	 */
+	public void setPreprocessorDefines(Map<String, String> defines) {
+		this.preprocessorDefines = defines;
+		this.preprocessor = defines == null ? null : new Preprocessor(defines);
+		if (preprocessor != null) {
+			preprocessor.setSymbolLog(symbols);
+		}
+	}
+
+	/**
+	 * Strip comments, blank lines and extra whitespace from the output files
+	 * and write a line map (<code>.map</code>) next to each of them.
+	 */
+	public void setMinify(boolean minify) {
+		this.minify = minify;
+	}
+
+	/**
+	 * Inline the followed include files into the output file instead of
+	 * writing a converted file for each of them. Files included more than
+	 * once are inlined only at the first <code>!include</code>.
+	 */
+	public void setAmalgamate(boolean amalgamate) {
+		this.amalgamate = amalgamate;
+	}
+
+	/**
+	 * Restore each parsed file from the cache if the file and the symbols it
+	 * reads are unchanged, and store it to the cache otherwise. The names
+	 * given to the statement parser must be generated by the given generator.
+	 */
+	public void setCache(TranspileCache cache, CountingNameGenerator names) {
+		this.cache = cache;
+		this.names = names;
+	}
+
+	/**
+	 * Parse the include files of the script concurrently on a fork-join pool
+	 * ahead of their turn. A file parsed ahead is used in its turn if the
+	 * symbols it read still have the same values, and parsed again
+	 * otherwise, so the output is the same as parsing the files in turn. The
+	 * names given to the statement parser must be generated by the given
+	 * generator.
+	 */
+	public void setParallel(boolean parallel, CountingNameGenerator names) {
+		this.parallel = parallel;
+		this.names = names;
+	}
+
+	/**
+	 * Instrument the functions to count their calls and time the calls, and
+	 * write the counters to a log file when the installer exits.
+	 */
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+		statementParser.setProfile(profile);
+	}
+
+	public void setExcludeMode(ExcludeMode excludeMode) {
+		this.excludeMode = excludeMode;
+	}
+
+	/**
+	 * Write the files the output depends on as a Makefile dependency file
+	 * (<code>.d</code>) and a JSON manifest (<code>.json</code>) next to the
+	 * output file. Payload files are resolved relative to the given makensis
+	 * work directory.
+	 */
+	public void setDependencies(File workDir) {
+		this.workDir = workDir;
+	}
+
+	public int getSkippedStatements() {
+		return preprocessor == null ? 0 : preprocessor.getSkipped();
+	}
+
+	public int getOutputFileCount() {
+		return outputFiles.size();
+	}
+
+	/**
+	 * Number of output files written because their content changed.
+	 */
+	public int getRewrittenFileCount() {
+		int count = 0;
+		for (ChangedFileOutputStream outputFile : outputFiles) {
+			if (outputFile.isRewritten()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public int getInstructionsIn() {
+		return instructionsIn;
+	}
+
+	public int getInstructionsOut() {
+		return instructionsOut;
+	}
+
 	public void parse(String inputFileName, String outputFileName)
 			throws IOException, ParserException {
+		try (BufferedWriter writer = getOutputWriter(outputFileName)) {
+			parse(inputFileName, outputFileName, writer);
+		}
+	}
+
+	/**
+	 * Writes the converted script to the given stream, e.g. standard input
+	 * of makensis, as it is parsed. Converted include files and line maps
+	 * are written to the output directory as usual. The stream is flushed
+	 * when the parsing succeeds and left open for the caller to close, so
+	 * that a failed parse doesn't end the stream.
+	 */
+	public void parse(String inputFileName, String outputFileName,
+			OutputStream out) throws IOException, ParserException {
+		// makensis may read the includes before the parsing ends
+		asyncCopy = false;
+		BufferedWriter writer = getWriter(out);
+		parse(inputFileName, outputFileName, writer);
+		writer.flush();
+	}
+
+	private void parse(String inputFileName, String outputFileName,
+			BufferedWriter writer) throws IOException, ParserException {
 		insideMacro = false;
 		File inputFile = new File(baseDir, inputFileName);
 		logger.debug("Begin parse file: " + inputFile.getAbsolutePath());
-		try (BufferedWriter writer = getOutputWriter(outputFileName)) {
-			writer.write(NSISStatements.nullDefine());
-			parseFile(inputFile, writer);
+		if (workDir != null) {
+			dependencies = new Dependencies(workDir);
+			dependencies.setSymbolLog(symbols);
+		}
+		if (statementParser.isRegisterCalls()) {
+			CallGraph callGraph = new CallGraph(baseDir, encoding,
+					excludeFiles);
+			callGraph.scanFile(inputFile);
+			statementParser.setCallGraph(callGraph);
+		}
+		if (parallel && !amalgamate) {
+			// Inlined files depend on the number of files inlined before
+			parseAhead(inputFile);
+		}
+		try {
+			if (autoInclude || minify) {
+				// Headers are known and code can be minified only after
+				// parsing the whole script
+				String code = parseToString(inputFile);
+				code = NSISStatements.nullDefine()
+						+ (autoInclude ? headerIncludes() : "") + code
+						+ (profile ? profileLog() : "");
+				writer.write(minify ? minify(inputFile, outputFileName, code)
+						: code);
+			} else {
+				writer.write(NSISStatements.nullDefine());
+				parseFile(inputFile, writer);
+				if (profile) {
+					writer.write(profileLog());
+				}
+			}
+			if (dependencies != null) {
+				writeDependencies(outputFileName);
+			}
+			awaitCopies();
+		} finally {
+			releaseCopies();
+			releaseParsedAhead();
+			dependencies = null;
 		}
 	}
 
+	private void releaseCopies() {
+		if (copyExecutor != null) {
+			copyExecutor.shutdownNow();
+			copyExecutor = null;
+		}
+		copies.clear();
+	}
+
+	private void awaitCopies() throws IOException, ParserException {
+		for (Future<Void> copy : copies) {
+			try {
+				copy.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ParserException) {
+					throw (ParserException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private String parseToString(File inputFile) throws IOException,
+			ParserException {
+		StringWriter buffer = new StringWriter();
+		try (BufferedWriter bufferWriter = new BufferedWriter(buffer)) {
+			parseFile(inputFile, bufferWriter);
+		}
+		return buffer.toString();
+	}
+
+	private String minify(File inputFile, String outputFileName, String code)
+			throws IOException {
+		Minifier minifier = new Minifier();
+		String minified = minifier.minify(code);
+		File mapFile = new File(outDir, outputFileName + ".map");
+		logger.debug("Line map file: " + mapFile.getAbsolutePath());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				changedFileOutputStream(mapFile), "UTF-8"))) {
+			writer.write("; ");
+			writer.write(inputFile.getName());
+			writer.write(NSISStatements.NEWLINE_MARKER);
+			for (String line : minifier.getLineMap()) {
+				writer.write(line);
+				writer.write(NSISStatements.NEWLINE_MARKER);
+			}
+		}
+		return minified;
+	}
+
+	private void writeDependencies(String outputFileName) throws IOException {
+		File outputFile = new File(outDir, outputFileName);
+		File depFile = new File(outDir, outputFileName + ".d");
+		logger.debug("Dependency file: " + depFile.getAbsolutePath());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				changedFileOutputStream(depFile), "UTF-8"))) {
+			dependencies.writeDepFile(writer, outputFile);
+		}
+		File manifestFile = new File(outDir, outputFileName + ".json");
+		logger.debug("Dependency manifest: " + manifestFile.getAbsolutePath());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				changedFileOutputStream(manifestFile), "UTF-8"))) {
+			dependencies.writeManifest(writer, outputFile);
+		}
+	}
+
+	private String profileLog() {
+		return NSISStatements.profileLog(statementParser
+				.getProfiledFunctions());
+	}
+
+	private String headerIncludes() {
+		StringBuilder sb = new StringBuilder();
+		for (String header : statementParser.getRequiredHeaders()) {
+			logger.debug("Include header file: " + header);
+			sb.append(NSISStatements.include("", header));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		if (sb.length() > 0) {
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		return sb.toString();
+	}
+
 	private BufferedWriter getOutputWriter(String outputFileName)
-			throws UnsupportedEncodingException, FileNotFoundException,
-			IOException {
+			throws UnsupportedEncodingException, IOException {
+		return getWriter(changedFileOutputStream(
+				getOutputFile(outputFileName)));
+	}
+
+	private File getOutputFile(String outputFileName) throws IOException {
 		File outputFile = new File(outDir, outputFileName);
 		File outDirPath = outputFile.getParentFile();
 		if (!outDirPath.exists() || !outDirPath.isDirectory()) {
@@ -73,8 +419,21 @@ public class Parser {
 			}
 		}
 		logger.debug("Output file: " + outputFile.getAbsolutePath());
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(outputFile), encoding));
+		return outputFile;
+	}
+
+	private OutputStream changedFileOutputStream(File file) {
+		ChangedFileOutputStream out = new ChangedFileOutputStream(file);
+		// Written when the file parsed ahead takes its turn
+		out.setDryRun(ahead);
+		outputFiles.add(out);
+		return out;
+	}
+
+	private BufferedWriter getWriter(OutputStream out)
+			throws UnsupportedEncodingException, IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out,
+				encoding));
 		if (encoding.equalsIgnoreCase("UTF-16LE")) {
 			writer.write(UTF16LE_BOM);
 		} else if (encoding.equalsIgnoreCase("UTF-16BE")) {
@@ -83,14 +442,517 @@ public class Parser {
 		return writer;
 	}
 
+	/**
+	 * Parses the file, restores it from the cache or takes it parsed ahead.
+	 * A file is cached and parsed ahead only when parsed outside functions,
+	 * blocks and macros. Known values are forgotten after the file, because a
+	 * restored file doesn't know them.
+	 */
 	private void parseFile(File inputFile, BufferedWriter writer)
 			throws IOException, ParserException {
+		if (insideMacro || !statementParser.isTopLevel()) {
+			parseSource(inputFile, writer);
+		} else if (cache != null) {
+			String key = TranspileCache.keyOf(inputFile,
+					Files.readAllBytes(inputFile.toPath()));
+			if (!restore(inputFile, key, writer)
+					&& !restoreParsedAhead(inputFile, writer)) {
+				TranspileCache.Entry entry = record(inputFile, key, writer);
+				if (entry != null) {
+					store(entry);
+				}
+			}
+		} else if (!restoreParsedAhead(inputFile, writer)) {
+			parseSource(inputFile, writer);
+		}
+		statementParser.forgetKnownValues();
+	}
+
+	/**
+	 * Parses the file and records the symbols it reads and changes to a new
+	 * entry. Returns <code>null</code> if the file ends in a block, e.g. a
+	 * function, so that it cannot be restored on its own.
+	 */
+	private TranspileCache.Entry record(File inputFile, String key,
+			BufferedWriter writer) throws IOException, ParserException {
+		TranspileCache.Entry entry = new TranspileCache.Entry(key);
+		int nesting = getNesting();
+		int outputIndex = outputFiles.size();
+		int namesStart = names.getCount();
+		int linesStart = inputLines;
+		int filesStart = fileCount;
+		int skippedStart = getSkippedStatements();
+		int instructionsInStart = instructionsIn;
+		int instructionsOutStart = instructionsOut;
+		symbols.begin(entry);
+		symbols.read("inline", inlineNameValue());
+		if (preprocessor != null) {
+			preprocessor.readCertain();
+		}
+		StringWriter buffer = new StringWriter();
+		try (BufferedWriter bufferWriter = new BufferedWriter(buffer)) {
+			parseSource(inputFile, bufferWriter);
+		} finally {
+			symbols.end(entry);
+		}
+		writer.write(buffer.toString());
+		if (insideMacro || !statementParser.isTopLevel()
+				|| getNesting() != nesting) {
+			logger.debug("Not recording file ending in a block: "
+					+ inputFile.getAbsolutePath());
+			return null;
+		}
+		entry.setText(buffer.toString());
+		for (ChangedFileOutputStream outputFile : outputFiles.subList(
+				outputIndex, outputFiles.size())) {
+			entry.addOutput(outputName(outputFile.getFile()),
+					outputFile.toByteArray());
+		}
+		for (UserFunction function : entry.getFunctions()) {
+			entry.change(null, functionChange(function));
+		}
+		if (names.getCount() > namesStart) {
+			entry.read("names", String.valueOf(namesStart));
+			entry.setGeneratedNames(names.getCount() - namesStart);
+		}
+		entry.setInputLines(inputLines - linesStart);
+		entry.setFileCount(fileCount - filesStart);
+		entry.setSkippedStatements(getSkippedStatements() - skippedStart);
+		entry.setInstructions(instructionsIn - instructionsInStart,
+				instructionsOut - instructionsOutStart);
+		return entry;
+	}
+
+	private void store(TranspileCache.Entry entry) {
+		try {
+			cache.store(entry);
+		} catch (IOException e) {
+			logger.warn("Unable to write cache: " + e.getMessage());
+		}
+	}
+
+	private int getNesting() {
+		return preprocessor == null ? 0 : preprocessor.getNesting();
+	}
+
+	private String inlineNameValue() {
+		return inlineName == null ? "-" : "=" + inlineName;
+	}
+
+	private String outputName(File file) {
+		return outDir.getAbsoluteFile().toPath()
+				.relativize(file.getAbsoluteFile().toPath()).toString();
+	}
+
+	private static String[] functionChange(UserFunction function) {
+		List<String> change = new ArrayList<>();
+		change.add("function");
+		change.add(function.getName());
+		change.add(String.valueOf(function.getReturnType() != ReturnType.VOID));
+		change.add(String.valueOf(function.isRegisterCall()));
+		change.add(String.valueOf(function.isProfile()));
+		for (int i = 0; i < function.getArgsCount(); i++) {
+			change.add(function.getArgument(i).getName());
+		}
+		return change.toArray(new String[change.size()]);
+	}
+
+	/**
+	 * Restores the file from the cache entry with the given key if the
+	 * symbols the file read have the same values as when it was stored.
+	 */
+	private boolean restore(File inputFile, String key, BufferedWriter writer)
+			throws IOException, ParserException {
+		TranspileCache.Entry entry;
+		try {
+			entry = cache.lookup(key);
+		} catch (IOException e) {
+			logger.info("Unable to read cache: " + e.getMessage());
+			return false;
+		}
+		if (entry == null || !isCurrent(inputFile, entry)) {
+			return false;
+		}
+		logger.info("Restored from cache: " + inputFile.getAbsolutePath());
+		names.skip(entry.getGeneratedNames());
+		apply(inputFile, entry, writer);
+		return true;
+	}
+
+	/**
+	 * Takes the file parsed ahead if the symbols the file read have the same
+	 * values now. The file takes the next names from the name generator,
+	 * which replace the placeholders of the names it generated.
+	 */
+	private boolean restoreParsedAhead(File inputFile, BufferedWriter writer)
+			throws IOException, ParserException {
+		if (parsedAhead.isEmpty()) {
+			return false;
+		}
+		ForkJoinTask<ParsedAhead> task = parsedAhead.remove(inputFile
+				.getCanonicalPath());
+		if (task == null) {
+			return false;
+		}
+		ParsedAhead result;
+		try {
+			result = task.get();
+		} catch (ExecutionException e) {
+			// Parsed again to report the error in turn
+			logger.debug(String.format("Unable to parse %s ahead: %s",
+					inputFile.getAbsolutePath(), e.getCause()));
+			return false;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		TranspileCache.Entry entry = result.entry;
+		if (entry == null) {
+			return false;
+		}
+		// Placeholders don't depend on the names generated before
+		entry.getSymbols().remove("names");
+		if (!isCurrent(inputFile, entry)) {
+			return false;
+		}
+		int namesStart = names.getCount();
+		if (entry.getGeneratedNames() > 0) {
+			List<String> generated = new ArrayList<>();
+			for (int i = 0; i < entry.getGeneratedNames(); i++) {
+				generated.add(names.generate());
+			}
+			rename(entry, generated);
+			entry.read("names", String.valueOf(namesStart));
+		}
+		logger.print(result.messages);
+		logger.debug("Parsed ahead: " + inputFile.getAbsolutePath());
+		apply(inputFile, entry, writer);
+		if (cache != null) {
+			store(entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the placeholder names in the entry with the generated names.
+	 */
+	private void rename(TranspileCache.Entry entry, List<String> generated)
+			throws UnsupportedEncodingException {
+		Map<String, String> symbols = new LinkedHashMap<>(entry.getSymbols());
+		entry.getSymbols().clear();
+		for (Map.Entry<String, String> symbol : symbols.entrySet()) {
+			entry.getSymbols().put(
+					PlaceholderNameGenerator.replace(symbol.getKey(),
+							generated),
+					PlaceholderNameGenerator.replace(symbol.getValue(),
+							generated));
+		}
+		for (List<String> change : entry.getChanges()) {
+			for (int i = 0; i < change.size(); i++) {
+				change.set(i, PlaceholderNameGenerator.replace(change.get(i),
+						generated));
+			}
+		}
+		for (Map.Entry<String, byte[]> output : entry.getOutputs().entrySet()) {
+			output.setValue(PlaceholderNameGenerator.replace(
+					new String(output.getValue(), encoding), generated)
+					.getBytes(encoding));
+		}
+		entry.setText(PlaceholderNameGenerator.replace(entry.getText(),
+				generated));
+	}
+
+	/**
+	 * Replays the changes of the entry and writes its output instead of
+	 * parsing the file.
+	 */
+	private void apply(File inputFile, TranspileCache.Entry entry,
+			BufferedWriter writer) throws IOException, ParserException {
+		for (Map.Entry<String, String> symbol : entry.getSymbols().entrySet()) {
+			if (!symbol.getKey().equals("names")) {
+				// Files including this file depend on the same symbols
+				symbols.read(symbol.getKey(), symbol.getValue());
+			}
+		}
+		try {
+			for (List<String> change : entry.getChanges()) {
+				replay(change);
+			}
+		} catch (EnvironmentException e) {
+			throw new ParserException(inputFile.getAbsolutePath(), 0, e);
+		}
+		for (Map.Entry<String, byte[]> output : entry.getOutputs().entrySet()) {
+			try (OutputStream out = changedFileOutputStream(getOutputFile(output
+					.getKey()))) {
+				out.write(output.getValue());
+			}
+		}
+		writer.write(entry.getText());
+		inputLines += entry.getInputLines();
+		fileCount += entry.getFileCount();
+		if (preprocessor != null) {
+			preprocessor.addSkipped(entry.getSkippedStatements());
+		}
+		instructionsIn += entry.getInstructionsIn();
+		instructionsOut += entry.getInstructionsOut();
+	}
+
+	/**
+	 * Starts parsing the include files followed from the top level of the
+	 * script on a fork-join pool. Each file starts with the declarations
+	 * found before it by a scan of the script and its include files, and
+	 * takes placeholders for the names it generates.
+	 */
+	private void parseAhead(File inputFile) throws IOException {
+		DeclarationScanner scanner = new DeclarationScanner(baseDir, encoding,
+				excludeFiles, autoInclude && excludeFiles.isEmpty()
+						? AUTO_INCLUDE_HEADERS
+						: Collections.<String> emptyList());
+		scanner.scanFile(inputFile);
+		if (scanner.containsPlaceholders()) {
+			logger.info("Include files parsed in turn, the script contains "
+					+ PlaceholderNameGenerator.PREFIX);
+			return;
+		}
+		final List<List<String>> declarations = scanner.getDeclarations();
+		final String rootPath = inputFile.getCanonicalPath();
+		pool = new ForkJoinPool();
+		for (final DeclarationScanner.Include include : scanner.getIncludes()) {
+			parsedAhead.put(include.getPath(),
+					pool.submit(new Callable<ParsedAhead>() {
+
+						@Override
+						public ParsedAhead call() throws IOException,
+								ParserException {
+							logger.hold();
+							try {
+								return new ParsedAhead(parseAhead(
+										include.getFile(), rootPath,
+										declarations.subList(0,
+												include.getDeclarations())),
+										logger.release());
+							} finally {
+								logger.release();
+							}
+						}
+
+					}));
+		}
+	}
+
+	/**
+	 * Parses the include file with a new parser of the same options, as if
+	 * included from the top level of the script after the declarations.
+	 * Runs on the fork-join pool.
+	 */
+	private TranspileCache.Entry parseAhead(File inputFile, String rootPath,
+			List<List<String>> declarations) throws IOException,
+			ParserException {
+		CountingNameGenerator placeholders = new CountingNameGenerator(
+				new PlaceholderNameGenerator());
+		Parser parser = new Parser(statementParser.copy(placeholders),
+				baseDir, outDir, encoding, excludeFiles);
+		parser.ahead = true;
+		parser.names = placeholders;
+		parser.optimize = optimize;
+		parser.autoInclude = autoInclude;
+		parser.minify = minify;
+		parser.excludeMode = excludeMode;
+		parser.profile = profile;
+		parser.setPreprocessorDefines(preprocessorDefines);
+		if (workDir != null) {
+			parser.dependencies = new Dependencies(workDir);
+			parser.dependencies.setSymbolLog(parser.symbols);
+		}
+		for (List<String> declaration : declarations) {
+			try {
+				parser.declare(declaration);
+			} catch (EnvironmentException e) {
+				// Not declared by the parser either, e.g. a built-in variable
+			}
+		}
+		parser.includeStack.add(rootPath);
+		return parser.record(inputFile, TranspileCache.keyOf(inputFile,
+				Files.readAllBytes(inputFile.toPath())), new BufferedWriter(
+				new StringWriter()));
+	}
+
+	private void declare(List<String> declaration) throws IOException,
+			ParserException, EnvironmentException {
+		if (declaration.get(0).equals("declare")) {
+			statementParser.declareFunction(declaration.get(1),
+					Boolean.parseBoolean(declaration.get(2)),
+					declaration.subList(3, declaration.size()));
+		} else {
+			replay(declaration);
+		}
+	}
+
+	private void releaseParsedAhead() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		parsedAhead.clear();
+	}
+
+	private boolean isCurrent(File inputFile, TranspileCache.Entry entry)
+			throws IOException {
+		symbols.setPaused(true);
+		try {
+			for (Map.Entry<String, String> symbol : entry.getSymbols()
+					.entrySet()) {
+				if (!symbol.getValue().equals(symbolValue(symbol.getKey()))) {
+					logger.debug(String.format(
+							"Symbols read by %s outdated by %s",
+							inputFile.getAbsolutePath(), symbol.getKey()));
+					return false;
+				}
+			}
+			for (List<String> change : entry.getChanges()) {
+				if (change.get(0).equals("parsed")
+						&& includeStack.contains(change.get(1))) {
+					// Parse to report the include cycle
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			symbols.setPaused(false);
+		}
+	}
+
+	private String symbolValue(String symbol) throws IOException {
+		if (symbol.startsWith("file:")) {
+			return fileHash(new File(symbol.substring(5)));
+		} else if (symbol.startsWith("parsed:")) {
+			return parsedFileValue(symbol.substring(7));
+		} else if (symbol.equals("parsed")) {
+			return String.valueOf(parsedFiles.size());
+		} else if (symbol.equals("inline")) {
+			return inlineNameValue();
+		} else if (symbol.equals("names")) {
+			return String.valueOf(names.getCount());
+		} else if (symbol.startsWith("var:")) {
+			try {
+				return statementParser.getEnvironment().containsVariable(
+						symbol.substring(4), null) ? "+" : "-";
+			} catch (EnvironmentException e) {
+				return null;
+			}
+		} else if (symbol.startsWith("fn:")) {
+			try {
+				return SymbolLog.describe(statementParser.getEnvironment()
+						.getCallable(symbol.substring(3)));
+			} catch (EnvironmentException e) {
+				return null;
+			}
+		}
+		String value = statementParser.symbolValue(symbol);
+		if (value == null && preprocessor != null) {
+			value = preprocessor.symbolValue(symbol);
+		}
+		return value;
+	}
+
+	private void replay(List<String> change) throws IOException,
+			ParserException, EnvironmentException {
+		switch (change.get(0)) {
+		case "variable":
+			statementParser.restoreVariable(change.get(1),
+					Boolean.parseBoolean(change.get(2)));
+			break;
+		case "function":
+			statementParser.restoreFunction(change.get(1),
+					Boolean.parseBoolean(change.get(2)),
+					Boolean.parseBoolean(change.get(3)),
+					Boolean.parseBoolean(change.get(4)),
+					change.subList(5, change.size()));
+			break;
+		case "stack":
+			statementParser.addStackCall(change.get(1));
+			break;
+		case "header":
+			statementParser.requireHeader(change.get(1));
+			break;
+		case "parsed":
+			addParsedFile(change.get(1),
+					change.size() > 2 ? change.get(2) : null);
+			break;
+		case "inlined":
+			addInlinedFile(change.get(1), change.get(2));
+			break;
+		case "exclude":
+			provideExcludedFile(new File(change.get(1)), change.get(2), 0);
+			break;
+		case "dependency":
+			if (dependencies != null) {
+				dependencies.replay(change.subList(1, change.size()));
+			}
+			break;
+		default:
+			if (preprocessor != null) {
+				preprocessor.replay(change);
+			}
+		}
+	}
+
+	/**
+	 * Returns the content hash of the file, or <code>-</code> if the file
+	 * doesn't exist. Files don't change during the compilation.
+	 */
+	private String fileHash(File file) throws IOException {
+		String path = file.getAbsolutePath();
+		if (!fileHashes.containsKey(path)) {
+			fileHashes.put(path, file.isFile() ? Hashes.sha256Hex(Files
+					.readAllBytes(file.toPath())) : "-");
+		}
+		return fileHashes.get(path);
+	}
+
+	private void parseSource(File inputFile, BufferedWriter writer)
+			throws IOException, ParserException {
 		InputReader reader = new InputReader(inputFile, encoding);
 		fileCount++;
+		includeStack.add(inputFile.getCanonicalPath());
+		if (dependencies != null) {
+			dependencies.addInput(inputFile);
+		}
 		try {
+			StringBuilder buffer = new StringBuilder();
 			while (reader.goToNextStatement()) {
-				writer.write(parseStatement(reader));
-				writer.write(NSISStatements.NEWLINE_MARKER);
+				if (preprocessor != null
+						&& !preprocessor.accept(reader.peekStatement())) {
+					// Complete comment blocks
+					reader.getCurrentStatement();
+					continue;
+				}
+				boolean deadCode = statementParser.isDeadCode();
+				String statement = parseStatement(reader);
+				if (deadCode && statementParser.isDeadCode() && !insideMacro) {
+					statement = StatementParser.deadCode(statement);
+				} else {
+					if (autoInclude) {
+						statementParser.requireHeaders(statement);
+					}
+					if (dependencies != null) {
+						dependencies.scan(statement);
+					}
+				}
+				if (minify) {
+					statement = NSISStatements.lineMarker(
+							reader.getStatementLine(), inlineName)
+							+ NSISStatements.NEWLINE_MARKER + statement;
+				}
+				if (optimize && inlineName == null) {
+					buffer.append(statement);
+					buffer.append(NSISStatements.NEWLINE_MARKER);
+				} else {
+					writer.write(statement);
+					writer.write(NSISStatements.NEWLINE_MARKER);
+				}
+			}
+			if (optimize && inlineName == null) {
+				writer.write(optimize(inputFile, buffer.toString()));
 			}
 			logger.debug(String.format("End parsing %d lines in file %s.",
 					reader.getLinesRead(), inputFile.getAbsolutePath()));
@@ -99,10 +961,24 @@ public class Parser {
 			throw new ParserException(inputFile.getAbsolutePath(),
 					reader.getLinesRead(), e);
 		} finally {
+			includeStack.remove(includeStack.size() - 1);
 			reader.close();
 		}
 	}
 
+	private String optimize(File inputFile, String code) {
+		PeepholeOptimizer optimizer = new PeepholeOptimizer(
+				statementParser.getTemporaries());
+		String optimized = optimizer.optimize(code);
+		logger.info(String.format(
+				"Optimized %s: %d instructions reduced to %d.",
+				inputFile.getName(), optimizer.getInstructionsIn(),
+				optimizer.getInstructionsOut()));
+		instructionsIn += optimizer.getInstructionsIn();
+		instructionsOut += optimizer.getInstructionsOut();
+		return optimized;
+	}
+
 	protected String parseStatement(InputReader reader)
 			throws InvalidSyntaxException, EnvironmentException,
 			ParserException {
@@ -115,6 +991,8 @@ public class Parser {
 		WordTail tail = reader.getWordTail();
 
 		if (tail.isCompilerCommand()) {
+			// Compiler command may change the compiled code
+			statementParser.forgetVariableValues();
 			String command = reader.nextWord().asName();
 			if (command.equals("include")) {
 				return parseInclude(reader);
@@ -144,20 +1022,38 @@ public class Parser {
 		} else if (keyword.equals("if") || keyword.equals("elseif")) {
 			return statementParser.parseIf(word, reader);
 		} else if (keyword.equals("else")) {
-			return NSISStatements.logicLibDefine(reader.getIndent(), "Else");
+			return statementParser.parseElse(reader);
 		} else if (keyword.equals("endif")) {
-			return NSISStatements.logicLibDefine(reader.getIndent(), "EndIf");
+			return statementParser.parseEndIf(reader);
 		} else if (keyword.equals("do")) {
 			return statementParser.parseDoLoop("Do", reader);
 		} else if (keyword.equals("continue")) {
-			return NSISStatements
-					.logicLibDefine(reader.getIndent(), "Continue");
+			return statementParser.parseContinue(reader);
 		} else if (keyword.equals("break")) {
-			return NSISStatements.logicLibDefine(reader.getIndent(), "Break");
+			return statementParser.parseBreak(reader);
 		} else if (keyword.equals("loop")) {
 			return statementParser.parseDoLoop("Loop", reader);
+		} else if (keyword.equals("select")) {
+			return statementParser.parseSelect(reader);
+		} else if (keyword.equals("case")) {
+			return statementParser.parseCase(reader);
+		} else if (keyword.equals("endselect")) {
+			return statementParser.parseEndSelect(reader);
 		}
 
+		// Plain NSIS statement may be a label or change any variable
+		statementParser.forgetVariableValues();
+		if (keyword.equals("call") && reader.hasNextWord()) {
+			statementParser.registerPlainCall(reader.nextWord().getValue(),
+					reader);
+		} else if (keyword.equals("getfunctionaddress")
+				&& reader.hasNextWord()) {
+			reader.nextWord();
+			if (reader.hasNextWord()) {
+				statementParser.registerPlainCall(
+						reader.nextWord().getValue(), reader);
+			}
+		}
 		return reader.getCurrentStatement();
 	}
 
@@ -166,30 +1062,58 @@ public class Parser {
 		String inputFileName = reader.nextWord().asBareString();
 		File inputFile = new File(baseDir, inputFileName);
 		String statement;
-		if (excludeFiles.contains(inputFileName)
+		if (autoInclude && excludeFiles.isEmpty()
+				&& AUTO_INCLUDE_HEADERS.contains(inputFileName.toLowerCase())) {
+			// Included at the top of the output if needed. Excluded files
+			// aren't scanned and may need the header themselves.
+			logger.info(reader, "Include file '" + inputFileName
+					+ "' omitted being included automatically.");
+			includeUnknown();
+			statement = "";
+		} else if (excludeFiles.contains(inputFileName)
 				|| excludeFiles.contains(inputFile.getAbsolutePath())) {
 			// Handle excluded file
 			logger.info(reader, "Include file '" + inputFileName
 					+ "' omitted being marked as excluded.");
+			if (dependencies != null) {
+				dependencies.addExcluded(inputFile);
+			}
+			includeUnknown();
 			String outputFileName = MakeBridleNSIS
 					.convertToBridleFilename(inputFileName);
-			File outputFile = new File(outDir, outputFileName);
-			copyFile(inputFile, outputFile, reader.getLinesRead());
+			if (excludeMode == ExcludeMode.REFERENCE) {
+				outputFileName = inputFile.getAbsolutePath();
+			} else {
+				provideExcludedFile(inputFile, outputFileName,
+						reader.getLinesRead());
+			}
 			statement = NSISStatements.include(reader.getIndent(),
 					outputFileName);
-		} else if (!inputFile.exists()) {
+		} else if (resolve(inputFile) == null) {
 			// Include file not found
 			logger.debug(reader, "Include file '" + inputFileName
 					+ "' not found, assuming it's found by NSIS.");
+			includeUnknown();
 			statement = reader.getCurrentStatement();
+		} else if (isParsed(resolve(inputFile))
+				|| includeStack.contains(resolve(inputFile))) {
+			statement = reuse(reader, inputFileName, inputFile);
+		} else if (amalgamate) {
+			statement = inline(reader, inputFileName, inputFile);
 		} else {
 			// Parse include file
 			logger.debug(reader,
 					"Follow include: " + inputFile.getAbsolutePath());
 			String outputFileName = MakeBridleNSIS
 					.convertToBridleFilename(inputFileName);
+			addParsedFile(resolve(inputFile), outputFileName);
 			try (BufferedWriter writer = getOutputWriter(outputFileName)) {
-				parseFile(inputFile, writer);
+				if (minify) {
+					writer.write(minify(inputFile, outputFileName,
+							parseToString(inputFile)));
+				} else {
+					parseFile(inputFile, writer);
+				}
 			} catch (IOException e) {
 				throw new InvalidSyntaxException(e.getMessage(), e);
 			}
@@ -199,21 +1123,208 @@ public class Parser {
 		return statement;
 	}
 
+	private boolean isParsed(String path) {
+		symbols.read("parsed:" + path, parsedFileValue(path));
+		return parsedFiles.containsKey(path);
+	}
+
+	private String parsedFileValue(String path) {
+		if (!parsedFiles.containsKey(path)) {
+			return "-";
+		} else if (parsedFiles.get(path) != null) {
+			return "=" + parsedFiles.get(path);
+		}
+		String code = inlinedFiles.get(path);
+		return code == null ? "*" : "#"
+				+ Hashes.sha256Hex(code.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Adds a file parsed to the given output file, or inlined if the output
+	 * file is <code>null</code>.
+	 */
+	private void addParsedFile(String path, String outputFileName) {
+		parsedFiles.put(path, outputFileName);
+		symbols.change("parsed");
+		if (outputFileName == null) {
+			symbols.change("parsed:" + path, "parsed", path);
+		} else {
+			symbols.change("parsed:" + path, "parsed", path, outputFileName);
+		}
+	}
+
+	private void addInlinedFile(String path, String code) {
+		inlinedFiles.put(path, code);
+		symbols.change("parsed:" + path, "inlined", path, code);
+	}
+
+	private void includeUnknown() {
+		if (preprocessor != null) {
+			preprocessor.includeUnknown();
+		}
+	}
+
+	/**
+	 * Returns the canonical path of the file or <code>null</code> if the
+	 * file doesn't exist. Results are cached for the compilation.
+	 */
+	private String resolve(File file) throws InvalidSyntaxException {
+		String path = file.getAbsolutePath();
+		try {
+			if (!resolvedFiles.containsKey(path)) {
+				resolvedFiles.put(path,
+						file.exists() ? file.getCanonicalPath() : null);
+			}
+			if (symbols.isRecording()) {
+				symbols.read("file:" + path, fileHash(file));
+			}
+		} catch (IOException e) {
+			throw new InvalidSyntaxException(e.getMessage(), e);
+		}
+		return resolvedFiles.get(path);
+	}
+
+	/**
+	 * Returns the statement for an include file parsed before, or throws an
+	 * exception if the file is being parsed, i.e. includes itself.
+	 */
+	private String reuse(InputReader reader, String inputFileName,
+			File inputFile) throws InvalidSyntaxException {
+		String path = resolve(inputFile);
+		int index = includeStack.indexOf(path);
+		if (index != -1) {
+			StringBuilder sb = new StringBuilder("Include cycle: ");
+			for (String file : includeStack.subList(index, includeStack.size())) {
+				sb.append(new File(file).getName());
+				sb.append(" -> ");
+			}
+			sb.append(inputFileName);
+			throw new InvalidSyntaxException(sb.toString());
+		}
+		String outputFileName = parsedFiles.get(path);
+		logger.debug(reader, "Include file '" + inputFileName
+				+ "' already parsed.");
+		if (outputFileName == null) {
+			// Inlined again, the first inclusion may not be compiled
+			return inlinedFiles.get(path);
+		}
+		return NSISStatements.include(reader.getIndent(), outputFileName);
+	}
+
+	private String inline(InputReader reader, String inputFileName,
+			File inputFile) throws InvalidSyntaxException, ParserException {
+		try {
+			logger.debug(reader,
+					"Inline include: " + inputFile.getAbsolutePath());
+			String path = resolve(inputFile);
+			symbols.read("parsed", String.valueOf(parsedFiles.size()));
+			addParsedFile(path, null);
+			int id = parsedFiles.size();
+			String enclosingName = inlineName;
+			inlineName = inputFileName;
+			String code;
+			try {
+				code = parseToString(inputFile);
+			} finally {
+				inlineName = enclosingName;
+			}
+			if (code.endsWith(NSISStatements.NEWLINE_MARKER)) {
+				code = code.substring(0, code.length()
+						- NSISStatements.NEWLINE_MARKER.length());
+			}
+			code = NSISStatements.inlined(reader.getIndent(), id, code);
+			addInlinedFile(path, code);
+			return code;
+		} catch (IOException e) {
+			throw new InvalidSyntaxException(e.getMessage(), e);
+		}
+	}
+
+	private void provideExcludedFile(File sourceFile, String outputFileName,
+			int lineNumber) throws ParserException {
+		symbols.change(null, "exclude", sourceFile.getAbsolutePath(),
+				outputFileName);
+		if (!ahead) {
+			provideFile(sourceFile, new File(outDir, outputFileName),
+					lineNumber);
+		}
+	}
+
+	/**
+	 * Links or copies the excluded file to the output directory. Copies are
+	 * made on a background thread while parsing continues.
+	 */
+	private void provideFile(final File sourceFile, final File destFile,
+			final int lineNumber) throws ParserException {
+		if (excludeMode != ExcludeMode.COPY
+				&& linkFile(sourceFile, destFile, lineNumber)) {
+			return;
+		}
+		if (!asyncCopy) {
+			copyFile(sourceFile, destFile, lineNumber);
+			return;
+		}
+		if (copyExecutor == null) {
+			copyExecutor = Executors.newSingleThreadExecutor();
+		}
+		copies.add(copyExecutor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws ParserException {
+				copyFile(sourceFile, destFile, lineNumber);
+				return null;
+			}
+
+		}));
+	}
+
+	/**
+	 * Returns <code>false</code> if the file system doesn't support the link
+	 * and the file must be copied instead.
+	 */
+	private boolean linkFile(File sourceFile, File destFile, int lineNumber)
+			throws ParserException {
+		Path source = sourceFile.toPath().toAbsolutePath();
+		Path dest = destFile.toPath();
+		boolean symbolic = excludeMode == ExcludeMode.SYMLINK;
+		try {
+			if (Files.exists(dest) && Files.isSymbolicLink(dest) == symbolic
+					&& Files.isSameFile(source, dest)) {
+				logger.debug("Already linked: " + destFile.getAbsolutePath());
+				return true;
+			}
+			Files.deleteIfExists(dest);
+			logger.debug(String.format("Link file '%s' to directory '%s'",
+					sourceFile.getAbsolutePath(), outDir.getAbsolutePath()));
+			if (symbolic) {
+				Files.createSymbolicLink(dest, source);
+			} else {
+				Files.createLink(dest, source);
+			}
+			return true;
+		} catch (UnsupportedOperationException | IOException e) {
+			logger.info(String.format(
+					"Unable to link file '%s', copying instead: %s",
+					sourceFile.getAbsolutePath(), e.getMessage()));
+			return false;
+		}
+	}
+
 	private void copyFile(File sourceFile, File destFile, int lineNumber)
 			throws ParserException {
+		if (destFile.isFile() && !Files.isSymbolicLink(destFile.toPath())
+				&& destFile.length() == sourceFile.length()
+				&& destFile.lastModified() == sourceFile.lastModified()) {
+			logger.debug("Already copied: " + destFile.getAbsolutePath());
+			return;
+		}
 		logger.debug(String.format("Copy file '%s' to directory '%s'",
 				sourceFile.getAbsolutePath(), outDir.getAbsolutePath()));
-		try (FileInputStream input = new FileInputStream(sourceFile);
-				FileOutputStream output = new FileOutputStream(destFile)) {
-			if (!destFile.exists() && !destFile.createNewFile()) {
-				throw new ParserException(sourceFile.getAbsolutePath(),
-						lineNumber, new IOException(
-								"Unable to create output file "
-										+ destFile.getAbsolutePath()));
-			}
-			FileChannel destination = output.getChannel();
-			FileChannel source = input.getChannel();
-			destination.transferFrom(source, 0, source.size());
+		try {
+			// Replaces links left by other modes too
+			Files.deleteIfExists(destFile.toPath());
+			Files.copy(sourceFile.toPath(), destFile.toPath(),
+					StandardCopyOption.COPY_ATTRIBUTES);
 		} catch (IOException e) {
 			throw new ParserException(sourceFile.getAbsolutePath(), lineNumber,
 					e);
@@ -0,0 +1,90 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scans NSIS code for the installer file of <code>OutFile</code> and the
+ * payload files of <code>File</code> and <code>ReserveFile</code>
+ * instructions. Files are resolved relative to the makensis work directory.
+ */
+abstract class PayloadScanner {
+
+	private final File workDir;
+
+	protected PayloadScanner(File workDir) {
+		this.workDir = workDir;
+	}
+
+	public void scan(String code) throws IOException {
+		code = NSISStatements.LINE_CONTINUE.matcher(code).replaceAll(" ");
+		for (String line : code.split("\\r?\\n")) {
+			List<String> words = Preprocessor.words(line.trim());
+			if (words.isEmpty()) {
+				continue;
+			}
+			String command = words.get(0).toLowerCase();
+			if (command.equals("outfile")) {
+				if (words.size() > 1) {
+					installer(words.get(words.size() - 1));
+				}
+				continue;
+			} else if (command.equals("file")
+					|| command.equals("reservefile")) {
+				scanPayload(words.subList(1, words.size()));
+			}
+			instruction(words);
+		}
+	}
+
+	private void scanPayload(List<String> args) throws IOException {
+		boolean recursive = false;
+		boolean skipNext = false;
+		for (String arg : args) {
+			if (skipNext) {
+				skipNext = false;
+			} else if (arg.equalsIgnoreCase("/r")) {
+				recursive = true;
+			} else if (arg.equalsIgnoreCase("/x")) {
+				// Exclusions only make the payload larger
+				skipNext = true;
+			} else if (!arg.startsWith("/")) {
+				payload(arg, recursive);
+			}
+		}
+	}
+
+	protected File resolve(String name) {
+		File file = new File(name.replace('\\', File.separatorChar));
+		return file.isAbsolute() ? file : new File(workDir, file.getPath());
+	}
+
+	protected static boolean isPattern(String name) {
+		return name.indexOf('*') != -1 || name.indexOf('?') != -1;
+	}
+
+	protected static boolean isVariable(String name) {
+		return name.indexOf('$') != -1;
+	}
+
+	/**
+	 * Called with the installer file name of <code>OutFile</code>.
+	 */
+	protected abstract void installer(String name) throws IOException;
+
+	/**
+	 * Called with each file, wildcard or directory name given to
+	 * <code>File</code> or <code>ReserveFile</code>.
+	 */
+	protected abstract void payload(String name, boolean recursive)
+			throws IOException;
+
+	/**
+	 * Called with the words of each instruction other than
+	 * <code>OutFile</code>.
+	 */
+	protected void instruction(List<String> words) throws IOException {
+	}
+
+}
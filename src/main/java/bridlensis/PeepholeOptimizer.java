@@ -0,0 +1,547 @@
+package bridlensis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import bridlensis.env.Variable;
+
+/**
+ * Peephole pass over the generated NSIS instruction stream of one output
+ * file. Collapses redundant instruction sequences emitted by the statement
+ * parser:
+ *
+ * <ul>
+ * <li><code>StrCpy $x $x</code></li>
+ * <li><code>GoTo label</code> directly followed by <code>label:</code></li>
+ * <li>a write into a temporary variable immediately copied into the real
+ * target</li>
+ * <li>{@link bridlensis.env.Callable.ReturnType#ERRORFLAG} return value
+ * tested only once in the following LogicLib comparison</li>
+ * </ul>
+ *
+ * NSIS relative jumps (<code>Goto +2</code> etc.) count instructions, so no
+ * instruction within the reach of a relative jump is ever touched.
+ */
+class PeepholeOptimizer {
+
+	private static final Pattern LABEL = Pattern
+			.compile("[A-Za-z_.][A-Za-z0-9_.]*:\\s*([;#].*)?");
+
+	private static final Pattern RELATIVE_JUMP = Pattern.compile("[+-][0-9]+");
+
+	private static final Pattern LOGICLIB_TEST = Pattern.compile(
+			"\\$\\{((?:Else|And|Or)?If)(Not)?\\}", Pattern.CASE_INSENSITIVE);
+
+	private static enum Kind {
+		NONE, INSTRUCTION, LABEL, BARRIER, DIRECTIVE
+	}
+
+	private static class Line {
+
+		private String text;
+		private Kind kind;
+		private List<String> tokens;
+		private boolean covered;
+
+		private Line(String text) {
+			this.text = text;
+		}
+
+		private String instruction() {
+			return tokens.isEmpty() ? "" : tokens.get(0);
+		}
+
+		private int argsCount() {
+			return tokens.size() - 1;
+		}
+
+		private String arg(int index) {
+			return tokens.get(index + 1);
+		}
+
+		private String indent() {
+			int i = 0;
+			while (i < text.length()
+					&& Character.isWhitespace(text.charAt(i))) {
+				i++;
+			}
+			return text.substring(0, i);
+		}
+
+	}
+
+	private final Set<String> temporaries;
+	private int instructionsIn = 0;
+	private int instructionsOut = 0;
+
+	public PeepholeOptimizer(Collection<Variable> temporaries) {
+		this.temporaries = new HashSet<>();
+		for (Variable variable : temporaries) {
+			this.temporaries.add(variable.getValue());
+		}
+	}
+
+	public int getInstructionsIn() {
+		return instructionsIn;
+	}
+
+	public int getInstructionsOut() {
+		return instructionsOut;
+	}
+
+	public int getRemovedInstructions() {
+		return instructionsIn - instructionsOut;
+	}
+
+	public String optimize(String code) {
+		List<Line> lines = split(code);
+		classify(lines);
+		instructionsIn += countInstructions(lines);
+		boolean changed;
+		do {
+			markCoverage(lines);
+			changed = removeSelfCopies(lines) | removeJumpsToNextLabel(lines)
+					| collapseErrorFlagTests(lines)
+					| collapseTemporaryCopies(lines);
+			if (changed) {
+				removeUnusedDeclarations(lines);
+				classify(lines);
+			}
+		} while (changed);
+		instructionsOut += countInstructions(lines);
+		return join(lines);
+	}
+
+	private static List<Line> split(String code) {
+		List<Line> lines = new ArrayList<>();
+		StringBuilder logical = null;
+		boolean inBlockComment = false;
+		for (String physical : code.split(NSISStatements.NEWLINE_MARKER, -1)) {
+			if (logical == null) {
+				logical = new StringBuilder(physical);
+			} else {
+				logical.append(NSISStatements.NEWLINE_MARKER);
+				logical.append(physical);
+			}
+			inBlockComment = updateBlockComment(physical, inBlockComment);
+			if (!inBlockComment && !physical.trim().endsWith("\\")) {
+				lines.add(new Line(logical.toString()));
+				logical = null;
+			}
+		}
+		if (logical != null) {
+			lines.add(new Line(logical.toString()));
+		}
+		return lines;
+	}
+
+	private static boolean updateBlockComment(String physical,
+			boolean inBlockComment) {
+		int index = 0;
+		while (index < physical.length()) {
+			String marker = inBlockComment ? "*/" : "/*";
+			int found = physical.indexOf(marker, index);
+			if (found == -1) {
+				break;
+			}
+			inBlockComment = !inBlockComment;
+			index = found + marker.length();
+		}
+		return inBlockComment;
+	}
+
+	private static String join(List<Line> lines) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines.size(); i++) {
+			if (i > 0) {
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			sb.append(lines.get(i).text);
+		}
+		return sb.toString();
+	}
+
+	private static void classify(List<Line> lines) {
+		boolean insideMacro = false;
+		for (Line line : lines) {
+			line.tokens = tokenize(line.text);
+			String first = line.instruction().toLowerCase();
+			if (insideMacro) {
+				line.kind = Kind.DIRECTIVE;
+				insideMacro = !first.equals("!macroend");
+			} else if (first.isEmpty() || first.startsWith("/*")) {
+				line.kind = Kind.NONE;
+			} else if (first.startsWith("!")) {
+				line.kind = Kind.DIRECTIVE;
+				insideMacro = first.equals("!macro");
+			} else if (first.equals("var")) {
+				line.kind = Kind.NONE;
+			} else if (LABEL.matcher(line.text.trim()).matches()) {
+				line.kind = Kind.LABEL;
+			} else if (first.startsWith("function")
+					|| first.startsWith("section")
+					|| first.startsWith("pageex")) {
+				line.kind = Kind.BARRIER;
+			} else if (first.equals("${endif}") || first.equals("${endunless}")) {
+				line.kind = Kind.NONE;
+			} else {
+				line.kind = Kind.INSTRUCTION;
+			}
+		}
+	}
+
+	private static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<>();
+		StringBuilder token = null;
+		char quote = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quote != 0) {
+				token.append(c);
+				if (c == '$' && i + 1 < text.length()
+						&& text.charAt(i + 1) == '\\') {
+					// Escaped character
+					token.append(text.charAt(++i));
+					if (i + 1 < text.length()) {
+						token.append(text.charAt(++i));
+					}
+				} else if (c == quote) {
+					quote = 0;
+				}
+			} else if (Character.isWhitespace(c) || c == '\\') {
+				if (token != null) {
+					tokens.add(token.toString());
+					token = null;
+				}
+			} else if (token == null && (c == ';' || c == '#')) {
+				break;
+			} else {
+				if (token == null) {
+					token = new StringBuilder();
+				}
+				if (c == '"' || c == '\'' || c == '`') {
+					quote = c;
+				}
+				token.append(c);
+			}
+		}
+		if (token != null) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	private static int countInstructions(List<Line> lines) {
+		int count = 0;
+		for (Line line : lines) {
+			if (line.kind == Kind.INSTRUCTION) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void markCoverage(List<Line> lines) {
+		for (Line line : lines) {
+			line.covered = false;
+		}
+		for (int i = 0; i < lines.size(); i++) {
+			markCoverage(lines, i, null);
+		}
+	}
+
+	private static void markCoverage(List<Line> lines, int index, Line ignore) {
+		Line line = lines.get(index);
+		if (line.kind != Kind.INSTRUCTION || line == ignore) {
+			return;
+		}
+		for (int t = 1; t < line.tokens.size(); t++) {
+			String token = line.tokens.get(t);
+			if (RELATIVE_JUMP.matcher(token).matches()) {
+				int offset = Integer.parseInt(token.substring(1));
+				int step = token.charAt(0) == '+' ? 1 : -1;
+				boolean uncertain = false;
+				for (int i = index + step; i >= 0 && i < lines.size()
+						&& (offset > 0 || uncertain); i += step) {
+					Line other = lines.get(i);
+					if (other.kind == Kind.BARRIER) {
+						break;
+					}
+					other.covered = true;
+					if (other.kind == Kind.DIRECTIVE) {
+						// Cannot know how many instructions are compiled in
+						uncertain = true;
+					} else if (other.kind == Kind.INSTRUCTION) {
+						offset--;
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isVariable(String token) {
+		return token.length() > 1 && token.charAt(0) == '$'
+				&& token.charAt(1) != '{' && token.charAt(1) != '(';
+	}
+
+	private static boolean removeSelfCopies(List<Line> lines) {
+		boolean changed = false;
+		for (int i = lines.size() - 1; i >= 0; i--) {
+			Line line = lines.get(i);
+			if (line.kind == Kind.INSTRUCTION && !line.covered
+					&& line.instruction().equalsIgnoreCase("StrCpy")
+					&& line.argsCount() == 2 && isVariable(line.arg(0))
+					&& (line.arg(1).equals(line.arg(0)) || line.arg(1)
+							.equals('"' + line.arg(0) + '"'))) {
+				lines.remove(i);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean removeJumpsToNextLabel(List<Line> lines) {
+		boolean changed = false;
+		for (int i = lines.size() - 1; i >= 0; i--) {
+			Line line = lines.get(i);
+			if (line.kind != Kind.INSTRUCTION || line.covered
+					|| !line.instruction().equalsIgnoreCase("GoTo")
+					|| line.argsCount() != 1) {
+				continue;
+			}
+			String label = line.arg(0) + ":";
+			for (int j = i + 1; j < lines.size(); j++) {
+				Line next = lines.get(j);
+				if (next.kind == Kind.LABEL
+						&& next.instruction().equals(label)) {
+					lines.remove(i);
+					changed = true;
+					break;
+				} else if (next.kind != Kind.NONE && next.kind != Kind.LABEL) {
+					break;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private int countReferences(List<Line> lines, String variable) {
+		int count = 0;
+		for (Line line : lines) {
+			if (line.kind == Kind.NONE) {
+				continue;
+			}
+			int index = line.text.indexOf(variable);
+			while (index != -1) {
+				int end = index + variable.length();
+				if (end == line.text.length()
+						|| !isNameChar(line.text.charAt(end))) {
+					count++;
+				}
+				index = line.text.indexOf(variable, end);
+			}
+		}
+		return count;
+	}
+
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+	}
+
+	private static int nextInstruction(List<Line> lines, int index) {
+		for (int i = index + 1; i < lines.size(); i++) {
+			Kind kind = lines.get(i).kind;
+			if (kind == Kind.INSTRUCTION) {
+				return i;
+			} else if (kind != Kind.NONE) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	private boolean collapseTemporaryCopies(List<Line> lines) {
+		boolean changed = false;
+		for (int i = 0; i < lines.size(); i++) {
+			Line line = lines.get(i);
+			if (line.kind != Kind.INSTRUCTION || line.covered) {
+				continue;
+			}
+			int j = nextInstruction(lines, i);
+			if (j == -1 || lines.get(j).covered) {
+				continue;
+			}
+			Line copy = lines.get(j);
+			if (copy.argsCount() != 1 && copy.argsCount() != 2) {
+				continue;
+			}
+			String temporary = copy.argsCount() == 1 ? copy.arg(0) : copy
+					.arg(1);
+			if (!temporaries.contains(temporary)
+					|| !line.tokens.subList(1, line.tokens.size()).contains(
+							temporary)
+					|| countReferences(lines, temporary) != 2) {
+				continue;
+			}
+			boolean collapsed = false;
+			if (copy.instruction().equalsIgnoreCase("StrCpy")
+					&& copy.argsCount() == 2 && isVariable(copy.arg(0))) {
+				// Write straight into the copy target
+				line.text = replaceToken(line, temporary, copy.arg(0));
+				lines.remove(j);
+				collapsed = true;
+			} else if (copy.instruction().equalsIgnoreCase("Push")
+					&& line.instruction().equalsIgnoreCase("Pop")
+					&& line.argsCount() == 1) {
+				// Value is already on top of the stack
+				lines.remove(j);
+				lines.remove(i);
+				collapsed = true;
+			}
+			if (collapsed) {
+				classify(lines);
+				markCoverage(lines);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static String replaceToken(Line line, String token,
+			String replacement) {
+		StringBuilder sb = new StringBuilder(line.indent());
+		for (int i = 0; i < line.tokens.size(); i++) {
+			String t = line.tokens.get(i);
+			sb.append(t.equals(token) ? replacement : t);
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	private boolean collapseErrorFlagTests(List<Line> lines) {
+		boolean changed = false;
+		for (int i = 0; i + 4 < lines.size(); i++) {
+			Line set = lines.get(i);
+			if (set.kind != Kind.INSTRUCTION || set.covered
+					|| !set.instruction().equalsIgnoreCase("StrCpy")
+					|| set.argsCount() != 2 || !set.arg(1).equals("1")
+					|| !temporaries.contains(set.arg(0))) {
+				continue;
+			}
+			String flag = set.arg(0);
+			int clear = nextInstruction(lines, i);
+			int instr = clear == -1 ? -1 : nextInstruction(lines, clear);
+			int ifErrors = instr == -1 ? -1 : nextInstruction(lines, instr);
+			int reset = ifErrors == -1 ? -1 : nextInstruction(lines, ifErrors);
+			int test = reset == -1 ? -1 : nextInstruction(lines, reset);
+			if (test == -1
+					|| !lines.get(clear).instruction()
+							.equalsIgnoreCase("ClearErrors")
+					|| !lines.get(ifErrors).text.trim().equalsIgnoreCase(
+							"IfErrors +2")
+					|| !lines.get(reset).instruction()
+							.equalsIgnoreCase("StrCpy")
+					|| lines.get(reset).argsCount() != 2
+					|| !lines.get(reset).arg(0).equals(flag)
+					|| !lines.get(reset).arg(1).equals("0")
+					|| countReferences(lines, flag) != 3) {
+				continue;
+			}
+			String errorsTest = errorsTest(lines.get(test), flag);
+			if (errorsTest == null || isCoveredByOthers(lines, i, test)) {
+				continue;
+			}
+			lines.get(test).text = errorsTest;
+			lines.remove(reset);
+			lines.remove(ifErrors);
+			lines.remove(i);
+			classify(lines);
+			markCoverage(lines);
+			changed = true;
+		}
+		return changed;
+	}
+
+	private static boolean isCoveredByOthers(List<Line> lines, int from,
+			int to) {
+		Line own = lines.get(nextInstruction(lines,
+				nextInstruction(lines, nextInstruction(lines, from))));
+		for (Line line : lines) {
+			line.covered = false;
+		}
+		for (int i = 0; i < lines.size(); i++) {
+			markCoverage(lines, i, own);
+		}
+		boolean covered = false;
+		for (int i = from; i <= to; i++) {
+			covered |= lines.get(i).covered;
+		}
+		markCoverage(lines);
+		return covered;
+	}
+
+	private static String errorsTest(Line test, String flag) {
+		if (test.tokens.size() != 4 || !test.tokens.get(1).equals(flag)) {
+			return null;
+		}
+		Matcher matcher = LOGICLIB_TEST.matcher(test.instruction());
+		if (!matcher.matches()) {
+			return null;
+		}
+		String value = test.tokens.get(3).replaceAll("^[\"']|[\"']$", "");
+		if (!value.equals("0") && !value.equals("1")) {
+			return null;
+		}
+		boolean whenError = compare(1, test.tokens.get(2), value);
+		boolean whenSuccess = compare(0, test.tokens.get(2), value);
+		if (whenError == whenSuccess) {
+			return null;
+		}
+		boolean not = (matcher.group(2) != null) == whenError;
+		return test.indent() + "${" + matcher.group(1) + (not ? "Not" : "")
+				+ "} ${Errors}";
+	}
+
+	private static boolean compare(int flag, String operator, String value) {
+		int other = Integer.parseInt(value);
+		switch (operator) {
+		case "==":
+		case "=":
+			return flag == other;
+		case "!=":
+		case "<>":
+			return flag != other;
+		case "<":
+			return flag < other;
+		case "<=":
+			return flag <= other;
+		case ">":
+			return flag > other;
+		case ">=":
+			return flag >= other;
+		}
+		// Unknown operator, make both outcomes equal to skip optimization
+		return false;
+	}
+
+	private void removeUnusedDeclarations(List<Line> lines) {
+		for (int i = lines.size() - 1; i >= 0; i--) {
+			Line line = lines.get(i);
+			if (line.tokens.size() == 3
+					&& line.instruction().equalsIgnoreCase("Var")
+					&& line.tokens.get(1).equalsIgnoreCase("/GLOBAL")) {
+				String variable = "$" + line.tokens.get(2);
+				if (temporaries.contains(variable)
+						&& countReferences(lines, variable) == 0) {
+					lines.remove(i);
+				}
+			}
+		}
+	}
+
+}
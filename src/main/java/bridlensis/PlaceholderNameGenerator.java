@@ -0,0 +1,48 @@
+package bridlensis;
+
+import java.util.List;
+
+import bridlensis.env.NameGenerator;
+
+/**
+ * Generates placeholders for the names of a file parsed ahead of its turn,
+ * when the number of names generated before the file is not known yet. When
+ * the file takes its turn, the placeholders are replaced with the range of
+ * names the file takes from the real generator, so the output is the same as
+ * parsing the file in turn. A placeholder is the prefix followed by the index
+ * of the name and a dot, so it is never the beginning of another one.
+ */
+class PlaceholderNameGenerator implements NameGenerator {
+
+	public static final String PREFIX = "_.p.";
+
+	private int count = 0;
+
+	@Override
+	public String generate() {
+		return PREFIX + (count++) + ".";
+	}
+
+	/**
+	 * Replaces the placeholders in the text with the names of the same index.
+	 */
+	public static String replace(String text, List<String> names) {
+		int index = text.indexOf(PREFIX);
+		if (index == -1) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder(text.length());
+		int start = 0;
+		while (index != -1) {
+			int end = text.indexOf('.', index + PREFIX.length());
+			sb.append(text, start, index);
+			sb.append(names.get(Integer.parseInt(text.substring(index
+					+ PREFIX.length(), end))));
+			start = end + 1;
+			index = text.indexOf(PREFIX, start);
+		}
+		sb.append(text, start, text.length());
+		return sb.toString();
+	}
+
+}
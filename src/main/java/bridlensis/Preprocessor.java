@@ -0,0 +1,492 @@
+package bridlensis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import bridlensis.env.ComparisonStatement;
+import bridlensis.env.SimpleTypeObject;
+import bridlensis.env.TypeObject.Type;
+
+/**
+ * Evaluates NSIS conditional compiler commands (<code>!ifdef</code>,
+ * <code>!ifndef</code>, <code>!if</code>, <code>!else</code>,
+ * <code>!endif</code>) against the symbols defined with <code>/D</code>
+ * options and <code>!define</code> commands so that branches makensis will
+ * never compile are skipped without parsing them.
+ * <p>
+ * Outcome of a condition is unknown, and both branches are parsed, when it
+ * depends on symbols neither defined nor undefined before, which NSIS or
+ * header files may define, symbols defined inside branches or macros with
+ * unknown outcome, or values that are not constants. Include files that are
+ * not parsed may define or undefine any symbol, so all symbols become
+ * unknown after them.
+ */
+class Preprocessor {
+
+	private static final Pattern SYMBOL = Pattern.compile("\\$\\{([^}]+)\\}");
+
+	private static class Frame {
+
+		private final boolean parentLive;
+		private Boolean taken = Boolean.FALSE;
+		private Boolean branch;
+
+		private Frame(boolean parentLive) {
+			this.parentLive = parentLive;
+		}
+
+		private boolean isLive() {
+			return parentLive && branch != Boolean.FALSE;
+		}
+
+		/**
+		 * Enters next branch with the given condition outcome.
+		 */
+		private void enter(Boolean condition) {
+			if (taken == Boolean.TRUE || condition == Boolean.FALSE) {
+				branch = Boolean.FALSE;
+			} else if (taken == null || condition == null) {
+				branch = null;
+			} else {
+				branch = Boolean.TRUE;
+			}
+			if (branch != Boolean.FALSE) {
+				taken = branch;
+			}
+		}
+
+	}
+
+	private final Map<String, String> defines;
+	private final Set<String> undefined = new HashSet<>();
+	private final LinkedList<Frame> frames = new LinkedList<>();
+	private int macroDepth = 0;
+	private int skipped = 0;
+	private SymbolLog symbols = new SymbolLog();
+
+	public Preprocessor(Map<String, String> defines) {
+		this.defines = new HashMap<>(defines);
+	}
+
+	/**
+	 * Records the symbols read and changed by the statements.
+	 */
+	public void setSymbolLog(SymbolLog symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Returns symbols defined with <code>/Dname[=value]</code> options.
+	 */
+	public static Map<String, String> definesOf(Collection<String> nsisOptions) {
+		Map<String, String> defines = new HashMap<>();
+		for (String option : nsisOptions) {
+			if (option.length() > 2
+					&& option.substring(0, 2).equalsIgnoreCase("/D")) {
+				int index = option.indexOf('=');
+				if (index == -1) {
+					defines.put(option.substring(2), "");
+				} else {
+					defines.put(option.substring(2, index),
+							option.substring(index + 1));
+				}
+			}
+		}
+		return defines;
+	}
+
+	/**
+	 * Forgets all symbols after an include file that is not parsed, e.g.
+	 * excluded or found only by makensis.
+	 */
+	public void includeUnknown() {
+		defines.clear();
+		undefined.clear();
+		symbols.change(null, "clear");
+	}
+
+	/**
+	 * Number of statements skipped so far.
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	public void addSkipped(int statements) {
+		skipped += statements;
+	}
+
+	/**
+	 * Number of conditional branches and macros the next statement is in.
+	 */
+	public int getNesting() {
+		return frames.size() + macroDepth;
+	}
+
+	/**
+	 * Returns the current value of a symbol recorded by the preprocessor, or
+	 * <code>null</code> if the symbol is not known to it.
+	 */
+	public String symbolValue(String symbol) {
+		if (symbol.startsWith("def:")) {
+			return describe(symbol.substring(4));
+		} else if (symbol.equals("certain")) {
+			return String.valueOf(isCertain());
+		}
+		return null;
+	}
+
+	/**
+	 * Records whether symbols defined now are known for certain.
+	 */
+	public void readCertain() {
+		symbols.read("certain", String.valueOf(isCertain()));
+	}
+
+	/**
+	 * Applies a change recorded before by a file restored from the cache.
+	 */
+	public void replay(List<String> change) {
+		switch (change.get(0)) {
+		case "clear":
+			includeUnknown();
+			break;
+		case "define":
+			put(change.get(1), change.size() > 2 ? change.get(2) : null);
+			break;
+		case "undef":
+			undefine(change.get(1));
+			break;
+		case "forget":
+			forget(change.get(1));
+			break;
+		}
+	}
+
+	private String describe(String name) {
+		if (defines.containsKey(name)) {
+			String value = defines.get(name);
+			return value == null ? "*" : "=" + value;
+		}
+		return undefined.contains(name) ? "-" : "?";
+	}
+
+	private void put(String name, String value) {
+		undefined.remove(name);
+		defines.put(name, value);
+		if (value == null) {
+			symbols.change("def:" + name, "define", name);
+		} else {
+			symbols.change("def:" + name, "define", name, value);
+		}
+	}
+
+	private void undefine(String name) {
+		defines.remove(name);
+		undefined.add(name);
+		symbols.change("def:" + name, "undef", name);
+	}
+
+	private void forget(String name) {
+		defines.remove(name);
+		undefined.remove(name);
+		symbols.change("def:" + name, "forget", name);
+	}
+
+	private boolean isLive() {
+		return frames.isEmpty() || frames.peek().isLive();
+	}
+
+	private boolean isCertain() {
+		if (macroDepth > 0) {
+			return false;
+		}
+		for (Frame frame : frames) {
+			if (frame.branch == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next statement and returns <code>false</code> if it is in a
+	 * branch that is never compiled.
+	 */
+	public boolean accept(String statement) {
+		List<String> words = words(NSISStatements.LINE_CONTINUE.matcher(
+				statement.trim()).replaceAll(" "));
+		String command = words.isEmpty() ? "" : words.get(0).toLowerCase();
+		if (!command.startsWith("!")) {
+			return count(isLive());
+		}
+		if (macroDepth > 0) {
+			// Conditions inside macros depend on the insertion
+			if (command.equals("!macroend")) {
+				macroDepth--;
+			} else if (command.equals("!define") && isLive()) {
+				define(words, false);
+			} else if (command.equals("!undef") && isLive()
+					&& words.size() > 1) {
+				forget(words.get(1));
+			}
+			return count(isLive());
+		}
+		switch (command) {
+		case "!ifdef":
+		case "!ifndef":
+		case "!if":
+		case "!ifmacrodef":
+		case "!ifmacrondef":
+			boolean live = isLive();
+			Frame frame = new Frame(live);
+			frame.enter(live ? condition(command, words.subList(1,
+					words.size())) : Boolean.FALSE);
+			frames.push(frame);
+			return count(live);
+		case "!else":
+			if (frames.isEmpty()) {
+				return true;
+			}
+			Frame current = frames.peek();
+			Boolean condition = Boolean.TRUE;
+			if (words.size() > 1 && current.parentLive) {
+				condition = condition("!" + words.get(1).toLowerCase(),
+						words.subList(2, words.size()));
+			}
+			current.enter(condition);
+			return count(current.parentLive);
+		case "!endif":
+			if (frames.isEmpty()) {
+				return true;
+			}
+			return count(frames.pop().parentLive);
+		case "!macro":
+			if (isLive()) {
+				macroDepth++;
+			}
+			return count(isLive());
+		case "!define":
+			if (isLive()) {
+				define(words, isCertain());
+			}
+			return count(isLive());
+		case "!undef":
+			if (isLive() && words.size() > 1) {
+				String name = words.get(1);
+				if (isCertain()) {
+					undefine(name);
+				} else {
+					forget(name);
+				}
+			}
+			return count(isLive());
+		}
+		return count(isLive());
+	}
+
+	private boolean count(boolean live) {
+		if (!live) {
+			skipped++;
+		}
+		return live;
+	}
+
+	private void define(List<String> words, boolean certain) {
+		int index = 1;
+		boolean knownValue = true;
+		while (index < words.size() && words.get(index).startsWith("/")) {
+			if (!words.get(index).equalsIgnoreCase("/redef")) {
+				// /ifndef, /math, /date, /file etc.
+				knownValue = false;
+			}
+			index++;
+		}
+		if (index >= words.size()) {
+			return;
+		}
+		String name = words.get(index);
+		if (!certain) {
+			forget(name);
+		} else if (knownValue && index + 1 < words.size()) {
+			put(name, words.get(index + 1));
+		} else {
+			put(name, knownValue ? "" : null);
+		}
+	}
+
+	private Boolean condition(String command, List<String> args) {
+		switch (command) {
+		case "!ifdef":
+			return defined(args);
+		case "!ifndef":
+			Boolean result = defined(args);
+			return result == null ? null : !result;
+		case "!if":
+			return expression(args);
+		}
+		// Macros may be defined in files that are not parsed
+		return null;
+	}
+
+	private Boolean isDefined(String name) {
+		symbols.read("def:" + name, describe(name));
+		if (defines.containsKey(name)) {
+			return Boolean.TRUE;
+		} else if (undefined.contains(name)) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	/**
+	 * Evaluates <code>!ifdef a [&amp; b | c ...]</code> left to right.
+	 */
+	private Boolean defined(List<String> args) {
+		if (args.isEmpty()) {
+			return null;
+		}
+		Boolean result = isDefined(args.get(0));
+		for (int i = 1; i + 1 < args.size(); i += 2) {
+			Boolean value = isDefined(args.get(i + 1));
+			if (args.get(i).equals("&")) {
+				if (result == Boolean.FALSE || value == Boolean.FALSE) {
+					result = Boolean.FALSE;
+				} else if (result == null || value == null) {
+					result = null;
+				}
+			} else if (args.get(i).equals("|")) {
+				if (result == Boolean.TRUE || value == Boolean.TRUE) {
+					result = Boolean.TRUE;
+				} else if (result == null || value == null) {
+					result = null;
+				}
+			} else {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates <code>!if [!] value [op value2]</code>.
+	 */
+	private Boolean expression(List<String> args) {
+		List<String> values = new ArrayList<>();
+		for (String arg : args) {
+			String value = substitute(arg);
+			if (value == null) {
+				return null;
+			}
+			values.add(value);
+		}
+		boolean not = false;
+		if (!values.isEmpty() && values.get(0).equals("!")) {
+			not = true;
+			values.remove(0);
+		}
+		Boolean result = null;
+		if (values.size() == 1) {
+			if (isConstant(values.get(0))) {
+				result = ConstantEvaluator.atoi(values.get(0)) != 0;
+			}
+		} else if (values.size() == 3) {
+			result = compare(values.get(0), values.get(1), values.get(2));
+		}
+		if (result != null && not) {
+			result = !result;
+		}
+		return result;
+	}
+
+	private static boolean isConstant(String value) {
+		return value.indexOf('$') == -1;
+	}
+
+	private static Boolean compare(String a, String op, String b) {
+		if (!isConstant(a) || !isConstant(b)) {
+			return null;
+		}
+		switch (op) {
+		case "&&":
+			return ConstantEvaluator.atoi(a) != 0
+					&& ConstantEvaluator.atoi(b) != 0;
+		case "||":
+			return ConstantEvaluator.atoi(a) != 0
+					|| ConstantEvaluator.atoi(b) != 0;
+		}
+		ComparisonStatement statement = new ComparisonStatement("If");
+		statement.addLeft(new SimpleTypeObject(Type.STRING, a));
+		statement.setCompare(op);
+		statement.addRight(new SimpleTypeObject(Type.STRING, b));
+		return ConstantEvaluator.compare(statement);
+	}
+
+	/**
+	 * Replaces known symbols in the value or returns <code>null</code> if the
+	 * value depends on unknown symbols.
+	 */
+	private String substitute(String value) {
+		StringBuffer sb = new StringBuffer();
+		Matcher matcher = SYMBOL.matcher(value);
+		while (matcher.find()) {
+			String name = matcher.group(1);
+			if (isDefined(name) != Boolean.TRUE || defines.get(name) == null) {
+				return null;
+			}
+			matcher.appendReplacement(sb,
+					Matcher.quoteReplacement(defines.get(name)));
+		}
+		matcher.appendTail(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Splits the statement to words removing quotes and comments.
+	 */
+	static List<String> words(String statement) {
+		List<String> words = new ArrayList<>();
+		StringBuilder word = null;
+		char quote = 0;
+		for (int i = 0; i < statement.length(); i++) {
+			char c = statement.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					word.append(c);
+				}
+			} else if (c == '"' || c == '\'' || c == '`') {
+				quote = c;
+				if (word == null) {
+					word = new StringBuilder();
+				}
+			} else if ((c == ';' || c == '#') && word == null) {
+				break;
+			} else if (Character.isWhitespace(c)) {
+				if (word != null) {
+					words.add(word.toString());
+					word = null;
+				}
+			} else {
+				if (word == null) {
+					word = new StringBuilder();
+				}
+				word.append(c);
+			}
+		}
+		if (word != null) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+
+}
@@ -0,0 +1,188 @@
+package bridlensis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aggregates the profiling logs written by installers compiled with
+ * <code>--profile</code>. Each log file may hold any number of runs, e.g.
+ * logs collected from several machines, and the report sums the counters
+ * of each function over all of them.
+ */
+public class ProfileReport {
+
+	private static final Charset LOG_CHARSET = Charset.forName("ISO-8859-1");
+
+	static class Entry {
+
+		private final String function;
+		private int runs = 0;
+		private long calls = 0;
+		private long timedCalls = 0;
+		private long ms = 0;
+
+		private Entry(String function) {
+			this.function = function;
+		}
+
+		public String getFunction() {
+			return function;
+		}
+
+		/**
+		 * Number of runs calling the function.
+		 */
+		public int getRuns() {
+			return runs;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		public long getTimedCalls() {
+			return timedCalls;
+		}
+
+		/**
+		 * Total milliseconds of the timed calls.
+		 */
+		public long getMs() {
+			return ms;
+		}
+
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private int runs = 0;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java -cp bridlensis-"
+					+ MakeBridleNSIS.VERSION
+					+ ".jar bridlensis.ProfileReport <log file or directory> ...");
+			System.exit(0);
+			return;
+		}
+		ProfileReport report = new ProfileReport();
+		try {
+			for (String arg : args) {
+				report.add(new File(arg));
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read profile log: "
+					+ e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.out.print(report.toString());
+	}
+
+	/**
+	 * Adds the runs of the log file, or of every file in the directory.
+	 */
+	public void add(File file) throws IOException {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File child : files) {
+				if (child.isFile()) {
+					add(child);
+				}
+			}
+		} else {
+			add(new String(Files.readAllBytes(file.toPath()), LOG_CHARSET));
+		}
+	}
+
+	public void add(String log) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new StringReader(log))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals("run")) {
+					runs++;
+				} else if (fields.length == 4) {
+					Entry entry = entries.get(fields[0]);
+					if (entry == null) {
+						entry = new Entry(fields[0]);
+						entries.put(fields[0], entry);
+					}
+					long calls = counter(fields[1]);
+					if (calls > 0) {
+						entry.runs++;
+					}
+					entry.calls += calls;
+					entry.timedCalls += counter(fields[2]);
+					entry.ms += counter(fields[3]);
+				}
+			}
+		}
+	}
+
+	private static long counter(String value) {
+		// Counters of functions never called are left empty
+		try {
+			return value.isEmpty() ? 0 : Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public int getRuns() {
+		return runs;
+	}
+
+	/**
+	 * Returns the functions sorted by the total time, then by the calls.
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> sorted = new ArrayList<>(entries.values());
+		Collections.sort(sorted, new Comparator<Entry>() {
+
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				if (e1.ms != e2.ms) {
+					return e1.ms > e2.ms ? -1 : 1;
+				}
+				if (e1.calls != e2.calls) {
+					return e1.calls > e2.calls ? -1 : 1;
+				}
+				return e1.function.compareTo(e2.function);
+			}
+
+		});
+		return sorted;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Profile of %d run(s)%n%n", runs));
+		sb.append(String.format("%-32s %6s %10s %10s %12s %10s%n",
+				"Function", "Runs", "Calls", "Timed", "Total ms",
+				"Avg ms"));
+		for (Entry entry : getEntries()) {
+			sb.append(String.format("%-32s %6d %10d %10d %12d %10s%n",
+					entry.function, entry.runs, entry.calls,
+					entry.timedCalls, entry.ms,
+					entry.timedCalls == 0 ? "-" : String.format(
+							Locale.ENGLISH, "%.1f", (double) entry.ms
+									/ entry.timedCalls)));
+		}
+		return sb.toString();
+	}
+
+}
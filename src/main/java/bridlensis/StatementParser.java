@@ -2,7 +2,18 @@ package bridlensis;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import bridlensis.env.AdHocFunction;
 import bridlensis.env.Callable;
@@ -10,6 +21,7 @@ import bridlensis.env.Callable.ReturnType;
 import bridlensis.env.ComparisonStatement;
 import bridlensis.env.Environment;
 import bridlensis.env.EnvironmentException;
+import bridlensis.env.EnvironmentFactory;
 import bridlensis.env.NameGenerator;
 import bridlensis.env.SimpleTypeObject;
 import bridlensis.env.TypeObject;
@@ -20,6 +32,19 @@ import bridlensis.env.Variable;
 class StatementParser {
 
 	private static final String NULLVAR_NAME = "bridlensis_nullvar";
+	private static final String LOGICLIB_HEADER = "LogicLib.nsh";
+	private static final Set<String> LOGICLIB_MACROS = new HashSet<>(
+			Arrays.asList("if", "ifnot", "unless", "elseif", "elseifnot",
+					"elseunless", "else", "endif", "endunless", "andif",
+					"andifnot", "andunless", "orif", "orifnot", "orunless",
+					"ifthen", "ifnotthen", "ifcmd", "select", "case", "case2",
+					"case3", "case4", "case5", "caseelse", "case_else",
+					"default", "endselect", "switch", "endswitch", "do",
+					"dowhile", "dountil", "exitdo", "continue", "break",
+					"loop", "loopwhile", "loopuntil", "while", "exitwhile",
+					"endwhile", "for", "foreach", "exitfor", "next"));
+	private static final Pattern MACRO_PATTERN = Pattern
+			.compile("\\$\\{([^}\\s]+)\\}");
 
 	private static final List<TypeObject> ERRORFLAG_RETURN_0 = new ArrayList<TypeObject>(
 			Arrays.asList(new SimpleTypeObject(Type.INTEGER, 0)));
@@ -29,20 +54,313 @@ class StatementParser {
 
 	private static final Logger logger = Logger.getInstance();
 
+	private static final String CANONICAL_INTEGER = "-?(0|[1-9][0-9]*)";
+	private static final String NUMERIC = "-?(0[xX][0-9a-fA-F]+|[0-9]+)";
+	private static final String NUMERIC_PREFIX = "-?[0-9].*";
+	private static final int SEARCH_TREE_MIN_CASES = 4;
+
+	private static final List<String> INTEGER_FUNCTIONS = Arrays.asList(
+			"strlen", "intop", "sectiongetflags", "sectiongetsize",
+			"getcurinsttype", "geterrorlevel", "getinstdirerror");
+
+	private static enum ValueType {
+		INTEGER, STRING
+	}
+
+	private static class Block {
+
+		private final boolean loop;
+		private String next;
+		private String end = null;
+		private String cont = null;
+
+		private Block(boolean loop, String next) {
+			this.loop = loop;
+			this.next = next;
+		}
+
+	}
+
+	private static class LoopFrame {
+
+		private final boolean plain;
+		private String cont = null;
+		private String reevaluate = null;
+		private Set<Variable> inputs = null;
+		private Set<Variable> assigned = new HashSet<>();
+		private boolean changed = false;
+
+		private LoopFrame(boolean plain) {
+			this.plain = plain;
+		}
+
+		/**
+		 * Returns <code>true</code> if the loop body may change the inputs of
+		 * the hoisted condition setup.
+		 */
+		private boolean isInputChanged() {
+			return changed || !Collections.disjoint(inputs, assigned);
+		}
+
+	}
+
+	private static class SelectBlock {
+
+		private final TypeObject subject;
+		private final ValueType type;
+		private final String dispatch;
+		private final String end;
+		private final List<SelectCase> cases = new ArrayList<>();
+		private String otherwise = null;
+
+		private SelectBlock(TypeObject subject, ValueType type, String name) {
+			this.subject = subject;
+			this.type = type;
+			this.dispatch = "select_" + name;
+			this.end = "endselect_" + name;
+		}
+
+	}
+
+	private static class SelectCase {
+
+		private final String label;
+		private final List<ComparisonStatement> tests = new ArrayList<>();
+
+		private SelectCase(String label) {
+			this.label = label;
+		}
+
+	}
+
+	private static class IntegerCase implements Comparable<IntegerCase> {
+
+		private final int value;
+		private final String label;
+
+		private IntegerCase(int value, String label) {
+			this.value = value;
+			this.label = label;
+		}
+
+		@Override
+		public int compareTo(IntegerCase other) {
+			return Integer.compare(value, other.value);
+		}
+
+	}
+
+	private static class ConstantBlock {
+
+		private final boolean loop;
+		private boolean opened = false;
+		private boolean taken = false;
+		private boolean dead = false;
+		private boolean elseSeen = false;
+
+		private ConstantBlock(boolean loop) {
+			this.loop = loop;
+		}
+
+	}
+
 	private Environment environment;
 	private NameGenerator nameGenerator;
 	private UserFunction enclosingFunction = null;
-	private Variable functionNullReturn = null;
+	private List<Variable> temporaries = new ArrayList<>();
+	private boolean nativeJumps = false;
+	private boolean optimize = false;
+	private Variable assignTarget = null;
+	private boolean assignedInPlace = false;
+	private Map<String, Variable> pureCalls = new HashMap<>();
+	private Map<Variable, ValueType> valueTypes = new HashMap<>();
+	private boolean registerCalls = false;
+	private CallGraph callGraph = null;
+	private boolean profile = false;
+	private List<UserFunction> profiledFunctions = new ArrayList<>();
+	private Set<String> stackCalls = new HashSet<>();
+	private LinkedList<ConstantBlock> constants = new LinkedList<>();
+	private LinkedList<Block> blocks = new LinkedList<>();
+	private LinkedList<Integer> logicLibIfs = new LinkedList<>();
+	private LinkedList<LoopFrame> loops = new LinkedList<>();
+	private LinkedList<SelectBlock> selects = new LinkedList<>();
+	private Set<Variable> conditionInputs = null;
+	private boolean conditionPure = true;
+	private String connector = null;
+	private Set<String> requiredHeaders = new TreeSet<>(
+			String.CASE_INSENSITIVE_ORDER);
+	private SymbolLog symbols = new SymbolLog();
 
 	public StatementParser(Environment environment, NameGenerator nameGenerator) {
 		this.environment = environment;
 		this.nameGenerator = nameGenerator;
 	}
 
+	/**
+	 * Returns a new parser with the same options and a new environment, e.g.
+	 * to parse a file on another thread.
+	 */
+	public StatementParser copy(NameGenerator nameGenerator) {
+		StatementParser copy = new StatementParser(
+				EnvironmentFactory.build(nameGenerator), nameGenerator);
+		copy.nativeJumps = nativeJumps;
+		copy.optimize = optimize;
+		copy.registerCalls = registerCalls;
+		copy.callGraph = callGraph;
+		copy.profile = profile;
+		return copy;
+	}
+
 	public Environment getEnvironment() {
 		return environment;
 	}
 
+	public List<Variable> getTemporaries() {
+		return temporaries;
+	}
+
+	/**
+	 * Records the symbols read and changed by the parsed statements.
+	 */
+	public void setSymbolLog(SymbolLog symbols) {
+		this.symbols = symbols;
+		environment.setListener(symbols);
+	}
+
+	/**
+	 * Returns <code>true</code> outside functions, blocks and code never
+	 * executed, where a file can be parsed on its own.
+	 */
+	public boolean isTopLevel() {
+		return enclosingFunction == null && blocks.isEmpty()
+				&& constants.isEmpty() && logicLibIfs.isEmpty()
+				&& loops.isEmpty() && selects.isEmpty();
+	}
+
+	/**
+	 * Returns the current value of a symbol recorded by this parser, or
+	 * <code>null</code> if the symbol is not known to it.
+	 */
+	public String symbolValue(String symbol) {
+		if (symbol.startsWith("stack:")) {
+			return String.valueOf(stackCalls.contains(symbol.substring(6)));
+		} else if (symbol.startsWith("safe:")) {
+			return String.valueOf(callGraph != null
+					&& callGraph.isRegisterCallSafe(symbol.substring(5)));
+		}
+		return null;
+	}
+
+	/**
+	 * Registers again a variable registered before by a file restored from
+	 * the cache.
+	 */
+	public void restoreVariable(String name, boolean generated)
+			throws EnvironmentException {
+		Variable variable = environment.restoreVariable(name, generated);
+		if (generated) {
+			temporaries.add(variable);
+		}
+	}
+
+	/**
+	 * Registers again a function declared before by a file restored from the
+	 * cache.
+	 */
+	public void restoreFunction(String name, boolean hasReturn,
+			boolean registerCall, boolean profile, List<String> args)
+			throws EnvironmentException {
+		UserFunction function = environment.restoreUserFunction(name, args);
+		function.setHasReturn(hasReturn);
+		function.setRegisterCall(registerCall);
+		if (profile) {
+			function.setProfile(true);
+			profiledFunctions.add(function);
+		}
+	}
+
+	/**
+	 * Registers a function declared in a file not parsed yet, with the
+	 * calling convention its declaration would get now.
+	 */
+	public void declareFunction(String name, boolean hasReturn,
+			List<String> args) throws EnvironmentException {
+		restoreFunction(name, hasReturn, registerCalls
+				&& !stackCalls.contains(name.toLowerCase())
+				&& callGraph != null && callGraph.isRegisterCallSafe(name),
+				profile, args);
+	}
+
+	public void setNativeJumps(boolean nativeJumps) {
+		this.nativeJumps = nativeJumps;
+	}
+
+	public boolean isRegisterCalls() {
+		return registerCalls;
+	}
+
+	public void setRegisterCalls(boolean registerCalls) {
+		this.registerCalls = registerCalls;
+	}
+
+	/**
+	 * Functions that may pass arguments in variables. Without a call graph
+	 * all functions use the stack.
+	 */
+	public void setCallGraph(CallGraph callGraph) {
+		this.callGraph = callGraph;
+	}
+
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Functions declared so far with profiling instrumentation.
+	 */
+	public List<UserFunction> getProfiledFunctions() {
+		return profiledFunctions;
+	}
+
+	/**
+	 * NSIS header files needed by the compiled code seen so far.
+	 */
+	public Set<String> getRequiredHeaders() {
+		return requiredHeaders;
+	}
+
+	/**
+	 * Records the header files of LogicLib and header function macros used in
+	 * the code, including plain NSIS statements and macro bodies.
+	 */
+	public void requireHeaders(String code) throws EnvironmentException {
+		if (code.indexOf("${") == -1) {
+			return;
+		}
+		Matcher matcher = MACRO_PATTERN.matcher(code);
+		while (matcher.find()) {
+			String macro = matcher.group(1);
+			if (LOGICLIB_MACROS.contains(macro.toLowerCase())) {
+				requireHeader(LOGICLIB_HEADER);
+			} else {
+				String header = environment.getCallable(macro)
+						.getRequiredHeader();
+				if (header != null) {
+					requireHeader(header);
+				}
+			}
+		}
+	}
+
+	public void requireHeader(String header) {
+		requiredHeaders.add(header);
+		symbols.change(null, "header", header);
+	}
+
 	public String parseVarDeclare(InputReader reader)
 			throws InvalidSyntaxException, EnvironmentException {
 		StringBuilder sb = new StringBuilder();
@@ -91,21 +409,43 @@ class StatementParser {
 					+ "'");
 		}
 
-		Word word = reader.nextWord();
+		TypeObject value = parseValue(variable, reader.nextWord(), reader, sb);
+		ValueType type = typeOf(value);
+		forgetKnownValuesOf(variable);
+		if (type != null) {
+			valueTypes.put(variable, type);
+		}
+		assign(variable, value, reader.getIndent(), sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Parses the rest of the statement as a value to be assigned into the
+	 * variable. Function return and integer expression are written directly
+	 * into the variable, and then the variable itself is returned.
+	 */
+	private TypeObject parseValue(Variable variable, Word word,
+			InputReader reader, StringBuilder sb)
+			throws InvalidSyntaxException, EnvironmentException {
 		TypeObject value;
 		WordTail tail = reader.getWordTail();
-		if (tail.isConcatenation()) {
+		assignedInPlace = false;
+		if (tail.isConcatenation() || isOperatorNext(reader)) {
+			assignTarget = variable;
 			value = parseExpression(word, sb, reader);
+			assignedInPlace = value == variable;
 		} else if (tail.isFunctionArgsOpen()) {
 			// Direct function return assign to avoid declaring yet another
 			// dummy variable for function return
 			sb.append(parseCall(word, variable, reader));
-			if (reader.getWordTail().isConcatenation()) {
-				sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			value = variable;
+			if (reader.getWordTail().isConcatenation()
+					|| isOperatorNext(reader)) {
+				assignTarget = variable;
 				value = parseExpression(variable, sb, reader);
-			} else {
-				return sb.toString();
 			}
+			assignedInPlace = value == variable;
 		} else if (word.getType() == Type.NAME) {
 			value = environment.getVariable(word.asName(), enclosingFunction);
 		} else {
@@ -115,9 +455,18 @@ class StatementParser {
 			throw new InvalidSyntaxException(
 					"Unexpected word at the end of statement");
 		}
-		sb.append(NSISStatements.variableAssign(reader.getIndent(), variable,
-				value));
-		return sb.toString();
+		return value;
+	}
+
+	private void assign(Variable variable, TypeObject value, String indent,
+			StringBuilder sb) {
+		if (assignedInPlace
+				&& sb.toString().endsWith(NSISStatements.NEWLINE_MARKER)) {
+			// Value was computed directly into the variable
+			sb.setLength(sb.length() - NSISStatements.NEWLINE_MARKER.length());
+		} else {
+			sb.append(NSISStatements.variableAssign(indent, variable, value));
+		}
 	}
 
 	public String parseFunctionBegin(InputReader reader)
@@ -126,10 +475,26 @@ class StatementParser {
 			throw new InvalidSyntaxException(
 					"Cannot declare function within a function");
 		}
+		forgetKnownValues();
 		enclosingFunction = environment.registerUserFunction(reader.nextWord()
 				.asName());
 		logger.debug(reader,
 				"Register new function '" + enclosingFunction.getName() + "'");
+		if (registerCalls) {
+			if (isStackCall(enclosingFunction.getName().toLowerCase())) {
+				logger.debug(reader, "Function '" + enclosingFunction.getName()
+						+ "' is called before declaration, using stack for arguments");
+			} else if (!isRegisterCallSafe(enclosingFunction.getName())) {
+				logger.debug(reader, "Function '" + enclosingFunction.getName()
+						+ "' is recursive or referenced by name, using stack for arguments");
+			} else {
+				enclosingFunction.setRegisterCall(true);
+			}
+		}
+		if (profile) {
+			enclosingFunction.setProfile(true);
+			profiledFunctions.add(enclosingFunction);
+		}
 
 		StringBuilder sb = new StringBuilder();
 
@@ -168,11 +533,24 @@ class StatementParser {
 		}
 		StringBuilder sb = new StringBuilder();
 		TypeObject value = null;
-		if (reader.hasNextWord()) {
+		if (reader.hasNextWord() && enclosingFunction.isRegisterCall()) {
+			Variable returnVariable = enclosingFunction.getReturnVariable();
+			if (enclosingFunction.getReturnType() == ReturnType.VOID) {
+				sb.append(NSISStatements.variableDeclare(reader.getIndent(),
+						returnVariable));
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			enclosingFunction.setHasReturn(true);
+			assign(returnVariable,
+					parseValue(returnVariable, reader.nextWord(), reader, sb),
+					reader.getIndent(), sb);
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		} else if (reader.hasNextWord()) {
 			enclosingFunction.setHasReturn(true);
 			Word word = reader.nextWord();
 			WordTail tail = reader.getWordTail();
-			if (tail.isFunctionArgsOpen() || tail.isConcatenation()) {
+			if (tail.isFunctionArgsOpen() || tail.isConcatenation()
+					|| isOperatorNext(reader)) {
 				value = parseExpression(word, sb, reader);
 			} else if (word.getType() == Type.NAME) {
 				value = environment.getVariable(word.asName(),
@@ -183,6 +561,7 @@ class StatementParser {
 		}
 		sb.append(NSISStatements.functionReturn(reader.getIndent(),
 				enclosingFunction, value));
+		forgetKnownValues();
 		return sb.toString();
 	}
 
@@ -192,6 +571,7 @@ class StatementParser {
 			throw new InvalidSyntaxException(
 					"FunctionEnd is not allowed outside function");
 		}
+		forgetKnownValues();
 		enclosingFunction = null;
 		return NSISStatements.functionEnd(reader.getIndent());
 	}
@@ -207,7 +587,14 @@ class StatementParser {
 		}
 		List<TypeObject> args = parseAndValidateFunctionArguments(callable,
 				returnVar, reader, sb);
-		sb.append(call(reader.getIndent(), callable, args, returnVar));
+		TypeObject constant = optimize && returnVar != null ? ConstantEvaluator
+				.call(callable, args) : null;
+		if (constant != null) {
+			sb.append(NSISStatements.variableAssign(reader.getIndent(),
+					returnVar, constant));
+		} else {
+			sb.append(call(reader.getIndent(), callable, args, returnVar));
+		}
 		return sb.toString();
 	}
 
@@ -226,7 +613,8 @@ class StatementParser {
 				Word word = reader.nextWord();
 				WordTail tail = reader.getWordTail();
 				if (!tail.isFunctionArgsClose()
-						&& (tail.isFunctionArgsOpen() || tail.isConcatenation())) {
+						&& (tail.isFunctionArgsOpen() || tail.isConcatenation())
+						|| isOperatorNext(reader)) {
 					arg = parseExpression(word, buffer, reader);
 				} else if (word.getType() == Type.NAME) {
 					Variable variable = environment.getVariable(word.asName(),
@@ -271,17 +659,25 @@ class StatementParser {
 	protected String call(String indent, Callable callable,
 			List<TypeObject> args, Variable returnVar)
 			throws InvalidSyntaxException, EnvironmentException {
+		if (!callable.isPure()) {
+			// Function may change any variable
+			forgetVariableValues();
+			conditionPure = false;
+		}
+		addConditionInputs(args);
+		if (callable instanceof AdHocFunction) {
+			addStackCall(callable.getName().toLowerCase());
+		}
 		StringBuilder sb = new StringBuilder();
 		if (returnVar == null
 				&& callable.getReturnType() == ReturnType.REQUIRED) {
-			if (functionNullReturn == null) {
-				functionNullReturn = environment.registerVariable(NULLVAR_NAME,
-						null);
-				sb.append(NSISStatements.variableDeclare(indent,
-						functionNullReturn));
+			if (environment.containsVariable(NULLVAR_NAME, null)) {
+				returnVar = environment.getVariable(NULLVAR_NAME, null);
+			} else {
+				returnVar = environment.registerVariable(NULLVAR_NAME, null);
+				sb.append(NSISStatements.variableDeclare(indent, returnVar));
 				sb.append(NSISStatements.NEWLINE_MARKER);
 			}
-			returnVar = functionNullReturn;
 		} else if (returnVar != null
 				&& callable.getReturnType() == ReturnType.ERRORFLAG) {
 			sb.append(environment.getCallable("strcpy").statementFor(indent,
@@ -290,7 +686,16 @@ class StatementParser {
 			sb.append(NSISStatements.clearErrors(indent));
 			sb.append(NSISStatements.NEWLINE_MARKER);
 		}
-		sb.append(callable.statementFor(indent, args, returnVar));
+		String lowered = optimize ? HeaderLowering.lower(indent, callable,
+				args, returnVar, loweringTarget(indent, sb)) : null;
+		if (lowered == null && callable.getRequiredHeader() != null) {
+			requireHeader(callable.getRequiredHeader());
+		}
+		sb.append(lowered == null ? callable.statementFor(indent, args,
+				returnVar) : lowered);
+		if (returnVar != null) {
+			setReturnType(callable, returnVar);
+		}
 		if (returnVar != null
 				&& callable.getReturnType() == ReturnType.ERRORFLAG) {
 			sb.append(NSISStatements.NEWLINE_MARKER);
@@ -305,61 +710,798 @@ class StatementParser {
 			throws InvalidSyntaxException, EnvironmentException {
 		String define = Character.toUpperCase(keyword.charAt(0))
 				+ keyword.substring(1);
-		if (!reader.hasNextWord()) {
-			return NSISStatements.logicLibDefine(reader.getIndent(), define);
+		boolean top = define.equals("Do");
+		forgetKnownValues();
+		connector = null;
+		if (top && optimize) {
+			conditionInputs = new HashSet<>();
+			conditionPure = true;
+		}
+		ComparisonStatement statement = null;
+		if (reader.hasNextWord()) {
+			List<ComparisonStatement> statements = parseComparisonStatement(
+					reader.nextWord(), reader);
+			if (statements.size() != 1) {
+				throw new InvalidSyntaxException("Illegal loop syntax");
+			}
+			if (statements.get(0).isNot()) {
+				throw new InvalidSyntaxException(String.format(
+						"Illegal modifier 'Not' in %s statement", define));
+			}
+			statement = statements.get(0);
+		}
+		String setup = statement == null ? "" : statement.getSetup();
+		if (top) {
+			LoopFrame frame = new LoopFrame(statement == null);
+			if (conditionInputs != null && conditionPure && !setup.isEmpty()) {
+				// Calls without side effects may be hoisted out of the loop
+				frame.inputs = conditionInputs;
+				frame.reevaluate = withoutDeclarations(setup);
+			}
+			conditionInputs = null;
+			loops.push(frame);
+		}
+		String loop;
+		if (optimize) {
+			loop = foldDoLoop(define, statement, setup, reader.getIndent());
+		} else {
+			loop = doLoop(define, statement, setup, reader.getIndent());
+		}
+		if (!top && !loops.isEmpty()) {
+			loops.pop();
+		}
+		// Loop body may be run again with different values
+		forgetKnownValues();
+		return loop;
+	}
+
+	private String doLoop(String define, ComparisonStatement statement,
+			String setup, String indent) throws InvalidSyntaxException {
+		LoopFrame frame = loops.peek();
+		if (define.equals("Do") && frame != null
+				&& (statement == null || setup.isEmpty())) {
+			frame.reevaluate = null;
+		}
+		if (nativeJumps) {
+			return nativeDoLoop(define, statement, setup, indent);
 		}
 		StringBuilder sb = new StringBuilder();
-		List<ComparisonStatement> statements = parseComparisonStatement(
-				reader.nextWord(), reader, sb);
-		if (statements.size() != 1) {
-			throw new InvalidSyntaxException("Illegal loop syntax");
+		if (define.equals("Do")) {
+			if (statement == null) {
+				return NSISStatements.logicLibDefine(indent, define);
+			} else if (setup.isEmpty() || frame.reevaluate != null) {
+				// Hoisted setup is run again at the end of the iteration only
+				// when the loop body may change its inputs
+				return setup
+						+ NSISStatements.logicLibComparisonStatement(indent,
+								define, statement);
+			}
+			// Call the functions on every iteration before the exit test
+			boolean until = statement.getKey().equalsIgnoreCase("until");
+			sb.append(NSISStatements.logicLibDefine(indent, define));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(setup);
+			sb.append(NSISStatements.logicLibComparisonStatement(indent,
+					withKey(until ? "IfThen" : "IfNotThen", statement)));
+			sb.append(" ${|} ");
+			sb.append(NSISStatements.logicLibDefine("", "ExitDo"));
+			sb.append(" ${|}");
+			return sb.toString();
+		}
+		if (frame != null && frame.cont != null) {
+			sb.append(NSISStatements.label(indent, frame.cont));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		sb.append(reevaluation(frame));
+		sb.append(setup);
+		if (statement == null) {
+			sb.append(NSISStatements.logicLibDefine(indent, define));
+		} else {
+			sb.append(NSISStatements.logicLibComparisonStatement(indent,
+					define, statement));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the hoisted condition setup of the loop if it has to be run
+	 * again at the end of the iteration.
+	 */
+	private static String reevaluation(LoopFrame frame) {
+		if (frame == null || frame.reevaluate == null
+				|| !frame.isInputChanged()) {
+			return "";
+		}
+		return frame.reevaluate;
+	}
+
+	private static String withoutDeclarations(String setup) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : setup.split(NSISStatements.NEWLINE_MARKER)) {
+			if (!line.trim().startsWith("Var ")) {
+				sb.append(line);
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+		}
+		return sb.toString();
+	}
+
+	private String foldDoLoop(String define, ComparisonStatement statement,
+			String setup, String indent) throws InvalidSyntaxException {
+		Boolean value = statement == null ? null : ConstantEvaluator
+				.compare(statement);
+		boolean until = statement != null
+				&& statement.getKey().equalsIgnoreCase("until");
+		if (define.equals("Do")) {
+			ConstantBlock block = new ConstantBlock(true);
+			boolean outerDead = isDeadCode();
+			constants.push(block);
+			if (outerDead || (value != null && value == until)) {
+				// Loop body is never executed
+				block.dead = true;
+				return setup;
+			}
+			block.opened = true;
+			if (value == null) {
+				return doLoop(define, statement, setup, indent);
+			}
+			// Always entered
+			return setup + doLoop(define, null, "", indent);
+		}
+		ConstantBlock block = constants.peek();
+		if (block == null || !block.loop) {
+			throw new InvalidSyntaxException("Loop without Do");
+		}
+		constants.pop();
+		if (!block.opened) {
+			return "";
+		} else if (value != null && value != until) {
+			// Always repeat
+			return setup + doLoop(define, null, "", indent);
+		}
+		// Never repeated loop keeps its exit test, so that the exit is
+		// reached also by Continue
+		return doLoop(define, statement, setup, indent);
+	}
+
+	private String nativeDoLoop(String define, ComparisonStatement statement,
+			String setup, String indent) throws InvalidSyntaxException {
+		StringBuilder sb = new StringBuilder();
+		LoopFrame frame = loops.peek();
+		Block block;
+		if (define.equals("Do")) {
+			block = new Block(true, "do_" + nameGenerator.generate());
+			blocks.push(block);
+			if (frame != null && frame.reevaluate != null) {
+				// Hoisted setup is run again at the end of the iteration
+				sb.append(setup);
+				statement = withKey(statement.getKey(), statement);
+				statement.setSetup("");
+			}
+			sb.append(NSISStatements.label(indent, block.next));
+			if (statement != null) {
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+		} else {
+			block = blocks.peek();
+			if (block == null || !block.loop) {
+				throw new InvalidSyntaxException("Loop without Do");
+			}
+			blocks.pop();
+			if (block.cont != null) {
+				sb.append(NSISStatements.label(indent, block.cont));
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			sb.append(reevaluation(frame));
+			if (statement == null) {
+				sb.append(NSISStatements.goTo(indent, block.next));
+			}
+		}
+		if (statement != null) {
+			boolean until = statement.getKey().equalsIgnoreCase("until");
+			String exit = null;
+			String repeat = null;
+			if (define.equals("Do")) {
+				exit = endLabel(block);
+			} else {
+				repeat = block.next;
+			}
+			Condition condition = new Condition(Arrays.asList(statement),
+					nameGenerator);
+			String jumps = until ? condition.jumps(indent, exit, repeat)
+					: condition.jumps(indent, repeat, exit);
+			sb.append(jumps.substring(0, jumps.length()
+					- NSISStatements.NEWLINE_MARKER.length()));
 		}
-		if (statements.get(0).isNot()) {
-			throw new InvalidSyntaxException(String.format(
-					"Illegal modifier 'Not' in %s statement", define));
+		if (!define.equals("Do") && block.end != null) {
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(NSISStatements.label(indent, block.end));
 		}
-		sb.append(NSISStatements.logicLibComparisonStatement(
-				reader.getIndent(), define, statements.get(0)));
 		return sb.toString();
 	}
 
+	private static String endLabel(Block block) {
+		if (block.end == null) {
+			block.end = "end" + block.next;
+		}
+		return block.end;
+	}
+
+	public String parseContinue(InputReader reader)
+			throws InvalidSyntaxException {
+		forgetKnownValues();
+		Block loop = nativeJumps ? innermostLoop() : null;
+		LoopFrame frame = nativeJumps ? null : loops.peek();
+		if (frame != null && (frame.plain || frame.reevaluate != null)) {
+			// Jump to the setup of Loop condition or hoisted Do condition
+			if (frame.cont == null) {
+				frame.cont = "loop_" + nameGenerator.generate();
+			}
+			return NSISStatements.goTo(reader.getIndent(), frame.cont);
+		} else if (loop == null) {
+			return NSISStatements
+					.logicLibDefine(reader.getIndent(), "Continue");
+		}
+		if (loop.cont == null) {
+			loop.cont = "loop_" + loop.next.substring(3);
+		}
+		return NSISStatements.goTo(reader.getIndent(), loop.cont);
+	}
+
+	public String parseBreak(InputReader reader) throws InvalidSyntaxException {
+		forgetKnownValues();
+		return breakStatement(reader.getIndent());
+	}
+
+	private String breakStatement(String indent) {
+		Block loop = nativeJumps ? innermostLoop() : null;
+		if (loop == null) {
+			return NSISStatements.logicLibDefine(indent, "Break");
+		}
+		return NSISStatements.goTo(indent, endLabel(loop));
+	}
+
+	private Block innermostLoop() {
+		Iterator<Block> iterator = blocks.iterator();
+		while (iterator.hasNext()) {
+			Block block = iterator.next();
+			if (block.loop) {
+				return block;
+			}
+		}
+		return null;
+	}
+
 	public String parseIf(Word keyword, InputReader reader)
 			throws InvalidSyntaxException, EnvironmentException {
-		StringBuilder sb = new StringBuilder();
-		StringBuilder buffer = new StringBuilder();
+		boolean elseIf = keyword.asName().equals("elseif");
+		if (elseIf) {
+			forgetKnownValues();
+		}
+		connector = null;
 		List<ComparisonStatement> statements = parseComparisonStatement(
-				keyword, reader, buffer);
+				keyword, reader);
+		while (reader.hasNextWord()) {
+			statements.addAll(parseComparisonStatement(reader.nextWord(),
+					reader));
+		}
+		String statement;
+		if (optimize) {
+			statement = foldIf(elseIf, statements, reader.getIndent());
+		} else {
+			statement = ifStatement(elseIf, statements, reader.getIndent());
+		}
+		if (elseIf || (connector != null && !connector.equals("and")
+				&& hasDeferredSetup(statements))) {
+			// ElseIf setup is not run when the previous branch was taken and
+			// terms after Or are not run when the earlier ones hold
+			forgetKnownValues();
+		}
+		return statement;
+	}
+
+	private String ifStatement(boolean elseIf,
+			List<ComparisonStatement> statements, String indent)
+			throws InvalidSyntaxException, EnvironmentException {
+		if (nativeJumps) {
+			return nativeIf(elseIf, statements, indent);
+		}
+		StringBuilder sb = new StringBuilder();
+		boolean shortCircuit = hasDeferredSetup(statements);
+		if (!elseIf) {
+			logicLibIfs.push(0);
+		} else if (!logicLibIfs.isEmpty()
+				&& (shortCircuit || !statements.get(0).getSetup().isEmpty())) {
+			// Setup must not be run when an earlier branch was taken, so open
+			// a nested If in the Else branch instead
+			sb.append(NSISStatements.logicLibDefine(indent, "Else"));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			logicLibIfs.push(logicLibIfs.pop() + 1);
+			statements.set(0, withKey("If", statements.get(0)));
+		}
+		if (shortCircuit) {
+			// LogicLib runs all setup up front, evaluate the condition with
+			// native jumps and test the outcome
+			Variable flag = registerAndDeclareVariable(null, indent, sb);
+			temporaries.add(flag);
+			String end = "cond_" + nameGenerator.generate();
+			sb.append(NSISStatements.variableAssign(indent, flag,
+					new SimpleTypeObject(Type.INTEGER, 0)));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(new Condition(statements, nameGenerator).jumps(indent,
+					null, end));
+			sb.append(NSISStatements.variableAssign(indent, flag,
+					new SimpleTypeObject(Type.INTEGER, 1)));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(NSISStatements.label(indent, end));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			ComparisonStatement test = new ComparisonStatement(statements
+					.get(0).getKey());
+			test.addLeft(flag);
+			test.setCompare("=");
+			test.addRight(new SimpleTypeObject(Type.INTEGER, 1));
+			sb.append(NSISStatements.logicLibComparisonStatement(indent, test));
+			return sb.toString();
+		}
+		sb.append(statements.get(0).getSetup());
 		for (int i = 0; i < statements.size(); i++) {
 			if (i > 0) {
 				sb.append(NSISStatements.NEWLINE_MARKER);
 			}
-			sb.append(NSISStatements.logicLibComparisonStatement(
-					reader.getIndent(), statements.get(i)));
+			sb.append(NSISStatements.logicLibComparisonStatement(indent,
+					statements.get(i)));
 		}
-		while (reader.hasNextWord()) {
-			statements = parseComparisonStatement(reader.nextWord(), reader,
-					buffer);
-			for (ComparisonStatement statement : statements) {
+		return sb.toString();
+	}
+
+	/**
+	 * Returns <code>true</code> if some term after the first one needs setup
+	 * instructions, which must be run only when the term is tested.
+	 */
+	private static boolean hasDeferredSetup(
+			List<ComparisonStatement> statements) {
+		for (int i = 1; i < statements.size(); i++) {
+			if (!statements.get(i).getSetup().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String setupOf(List<ComparisonStatement> statements) {
+		StringBuilder sb = new StringBuilder();
+		for (ComparisonStatement statement : statements) {
+			sb.append(statement.getSetup());
+		}
+		return sb.toString();
+	}
+
+	private String foldIf(boolean elseIf,
+			List<ComparisonStatement> statements, String indent)
+			throws InvalidSyntaxException, EnvironmentException {
+		String setup = setupOf(statements);
+		ConstantBlock block;
+		if (!elseIf) {
+			block = new ConstantBlock(false);
+			boolean outerDead = isDeadCode();
+			constants.push(block);
+			if (outerDead) {
+				block.taken = true;
+				block.dead = true;
+				return setup;
+			}
+		} else {
+			block = openConstantIfBlock("ElseIf");
+			if (block.taken) {
+				// Some earlier branch is always selected
+				block.dead = true;
+				return deadCode(setup);
+			}
+		}
+		// Calls in the later terms are made only when needed at runtime
+		Boolean value = hasDeferredSetup(statements) ? null
+				: ConstantEvaluator.evaluate(statements);
+		if (value == null) {
+			block.dead = false;
+			if (block.opened) {
+				return ifStatement(true, statements, indent);
+			}
+			// First branch that is evaluated at runtime
+			block.opened = true;
+			statements.set(0, withKey("If", statements.get(0)));
+			return ifStatement(false, statements, indent);
+		} else if (!value) {
+			boolean wasDead = block.dead;
+			block.dead = true;
+			return elseIf && !wasDead ? deadCode(setup) : setup;
+		}
+		block.taken = true;
+		block.dead = false;
+		if (block.opened) {
+			return setup + elseStatement(indent);
+		}
+		return setup;
+	}
+
+	private ConstantBlock openConstantIfBlock(String keyword)
+			throws InvalidSyntaxException {
+		ConstantBlock block = constants.peek();
+		if (block == null || block.loop) {
+			throw new InvalidSyntaxException(keyword + " without If");
+		} else if (block.elseSeen) {
+			throw new InvalidSyntaxException(keyword + " after Else");
+		}
+		return block;
+	}
+
+	private static ComparisonStatement withKey(String key,
+			ComparisonStatement statement) {
+		ComparisonStatement copy = new ComparisonStatement(key);
+		copy.setNot(statement.isNot());
+		for (TypeObject left : statement.getLeft()) {
+			copy.addLeft(left);
+		}
+		copy.setCompare(statement.getCompare());
+		for (TypeObject right : statement.getRight()) {
+			copy.addRight(right);
+		}
+		copy.setSetup(statement.getSetup());
+		return copy;
+	}
+
+	private String nativeIf(boolean elseIf,
+			List<ComparisonStatement> statements, String indent)
+			throws InvalidSyntaxException {
+		StringBuilder sb = new StringBuilder();
+		Block block;
+		if (elseIf) {
+			block = openIfBlock("ElseIf");
+			sb.append(nextBranch(block, indent));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		} else {
+			block = new Block(false, null);
+			blocks.push(block);
+		}
+		block.next = "else_" + nameGenerator.generate();
+		String jumps = new Condition(statements, nameGenerator).jumps(indent,
+				null, block.next);
+		sb.append(jumps.substring(0,
+				jumps.length() - NSISStatements.NEWLINE_MARKER.length()));
+		return sb.toString();
+	}
+
+	private Block openIfBlock(String keyword) throws InvalidSyntaxException {
+		Block block = blocks.peek();
+		if (block == null || block.loop) {
+			throw new InvalidSyntaxException(keyword + " without If");
+		} else if (block.next == null) {
+			throw new InvalidSyntaxException(keyword + " after Else");
+		}
+		return block;
+	}
+
+	private static String nextBranch(Block block, String indent) {
+		if (block.end == null) {
+			block.end = "endif_" + block.next.substring(5);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(NSISStatements.goTo(indent, block.end));
+		sb.append(NSISStatements.NEWLINE_MARKER);
+		sb.append(NSISStatements.label(indent, block.next));
+		block.next = null;
+		return sb.toString();
+	}
+
+	public String parseElse(InputReader reader) throws InvalidSyntaxException {
+		forgetKnownValues();
+		if (optimize) {
+			ConstantBlock block = openConstantIfBlock("Else");
+			block.elseSeen = true;
+			if (block.taken) {
+				block.dead = true;
+				return "";
+			}
+			block.taken = true;
+			block.dead = false;
+			return block.opened ? elseStatement(reader.getIndent()) : "";
+		}
+		return elseStatement(reader.getIndent());
+	}
+
+	private String elseStatement(String indent) throws InvalidSyntaxException {
+		if (!nativeJumps) {
+			return NSISStatements.logicLibDefine(indent, "Else");
+		}
+		return nextBranch(openIfBlock("Else"), indent);
+	}
+
+	public String parseEndIf(InputReader reader) throws InvalidSyntaxException {
+		forgetKnownValues();
+		if (optimize) {
+			ConstantBlock block = constants.peek();
+			if (block == null || block.loop) {
+				throw new InvalidSyntaxException("EndIf without If");
+			}
+			constants.pop();
+			return block.opened ? endIfStatement(reader.getIndent()) : "";
+		}
+		return endIfStatement(reader.getIndent());
+	}
+
+	private String endIfStatement(String indent) throws InvalidSyntaxException {
+		if (!nativeJumps) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(NSISStatements.logicLibDefine(indent, "EndIf"));
+			// Close the Ifs nested by ElseIf setup
+			int nested = logicLibIfs.isEmpty() ? 0 : logicLibIfs.pop();
+			for (int i = 0; i < nested; i++) {
 				sb.append(NSISStatements.NEWLINE_MARKER);
-				sb.append(NSISStatements.logicLibComparisonStatement(
-						reader.getIndent(), statement));
+				sb.append(NSISStatements.logicLibDefine(indent, "EndIf"));
 			}
+			return sb.toString();
 		}
-		if (buffer.length() > 0) {
-			sb.insert(0, buffer.toString());
+		Block block = blocks.peek();
+		if (block == null || block.loop) {
+			throw new InvalidSyntaxException("EndIf without If");
+		}
+		blocks.pop();
+		StringBuilder sb = new StringBuilder();
+		if (block.next != null) {
+			sb.append(NSISStatements.label(indent, block.next));
+		}
+		if (block.end != null) {
+			if (sb.length() > 0) {
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			sb.append(NSISStatements.label(indent, block.end));
 		}
 		return sb.toString();
 	}
 
-	private List<ComparisonStatement> parseComparisonStatement(Word keyword,
-			InputReader reader, StringBuilder buffer)
+	public String parseSelect(InputReader reader)
+			throws InvalidSyntaxException, EnvironmentException {
+		if (!reader.hasNextWord()) {
+			throw new InvalidSyntaxException("Select without expression");
+		}
+		StringBuilder sb = new StringBuilder();
+		String indent = reader.getIndent();
+		TypeObject subject = parseExpression(reader.nextWord(), sb, reader);
+		if (reader.hasNextWord()) {
+			throw new InvalidSyntaxException(
+					"Unexpected word at the end of statement");
+		}
+		ValueType type = typeOf(subject);
+		if (!(subject instanceof Variable)
+				&& !ConstantEvaluator.isConstant(subject)) {
+			// Evaluate the subject only once
+			Variable copy = registerAndDeclareVariable(null, indent, sb);
+			temporaries.add(copy);
+			sb.append(NSISStatements.variableAssign(indent, copy, subject));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			subject = copy;
+		}
+		SelectBlock select = new SelectBlock(subject, type,
+				nameGenerator.generate());
+		selects.push(select);
+		// Cases are tested after the last one is known
+		sb.append(NSISStatements.goTo(indent, select.dispatch));
+		return sb.toString();
+	}
+
+	public String parseCase(InputReader reader)
 			throws InvalidSyntaxException, EnvironmentException {
+		SelectBlock select = selects.peek();
+		if (select == null) {
+			throw new InvalidSyntaxException("Case without Select");
+		} else if (select.otherwise != null) {
+			throw new InvalidSyntaxException("Case after Case Else");
+		} else if (!reader.hasNextWord()) {
+			throw new InvalidSyntaxException("Case without value");
+		}
+		forgetKnownValues();
+		String indent = reader.getIndent();
+		StringBuilder sb = new StringBuilder();
+		if (!select.cases.isEmpty()) {
+			sb.append(NSISStatements.goTo(indent, select.end));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		SelectCase selectCase = new SelectCase("case_"
+				+ nameGenerator.generate());
+		sb.append(NSISStatements.label(indent, selectCase.label));
+		Word word = reader.nextWord();
+		if (word.asName().equals("else") && !reader.hasNextWord()) {
+			select.otherwise = selectCase.label;
+			return sb.toString();
+		}
+		// Values are compared with the subject as it was on Select
+		if (select.subject instanceof Variable && select.type != null) {
+			valueTypes.put((Variable) select.subject, select.type);
+		}
+		while (true) {
+			StringBuilder setup = new StringBuilder();
+			ComparisonStatement test = new ComparisonStatement("If");
+			test.addLeft(select.subject);
+			test.setCompare("==");
+			test.addRight(parseExpression(word, setup, reader));
+			test.setSetup(setup.toString());
+			inferComparison(test, reader);
+			selectCase.tests.add(test);
+			if (!reader.getWordTail().isFunctionArgSeparator()) {
+				break;
+			} else if (!reader.hasNextWord()) {
+				throw new InvalidSyntaxException("Case without value");
+			}
+			word = reader.nextWord();
+		}
+		if (reader.hasNextWord()) {
+			throw new InvalidSyntaxException(
+					"Unexpected word at the end of statement");
+		}
+		forgetKnownValues();
+		select.cases.add(selectCase);
+		return sb.toString();
+	}
+
+	public String parseEndSelect(InputReader reader)
+			throws InvalidSyntaxException {
+		SelectBlock select = selects.peek();
+		if (select == null) {
+			throw new InvalidSyntaxException("EndSelect without Select");
+		}
+		selects.pop();
+		forgetKnownValues();
+		String indent = reader.getIndent();
+		String otherwise = select.otherwise == null ? select.end
+				: select.otherwise;
+		StringBuilder sb = new StringBuilder();
+		if (!select.cases.isEmpty() || select.otherwise != null) {
+			sb.append(NSISStatements.goTo(indent, select.end));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		sb.append(NSISStatements.label(indent, select.dispatch));
+		sb.append(NSISStatements.NEWLINE_MARKER);
+		List<IntegerCase> integers = integerCases(select);
+		if (integers != null) {
+			sb.append(searchTree(indent, select.subject, integers, 0,
+					integers.size(), otherwise));
+		} else {
+			for (SelectCase selectCase : select.cases) {
+				for (ComparisonStatement test : selectCase.tests) {
+					sb.append(new Condition(Arrays.asList(test),
+							nameGenerator).jumps(indent, selectCase.label,
+							null));
+				}
+			}
+			sb.append(NSISStatements.goTo(indent, otherwise));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+		}
+		sb.append(NSISStatements.label(indent, select.end));
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the case values sorted for binary search when the subject is an
+	 * integer and there are enough integer literal values to make it cheaper
+	 * than testing the values one by one, otherwise <code>null</code>.
+	 */
+	private static List<IntegerCase> integerCases(SelectBlock select) {
+		if (select.type != ValueType.INTEGER) {
+			return null;
+		}
+		Map<Integer, IntegerCase> values = new HashMap<>();
+		for (SelectCase selectCase : select.cases) {
+			for (ComparisonStatement test : selectCase.tests) {
+				TypeObject right = test.getRight().iterator().next();
+				String value = SimpleTypeObject.stripString(right);
+				if (!test.getSetup().isEmpty()
+						|| !value.matches(CANONICAL_INTEGER)
+						|| value.length() > 10) {
+					return null;
+				}
+				long number = Long.parseLong(value);
+				if (number != (int) number) {
+					return null;
+				}
+				if (!values.containsKey((int) number)) {
+					// Earlier case wins like in the linear chain
+					values.put((int) number, new IntegerCase((int) number,
+							selectCase.label));
+				}
+			}
+		}
+		if (values.size() < SEARCH_TREE_MIN_CASES) {
+			return null;
+		}
+		List<IntegerCase> sorted = new ArrayList<>(values.values());
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	private String searchTree(String indent, TypeObject subject,
+			List<IntegerCase> cases, int from, int to, String otherwise) {
+		int middle = (from + to) / 2;
+		IntegerCase pivot = cases.get(middle);
+		String less = middle > from ? "0" : otherwise;
+		String more = otherwise;
+		String moreLabel = null;
+		if (middle + 1 < to) {
+			moreLabel = "search_" + nameGenerator.generate();
+			more = moreLabel;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(NSISStatements.intCmp(indent, subject, new SimpleTypeObject(
+				Type.INTEGER, pivot.value), pivot.label, less, more));
+		sb.append(NSISStatements.NEWLINE_MARKER);
+		if (middle > from) {
+			sb.append(searchTree(indent, subject, cases, from, middle,
+					otherwise));
+		}
+		if (moreLabel != null) {
+			sb.append(NSISStatements.label(indent, moreLabel));
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(searchTree(indent, subject, cases, middle + 1, to,
+					otherwise));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns <code>true</code> when the statement being parsed is known to
+	 * be never executed.
+	 */
+	public boolean isDeadCode() {
+		for (ConstantBlock block : constants) {
+			if (block.dead) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Strips instructions from code that is never executed. Variable
+	 * declarations and compiler commands, except macro insertions, are still
+	 * needed by the code following.
+	 */
+	static String deadCode(String code) {
+		StringBuilder sb = new StringBuilder();
+		boolean continued = false;
+		for (String line : code.split(NSISStatements.NEWLINE_MARKER)) {
+			String trimmed = line.trim().toLowerCase();
+			if (continued
+					|| trimmed.startsWith("var ")
+					|| (trimmed.startsWith("!") && !trimmed
+							.startsWith("!insertmacro"))) {
+				if (sb.length() > 0) {
+					sb.append(NSISStatements.NEWLINE_MARKER);
+				}
+				sb.append(line);
+				continued = trimmed.endsWith("\\");
+			}
+		}
+		return sb.toString();
+	}
+
+	private List<ComparisonStatement> parseComparisonStatement(Word keyword,
+			InputReader reader) throws InvalidSyntaxException,
+			EnvironmentException {
 		List<ComparisonStatement> statements = new ArrayList<>();
 		String key = keyword.getValue();
 		if (key.equalsIgnoreCase("and") || key.equalsIgnoreCase("or")) {
+			// Connector turns empty once And and Or are mixed
+			if (connector == null) {
+				connector = key.toLowerCase();
+			} else if (!connector.equalsIgnoreCase(key)) {
+				connector = "";
+			}
+			if (connector.isEmpty()) {
+				// Term may be tested even if some earlier one was skipped
+				forgetKnownValues();
+			}
 			key += "If";
 		}
 		ComparisonStatement statement = new ComparisonStatement(key);
+		StringBuilder buffer = new StringBuilder();
 
 		Word left = reader.nextWord();
 		if (left.asName().equals("not")) {
@@ -376,7 +1518,7 @@ class StatementParser {
 				String asName = nextWord.asName();
 				if (asName.equals("and") || asName.equals("or")) {
 					statements.addAll(parseComparisonStatement(nextWord,
-							reader, buffer));
+							reader));
 				} else {
 					statement
 							.addLeft(parseExpression(nextWord, buffer, reader));
@@ -392,6 +1534,8 @@ class StatementParser {
 					reader));
 		}
 
+		inferComparison(statement, reader);
+		statement.setSetup(buffer.toString());
 		statements.add(0, statement);
 		return statements;
 	}
@@ -399,49 +1543,134 @@ class StatementParser {
 	protected TypeObject parseExpression(TypeObject expr, StringBuilder buffer,
 			InputReader reader) throws InvalidSyntaxException,
 			EnvironmentException {
-		TypeObject object;
-		WordTail tail = reader.getWordTail();
-		if (tail.isFunctionArgsOpen()) {
-			Variable fReturn = parseInExpressionCall(expr, buffer, reader);
-			if (tail.isComparison()) {
-				object = fReturn;
+		// Only the outermost expression may write directly into the assigned
+		// variable
+		Variable output = assignTarget;
+		assignTarget = null;
+		List<TypeObject> operands = new ArrayList<>();
+		List<String> operators = new ArrayList<>();
+		boolean arithmetic = false;
+		operands.add(parseOperand(expr, buffer, reader));
+		while (reader.hasNextWord()) {
+			if (reader.getWordTail().isConcatenation()) {
+				operators.add("+");
+			} else if (isOperatorNext(reader)) {
+				operators.add(reader.nextWord().getValue());
+				if (!reader.getWordTail().isEmpty()) {
+					throw new InvalidSyntaxException(
+							"Unexpected character after operator");
+				}
+				arithmetic = true;
 			} else {
-				object = parseExpression(fReturn, buffer, reader);
+				break;
+			}
+			operands.add(parseOperand(reader.nextWord(), buffer, reader));
+		}
+		if (operators.isEmpty()) {
+			return operands.get(0);
+		} else if (!arithmetic) {
+			return concatenate(operands);
+		}
+		for (TypeObject operand : operands) {
+			if (typeOf(operand) == ValueType.STRING) {
+				logger.warn(reader, String.format(
+						"Using non-numeric value %s in integer expression.",
+						operand.getValue()));
 			}
-		} else if (tail.isConcatenation()) {
-			TypeObject concat = concatenateWithNext(expr, buffer, reader);
-			object = parseExpression(concat, buffer, reader);
+		}
+		IntegerExpression expression = new IntegerExpression(operands,
+				operators);
+		return lower(expression, output, reader.getIndent(), buffer);
+	}
+
+	private static boolean isOperatorNext(InputReader reader)
+			throws InvalidSyntaxException {
+		return reader.getWordTail().isEmpty() && reader.hasNextWord()
+				&& IntegerExpression.isOperator(reader.peekWord().getValue());
+	}
+
+	private TypeObject parseOperand(TypeObject expr, StringBuilder buffer,
+			InputReader reader) throws InvalidSyntaxException,
+			EnvironmentException {
+		if (reader.getWordTail().isFunctionArgsOpen()) {
+			return parseInExpressionCall(expr, buffer, reader);
 		} else if (expr.getType() == Type.NAME) {
-			object = environment
-					.getVariable(expr.getValue(), enclosingFunction);
-		} else {
-			object = expr;
+			return environment.getVariable(expr.getValue(), enclosingFunction);
 		}
-		return object;
+		return expr;
 	}
 
-	private TypeObject concatenateWithNext(TypeObject left,
-			StringBuilder buffer, InputReader reader)
-			throws EnvironmentException, InvalidSyntaxException {
-		String leftValue;
-		if (left.getType() == Type.NAME) {
-			leftValue = environment.getVariable(left.getValue().toLowerCase(),
-					enclosingFunction).getValue();
-		} else {
-			leftValue = SimpleTypeObject.stripString(left);
+	private static TypeObject concatenate(List<TypeObject> operands) {
+		StringBuilder value = new StringBuilder();
+		for (TypeObject operand : operands) {
+			value.append(SimpleTypeObject.stripString(operand));
+		}
+		return new SimpleTypeObject(Type.STRING, value.toString());
+	}
+
+	private TypeObject lower(IntegerExpression expression, Variable output,
+			final String indent, final StringBuilder buffer)
+			throws InvalidSyntaxException {
+		final List<Variable> scratch = new ArrayList<>();
+		final LinkedList<Variable> free = new LinkedList<>();
+		final Callable intOp;
+		try {
+			intOp = environment.getCallable("intop");
+		} catch (EnvironmentException e) {
+			throw new InvalidSyntaxException(e.getMessage());
 		}
+		IntegerExpression.Target target = new IntegerExpression.Target() {
+
+			@Override
+			public Variable acquire() throws InvalidSyntaxException {
+				if (!free.isEmpty()) {
+					return free.pop();
+				}
+				try {
+					Variable variable = registerAndDeclareVariable(null,
+							indent, buffer);
+					temporaries.add(variable);
+					scratch.add(variable);
+					return variable;
+				} catch (EnvironmentException e) {
+					throw new InvalidSyntaxException(e.getMessage());
+				}
+			}
+
+			@Override
+			public void release(Variable variable) {
+				free.push(variable);
+			}
 
-		String rightValue = SimpleTypeObject.stripString(parseExpression(
-				reader.nextWord(), buffer, reader));
+			@Override
+			public boolean isScratch(TypeObject object) {
+				return scratch.contains(object);
+			}
 
-		return new SimpleTypeObject(Type.STRING, leftValue + rightValue);
+			@Override
+			public void intOp(Variable result, TypeObject value1, String op,
+					TypeObject value2) throws InvalidSyntaxException {
+				buffer.append(intOp.statementFor(indent, new ArrayList<>(
+						Arrays.asList(value1, new SimpleTypeObject(
+								Type.SPECIAL, op), value2)), result));
+				buffer.append(NSISStatements.NEWLINE_MARKER);
+				valueTypes.put(result, ValueType.INTEGER);
+				addConditionInputs(Arrays.asList(value1, value2));
+			}
+
+		};
+		return expression.lower(target, output);
 	}
 
-	private Variable parseInExpressionCall(TypeObject callableName,
+	private TypeObject parseInExpressionCall(TypeObject callableName,
 			StringBuilder buffer, InputReader reader)
 			throws InvalidSyntaxException, EnvironmentException {
-		Variable fReturn = registerAndDeclareVariable(nameGenerator.generate(),
+		if (optimize) {
+			return parseInExpressionConstantCall(callableName, buffer, reader);
+		}
+		Variable fReturn = registerAndDeclareVariable(null,
 				reader.getIndent(), buffer);
+		temporaries.add(fReturn);
 		logger.debug(reader, "Register new function return varibale '"
 				+ fReturn.getName() + "'");
 		buffer.append(parseCall(new Word(callableName.getValue()), fReturn,
@@ -450,10 +1679,269 @@ class StatementParser {
 		return fReturn;
 	}
 
+	private TypeObject parseInExpressionConstantCall(TypeObject callableName,
+			StringBuilder buffer, InputReader reader)
+			throws InvalidSyntaxException, EnvironmentException {
+		Callable callable = environment.getCallable(new Word(callableName
+				.getValue()).asName());
+		if (callable.getReturnType() == ReturnType.VOID) {
+			throw new InvalidSyntaxException("Function doesn't return a value");
+		}
+		// Parse arguments first to see if the call can be evaluated at
+		// compile time without a return variable
+		StringBuilder argsBuffer = new StringBuilder();
+		List<TypeObject> args = parseAndValidateFunctionArguments(callable,
+				null, reader, argsBuffer);
+		buffer.append(argsBuffer);
+		TypeObject constant = ConstantEvaluator.call(callable, args);
+		if (constant != null) {
+			logger.debug(reader, "Evaluated function '" + callable.getName()
+					+ "' at compile time");
+			return constant;
+		}
+		String key = callable.isPure() ? pureCallKey(callable, args) : null;
+		if (key != null && pureCalls.containsKey(key)) {
+			logger.debug(reader, "Reusing return value of function '"
+					+ callable.getName() + "'");
+			return pureCalls.get(key);
+		}
+		Variable fReturn = registerAndDeclareVariable(null,
+				reader.getIndent(), buffer);
+		temporaries.add(fReturn);
+		logger.debug(reader, "Register new function return varibale '"
+				+ fReturn.getName() + "'");
+		buffer.append(call(reader.getIndent(), callable, args, fReturn));
+		buffer.append(NSISStatements.NEWLINE_MARKER);
+		if (key != null) {
+			pureCalls.put(key, fReturn);
+		}
+		return fReturn;
+	}
+
+	private static String pureCallKey(Callable callable, List<TypeObject> args) {
+		StringBuilder key = new StringBuilder(callable.getName());
+		for (TypeObject arg : args) {
+			key.append('\0');
+			key.append(arg.getValue());
+		}
+		return key.toString().toLowerCase();
+	}
+
+	/**
+	 * Registers a function called or referenced from plain NSIS code, which
+	 * always passes the arguments in the stack.
+	 */
+	public void registerPlainCall(String name, InputReader reader) {
+		String key = name.toLowerCase();
+		try {
+			Callable callable = environment.getCallable(key);
+			if (callable instanceof UserFunction
+					&& ((UserFunction) callable).isRegisterCall()) {
+				logger.warn(reader, String.format(
+						"Function '%s' passes arguments and return value in variables instead of the stack.",
+						callable.getName()));
+			}
+		} catch (EnvironmentException e) {
+			// Not a function known to BridleNSIS
+		}
+		addStackCall(key);
+	}
+
+	/**
+	 * Records a function called by name or before its declaration, which
+	 * must use the stack for arguments.
+	 */
+	public void addStackCall(String key) {
+		stackCalls.add(key);
+		symbols.change("stack:" + key, "stack", key);
+	}
+
+	private boolean isStackCall(String key) {
+		boolean stackCall = stackCalls.contains(key);
+		symbols.read("stack:" + key, String.valueOf(stackCall));
+		return stackCall;
+	}
+
+	private boolean isRegisterCallSafe(String name) {
+		boolean safe = callGraph != null && callGraph.isRegisterCallSafe(name);
+		symbols.read("safe:" + name.toLowerCase(), String.valueOf(safe));
+		return safe;
+	}
+
+	/**
+	 * Forgets return values of earlier pure function calls and types of
+	 * variables. Must be called where the code may be reached from elsewhere,
+	 * e.g. at labels and loops.
+	 */
+	public void forgetKnownValues() {
+		pureCalls.clear();
+		valueTypes.clear();
+	}
+
+	/**
+	 * Forgets known values after a statement that may change any variable.
+	 */
+	public void forgetVariableValues() {
+		forgetKnownValues();
+		for (LoopFrame loop : loops) {
+			loop.changed = true;
+		}
+	}
+
+	private void addConditionInputs(Collection<TypeObject> values) {
+		if (conditionInputs == null) {
+			return;
+		}
+		for (TypeObject value : values) {
+			if (value instanceof Variable) {
+				conditionInputs.add((Variable) value);
+			} else if (!ConstantEvaluator.isConstant(value)) {
+				conditionPure = false;
+			}
+		}
+	}
+
+	private void forgetKnownValuesOf(Variable variable) {
+		String value = variable.getValue().toLowerCase();
+		Iterator<String> keys = pureCalls.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().contains(value)) {
+				keys.remove();
+			}
+		}
+		valueTypes.remove(variable);
+		for (LoopFrame loop : loops) {
+			loop.assigned.add(variable);
+		}
+	}
+
+	/**
+	 * Returns the type of the value if it's known at this point: canonical
+	 * decimal integer or a string NSIS cannot read as an integer.
+	 */
+	private ValueType typeOf(TypeObject object) {
+		if (object instanceof Variable) {
+			return valueTypes.get(object);
+		} else if (object == NSISStatements.NULL) {
+			return null;
+		}
+		String value = SimpleTypeObject.stripString(object);
+		if (value.indexOf('$') != -1) {
+			return null;
+		} else if (value.matches(CANONICAL_INTEGER)) {
+			return ValueType.INTEGER;
+		} else if (!value.matches(NUMERIC_PREFIX)) {
+			return ValueType.STRING;
+		}
+		return null;
+	}
+
+	/**
+	 * Value has no letters, so it doesn't matter whether it's compared case
+	 * sensitively or not.
+	 */
+	private boolean isCaseless(TypeObject object) {
+		if (typeOf(object) == ValueType.INTEGER) {
+			return true;
+		} else if (object instanceof Variable
+				|| object == NSISStatements.NULL) {
+			return false;
+		}
+		String value = SimpleTypeObject.stripString(object);
+		return value.indexOf('$') == -1
+				&& value.toLowerCase().equals(value.toUpperCase());
+	}
+
+	private void setReturnType(Callable callable, Variable returnVar) {
+		if (callable.getReturnType() == ReturnType.ERRORFLAG
+				|| INTEGER_FUNCTIONS.contains(callable.getName().toLowerCase())) {
+			valueTypes.put(returnVar, ValueType.INTEGER);
+		} else {
+			valueTypes.remove(returnVar);
+		}
+	}
+
+	private void inferComparison(ComparisonStatement statement,
+			InputReader reader) {
+		String compare = statement.getCompare();
+		if (compare == null || statement.getLeft().size() != 1
+				|| statement.getRight().size() != 1) {
+			return;
+		}
+		TypeObject left = statement.getLeft().iterator().next();
+		TypeObject right = statement.getRight().iterator().next();
+		if (compare.equals("==") || compare.equals("!=")) {
+			if (isNonCanonicalInteger(left, right)
+					|| isNonCanonicalInteger(right, left)) {
+				logger.warn(reader, String.format(
+						"Comparing integer %s %s %s as strings, use '%s' to compare integers.",
+						left.getValue(), compare, right.getValue(),
+						compare.equals("==") ? "=" : "<>"));
+			}
+			if ((nativeJumps || optimize)
+					&& (isCaseless(left) || isCaseless(right))) {
+				statement.setCompare("S" + compare);
+			}
+		} else if (!compare.startsWith("S")) {
+			for (TypeObject object : Arrays.asList(left, right)) {
+				if (typeOf(object) == ValueType.STRING) {
+					logger.warn(reader, String.format(
+							"Comparing non-numeric value %s with integer operator '%s'.",
+							object.getValue(), compare));
+				}
+			}
+		}
+	}
+
+	private boolean isNonCanonicalInteger(TypeObject integer, TypeObject other) {
+		if (typeOf(integer) != ValueType.INTEGER
+				|| other instanceof Variable || other == NSISStatements.NULL) {
+			return false;
+		}
+		String value = SimpleTypeObject.stripString(other);
+		return value.matches(NUMERIC) && !value.matches(CANONICAL_INTEGER);
+	}
+
+	private HeaderLowering.Target loweringTarget(final String indent,
+			final StringBuilder buffer) {
+		return new HeaderLowering.Target() {
+
+			@Override
+			public Variable acquire() throws InvalidSyntaxException {
+				try {
+					Variable variable = registerAndDeclareVariable(null,
+							indent, buffer);
+					temporaries.add(variable);
+					return variable;
+				} catch (EnvironmentException e) {
+					throw new InvalidSyntaxException(e.getMessage());
+				}
+			}
+
+			@Override
+			public String label() {
+				return "header_" + nameGenerator.generate();
+			}
+
+			@Override
+			public String instruction(String name, Variable output,
+					TypeObject... args) throws InvalidSyntaxException {
+				try {
+					return environment.getCallable(name).statementFor(indent,
+							Arrays.asList(args), output);
+				} catch (EnvironmentException e) {
+					throw new InvalidSyntaxException(e.getMessage());
+				}
+			}
+
+		};
+	}
+
 	private Variable registerAndDeclareVariable(String name, String indent,
 			StringBuilder buffer) throws EnvironmentException {
-		String varName = (name == null) ? nameGenerator.generate() : name;
-		Variable variable = environment.registerVariable(varName,
+		Variable variable = (name == null) ? environment
+				.registerGeneratedVariable(nameGenerator.generate(),
+						enclosingFunction) : environment.registerVariable(name,
 				enclosingFunction);
 		buffer.append(NSISStatements.variableDeclare(indent, variable));
 		buffer.append(NSISStatements.NEWLINE_MARKER);
@@ -0,0 +1,104 @@
+package bridlensis;
+
+import java.util.LinkedList;
+
+import bridlensis.env.AdHocFunction;
+import bridlensis.env.Callable;
+import bridlensis.env.EnvironmentListener;
+import bridlensis.env.UserFunction;
+import bridlensis.env.Variable;
+
+/**
+ * Records the symbols read and the changes made while parsing files to the
+ * cache entries of the files being parsed. A file parsed inside another file
+ * is recorded to the entries of both. Nothing is recorded while no entry is
+ * open.
+ */
+class SymbolLog implements EnvironmentListener {
+
+	private final LinkedList<TranspileCache.Entry> entries = new LinkedList<>();
+	private boolean paused = false;
+
+	public boolean isRecording() {
+		return !paused && !entries.isEmpty();
+	}
+
+	public void begin(TranspileCache.Entry entry) {
+		entries.push(entry);
+	}
+
+	public void end(TranspileCache.Entry entry) {
+		entries.remove(entry);
+	}
+
+	/**
+	 * Stops recording while checking the values of symbols.
+	 */
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	public void read(String symbol, String value) {
+		if (isRecording()) {
+			for (TranspileCache.Entry entry : entries) {
+				entry.read(symbol, value);
+			}
+		}
+	}
+
+	public void change(String symbol, String... change) {
+		if (isRecording()) {
+			for (TranspileCache.Entry entry : entries) {
+				entry.change(symbol, change);
+			}
+		}
+	}
+
+	@Override
+	public void variableLookup(String name, Variable variable) {
+		read("var:" + name, variable == null ? "-" : "+");
+	}
+
+	@Override
+	public void callableLookup(String name, Callable callable) {
+		read("fn:" + name, describe(callable));
+	}
+
+	@Override
+	public void variableRegistered(Variable variable, boolean generated) {
+		change("var:" + variable.getName(), "variable", variable.getName(),
+				String.valueOf(generated));
+	}
+
+	@Override
+	public void functionRegistered(UserFunction function) {
+		if (isRecording()) {
+			for (TranspileCache.Entry entry : entries) {
+				entry.change("fn:" + function.getName().toLowerCase());
+				entry.addFunction(function);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of a function symbol: its name and calling
+	 * convention, or <code>-</code> for an unknown function.
+	 */
+	public static String describe(Callable callable) {
+		if (callable == null || callable instanceof AdHocFunction) {
+			return "-";
+		} else if (!(callable instanceof UserFunction)) {
+			return callable.getClass().getName();
+		}
+		UserFunction function = (UserFunction) callable;
+		StringBuilder sb = new StringBuilder(function.getName());
+		sb.append(':').append(function.getReturnType());
+		sb.append(':').append(function.isRegisterCall());
+		sb.append(':').append(function.isProfile());
+		for (int i = 0; i < function.getArgsCount(); i++) {
+			sb.append(':').append(function.getArgument(i).getName());
+		}
+		return sb.toString();
+	}
+
+}
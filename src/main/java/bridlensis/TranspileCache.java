@@ -0,0 +1,335 @@
+package bridlensis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bridlensis.env.UserFunction;
+
+/**
+ * On-disk cache of converted files, one entry for each parsed file. The
+ * cache is kept separately for each compiler version and options, and an
+ * entry is keyed by the path and content hash of the file. An entry holds
+ * the symbols the file read with their values, e.g. the functions it calls
+ * and the include files it looked for, the changes the file made to the
+ * symbols, the converted code and the output files of the include files it
+ * followed. The entry is used only if the symbols still have the same
+ * values, and then the changes are replayed instead of parsing the file.
+ */
+class TranspileCache {
+
+	private static final Logger logger = Logger.getInstance();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MANIFEST = "manifest";
+	private static final String TEXT = "text";
+
+	/**
+	 * Symbols read, changes and output of one parsed file.
+	 */
+	static class Entry {
+
+		private final String key;
+		private final Map<String, String> symbols = new LinkedHashMap<>();
+		private final Set<String> changed = new HashSet<>();
+		private final List<List<String>> changes = new ArrayList<>();
+		private final List<UserFunction> functions = new ArrayList<>();
+		private final Map<String, byte[]> outputs = new LinkedHashMap<>();
+		private String text = "";
+		private int inputLines = 0;
+		private int fileCount = 0;
+		private int skippedStatements = 0;
+		private int instructionsIn = 0;
+		private int instructionsOut = 0;
+		private int generatedNames = 0;
+
+		public Entry(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Adds the value of a symbol read unless the file changed the symbol
+		 * before or read it already.
+		 */
+		public void read(String symbol, String value) {
+			if (!changed.contains(symbol) && !symbols.containsKey(symbol)) {
+				symbols.put(symbol, value);
+			}
+		}
+
+		/**
+		 * Adds a change to replay, if any, to the symbol, if any.
+		 */
+		public void change(String symbol, String... change) {
+			if (symbol != null) {
+				changed.add(symbol);
+			}
+			if (change.length > 0) {
+				changes.add(Arrays.asList(change));
+			}
+		}
+
+		/**
+		 * Adds a function registered, replayed with its final signature.
+		 */
+		public void addFunction(UserFunction function) {
+			functions.add(function);
+		}
+
+		public Map<String, String> getSymbols() {
+			return symbols;
+		}
+
+		public List<List<String>> getChanges() {
+			return changes;
+		}
+
+		public List<UserFunction> getFunctions() {
+			return functions;
+		}
+
+		public void addOutput(String name, byte[] content) {
+			outputs.put(name, content);
+		}
+
+		public Map<String, byte[]> getOutputs() {
+			return outputs;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		public int getInputLines() {
+			return inputLines;
+		}
+
+		public void setInputLines(int inputLines) {
+			this.inputLines = inputLines;
+		}
+
+		public int getFileCount() {
+			return fileCount;
+		}
+
+		public void setFileCount(int fileCount) {
+			this.fileCount = fileCount;
+		}
+
+		public int getSkippedStatements() {
+			return skippedStatements;
+		}
+
+		public void setSkippedStatements(int skippedStatements) {
+			this.skippedStatements = skippedStatements;
+		}
+
+		public int getInstructionsIn() {
+			return instructionsIn;
+		}
+
+		public int getInstructionsOut() {
+			return instructionsOut;
+		}
+
+		public void setInstructions(int instructionsIn, int instructionsOut) {
+			this.instructionsIn = instructionsIn;
+			this.instructionsOut = instructionsOut;
+		}
+
+		/**
+		 * Number of names the file took from the name generator.
+		 */
+		public int getGeneratedNames() {
+			return generatedNames;
+		}
+
+		public void setGeneratedNames(int generatedNames) {
+			this.generatedNames = generatedNames;
+		}
+
+	}
+
+	private final Path dir;
+
+	public TranspileCache(File cacheDir, String key) {
+		this.dir = new File(cacheDir, Hashes.sha256Hex(key.getBytes(UTF8))
+				.substring(0, 16)).toPath();
+	}
+
+	/**
+	 * Returns the key of the entry of a file with the given content.
+	 */
+	public static String keyOf(File file, byte[] content) {
+		return file.getAbsolutePath() + "|" + Hashes.sha256Hex(content);
+	}
+
+	private Path entryDir(String key) {
+		return dir.resolve(Hashes.sha256Hex(key.getBytes(UTF8)).substring(0,
+				16));
+	}
+
+	/**
+	 * Returns the entry with the given key or <code>null</code> if there is
+	 * none.
+	 */
+	public Entry lookup(String key) throws IOException {
+		Path entryDir = entryDir(key);
+		Path manifest = entryDir.resolve(MANIFEST);
+		if (!Files.isRegularFile(manifest)) {
+			logger.debug("No cache entry in " + entryDir);
+			return null;
+		}
+		Entry entry = new Entry(key);
+		for (String line : Files.readAllLines(manifest, UTF8)) {
+			List<String> fields = split(line);
+			switch (fields.get(0)) {
+			case "key":
+				if (!fields.get(1).equals(key)) {
+					// Hash collision of the entry directory
+					return null;
+				}
+				break;
+			case "symbol":
+				entry.symbols.put(fields.get(1), fields.get(2));
+				break;
+			case "change":
+				entry.changes.add(fields.subList(1, fields.size()));
+				break;
+			case "output":
+				entry.addOutput(fields.get(1),
+						Files.readAllBytes(entryDir.resolve(fields.get(2))));
+				break;
+			case "lines":
+				entry.setInputLines(Integer.parseInt(fields.get(1)));
+				break;
+			case "files":
+				entry.setFileCount(Integer.parseInt(fields.get(1)));
+				break;
+			case "skipped":
+				entry.setSkippedStatements(Integer.parseInt(fields.get(1)));
+				break;
+			case "instructions":
+				entry.setInstructions(Integer.parseInt(fields.get(1)),
+						Integer.parseInt(fields.get(2)));
+				break;
+			case "names":
+				entry.setGeneratedNames(Integer.parseInt(fields.get(1)));
+				break;
+			}
+		}
+		entry.setText(new String(Files.readAllBytes(entryDir.resolve(TEXT)),
+				UTF8));
+		return entry;
+	}
+
+	public void store(Entry entry) throws IOException {
+		Path entryDir = entryDir(entry.getKey());
+		Files.createDirectories(entryDir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(entryDir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		List<String> manifest = new ArrayList<>();
+		manifest.add(join("key", entry.getKey()));
+		for (Map.Entry<String, String> symbol : entry.symbols.entrySet()) {
+			manifest.add(join("symbol", symbol.getKey(), symbol.getValue()));
+		}
+		for (List<String> change : entry.changes) {
+			List<String> fields = new ArrayList<>();
+			fields.add("change");
+			fields.addAll(change);
+			manifest.add(join(fields.toArray(new String[fields.size()])));
+		}
+		int index = 0;
+		for (Map.Entry<String, byte[]> output : entry.outputs.entrySet()) {
+			String fileName = (index++) + ".out";
+			Files.write(entryDir.resolve(fileName), output.getValue());
+			manifest.add(join("output", output.getKey(), fileName));
+		}
+		Files.write(entryDir.resolve(TEXT), entry.getText().getBytes(UTF8));
+		manifest.add(join("lines", String.valueOf(entry.getInputLines())));
+		manifest.add(join("files", String.valueOf(entry.getFileCount())));
+		manifest.add(join("skipped",
+				String.valueOf(entry.getSkippedStatements())));
+		manifest.add(join("instructions",
+				String.valueOf(entry.getInstructionsIn()),
+				String.valueOf(entry.getInstructionsOut())));
+		manifest.add(join("names", String.valueOf(entry.getGeneratedNames())));
+		// Written last, the entry is incomplete without it
+		Files.write(entryDir.resolve(MANIFEST), manifest, UTF8);
+		logger.debug("Stored cache entry in " + entryDir);
+	}
+
+	/**
+	 * Joins the fields with tabs escaping tabs, line breaks and backslashes.
+	 */
+	private static String join(String... fields) {
+		StringBuilder sb = new StringBuilder();
+		for (String field : fields) {
+			if (sb.length() > 0) {
+				sb.append('\t');
+			}
+			for (int i = 0; i < field.length(); i++) {
+				char c = field.charAt(i);
+				switch (c) {
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				default:
+					sb.append(c);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\t') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\\' && i + 1 < line.length()) {
+				char escaped = line.charAt(++i);
+				field.append(escaped == 't' ? '\t' : escaped == 'r' ? '\r'
+						: escaped == 'n' ? '\n' : escaped);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+}
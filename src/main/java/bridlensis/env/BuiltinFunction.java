@@ -6,13 +6,18 @@ import java.util.List;
 
 abstract class BuiltinFunction extends Callable {
 
+	private static final String PURE_MARKER = "@pure";
+
 	public static BuiltinFunction parse(String line,
 			Class<? extends BuiltinFunction> instanceClass) {
 		String[] parts = line.split(" ");
 		List<String> args = new ArrayList<>();
 		Integer returnArgIndex = null;
+		boolean pure = false;
 		for (int i = 1; i < parts.length; i++) {
-			if (parts[i].equals("output")) {
+			if (parts[i].equals(PURE_MARKER)) {
+				pure = true;
+			} else if (parts[i].equals("output")) {
 				returnArgIndex = i - 1;
 			} else {
 				args.add(parts[i]);
@@ -30,6 +35,7 @@ abstract class BuiltinFunction extends Callable {
 		if (returnArgIndex != null) {
 			function.setReturnArgIndex(returnArgIndex);
 		}
+		function.setPure(pure);
 		for (String arg : args) {
 			function.registerArguments(arg);
 		}
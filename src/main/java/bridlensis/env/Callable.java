@@ -16,6 +16,8 @@ public abstract class Callable {
 
 	private final List<String> aliases;
 	private final List<Variable> arguments;
+	private boolean pure = false;
+	private String requiredHeader = null;
 
 	protected Callable(String... aliases) {
 		if (aliases.length == 0) {
@@ -51,6 +53,31 @@ public abstract class Callable {
 		return arguments.get(index);
 	}
 
+	/**
+	 * Pure function has no side effects and returns the same value for the
+	 * same arguments, so calling it again can be replaced with the previous
+	 * return value.
+	 */
+	public boolean isPure() {
+		return pure;
+	}
+
+	protected void setPure(boolean pure) {
+		this.pure = pure;
+	}
+
+	/**
+	 * NSIS header file (e.g. <code>WordFunc.nsh</code>) defining the macro the
+	 * function is compiled to, or <code>null</code> if none is needed.
+	 */
+	public String getRequiredHeader() {
+		return requiredHeader;
+	}
+
+	protected void setRequiredHeader(String requiredHeader) {
+		this.requiredHeader = requiredHeader;
+	}
+
 	public abstract int getMandatoryArgsCount();
 
 	public abstract ReturnType getReturnType();
@@ -0,0 +1,52 @@
+package bridlensis.env;
+
+/**
+ * Generates the shortest names in base 36 (<code>_.0</code>,
+ * <code>_.1</code>, ..., <code>_.z</code>, <code>_.10</code>, ...) after a
+ * <code>_.</code> prefix. NSIS accepts the dot in variable names but the
+ * script doesn't, so the names never collide with variables of the user.
+ * The counter grows one digit at a time, so it never runs out of names, and
+ * the sequence is always the same for the same script.
+ */
+public class CompactNameGenerator implements NameGenerator {
+
+	private static final String PREFIX = "_.";
+	private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz"
+			.toCharArray();
+
+	// Digit indexes, least significant first
+	private int[] counter;
+	private int length;
+
+	public CompactNameGenerator() {
+		counter = new int[4];
+		length = 1;
+	}
+
+	@Override
+	public String generate() {
+		char[] name = new char[PREFIX.length() + length];
+		PREFIX.getChars(0, PREFIX.length(), name, 0);
+		for (int i = 0; i < length; i++) {
+			name[name.length - 1 - i] = DIGITS[counter[i]];
+		}
+		increment();
+		return new String(name);
+	}
+
+	private void increment() {
+		int i = 0;
+		while (i < length && ++counter[i] == DIGITS.length) {
+			counter[i++] = 0;
+		}
+		if (i == length) {
+			if (length == counter.length) {
+				int[] grown = new int[length * 2];
+				System.arraycopy(counter, 0, grown, 0, length);
+				counter = grown;
+			}
+			counter[length++] = 1;
+		}
+	}
+
+}
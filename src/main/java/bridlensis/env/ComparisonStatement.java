@@ -11,6 +11,7 @@ public class ComparisonStatement {
 	private List<TypeObject> left;
 	private String compare;
 	private List<TypeObject> right;
+	private String setup;
 
 	public ComparisonStatement(String key) {
 		this.key = key;
@@ -18,6 +19,7 @@ public class ComparisonStatement {
 		this.left = new ArrayList<>();
 		this.compare = null;
 		this.right = new ArrayList<>();
+		this.setup = "";
 	}
 
 	public String getKey() {
@@ -40,6 +42,14 @@ public class ComparisonStatement {
 		return right;
 	}
 
+	/**
+	 * Returns the instructions that have to be run right before this
+	 * statement is tested, e.g. function calls in the operands.
+	 */
+	public String getSetup() {
+		return setup;
+	}
+
 	public void setNot(boolean value) {
 		not = value;
 	}
@@ -56,6 +66,10 @@ public class ComparisonStatement {
 		right.add(expr);
 	}
 
+	public void setSetup(String value) {
+		setup = value;
+	}
+
 	@Override
 	public String toString() {
 		return "ComparisonStatement[key=" + key + ", not=" + not + ", left="
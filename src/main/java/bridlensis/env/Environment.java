@@ -14,16 +14,25 @@ public class Environment {
 	private static List<String> RESERVED_WORDS = Arrays.asList("var", "global",
 			"function", "return", "functionend", "if", "not", "or", "and",
 			"elseif", "else", "endif", "do", "while", "until", "continue",
-			"break", "loop");
+			"break", "loop", "select", "case", "endselect");
 
 	private final Map<String, Variable> vars;
 	private final Map<String, Callable> callables;
+	private EnvironmentListener listener = null;
 
 	protected Environment() {
 		vars = new HashMap<>();
 		callables = new HashMap<>();
 	}
 
+	/**
+	 * Sets the listener of the variables and functions looked up and
+	 * registered from now on, or removes it if <code>null</code>.
+	 */
+	public void setListener(EnvironmentListener listener) {
+		this.listener = listener;
+	}
+
 	protected void add(Variable variable) {
 		if (vars.containsKey(variable.getName())) {
 			throw new AssertionError("Variable " + variable.getName()
@@ -54,6 +63,30 @@ public class Environment {
 			throw new EnvironmentException(
 					"Variable name cannot contain special characters");
 		}
+		return register(name, enclosingFunction, false);
+	}
+
+	/**
+	 * Registers a variable with a name from a {@link NameGenerator}. The name
+	 * may contain characters which are not allowed in variable names of the
+	 * script, so that it never collides with a variable of the user.
+	 */
+	public Variable registerGeneratedVariable(String name,
+			UserFunction enclosingFunction) throws EnvironmentException {
+		return register(name.toLowerCase(), enclosingFunction, true);
+	}
+
+	/**
+	 * Registers again a variable registered before with the given full name,
+	 * e.g. <code>foo.a</code> for an argument of function <code>foo</code>.
+	 */
+	public Variable restoreVariable(String name, boolean generated)
+			throws EnvironmentException {
+		return register(name, null, generated);
+	}
+
+	private Variable register(String name, UserFunction enclosingFunction,
+			boolean generated) throws EnvironmentException {
 		Variable variable;
 		if (enclosingFunction != null) {
 			variable = new Variable(enclosingFunction.getName() + "." + name);
@@ -63,21 +96,27 @@ public class Environment {
 		if (vars.containsKey(variable.getName())) {
 			throw new EnvironmentException("Variable already defined");
 		}
+		if (listener != null) {
+			listener.variableLookup(variable.getName(), null);
+		}
 		vars.put(variable.getName(), variable);
+		if (listener != null) {
+			listener.variableRegistered(variable, generated);
+		}
 		return variable;
 	}
 
 	public boolean containsVariable(String name, UserFunction enclosingFunction)
 			throws EnvironmentException {
-		return vars.containsKey(getNormalizedVariableName(name,
-				enclosingFunction));
+		return lookupVariable(getNormalizedVariableName(name,
+				enclosingFunction)) != null;
 	}
 
 	public Variable getVariable(String name, UserFunction enclosingFunction)
 			throws EnvironmentException {
 		String normalizedVariableName = getNormalizedVariableName(name,
 				enclosingFunction);
-		Variable variable = vars.get(normalizedVariableName);
+		Variable variable = lookupVariable(normalizedVariableName);
 		if (variable == null) {
 			throw new EnvironmentException(String.format(
 					"Unknown variable '%s'", normalizedVariableName));
@@ -85,6 +124,14 @@ public class Environment {
 		return variable;
 	}
 
+	private Variable lookupVariable(String normalizedName) {
+		Variable variable = vars.get(normalizedName);
+		if (listener != null) {
+			listener.variableLookup(normalizedName, variable);
+		}
+		return variable;
+	}
+
 	private String getNormalizedVariableName(String name,
 			UserFunction enclosingFunction) throws EnvironmentException {
 		name = name.toLowerCase();
@@ -100,10 +147,14 @@ public class Environment {
 
 	public Callable getCallable(String name) throws EnvironmentException {
 		String key = name.toLowerCase();
-		if (!callables.containsKey(key)) {
+		Callable callable = callables.get(key);
+		if (listener != null) {
+			listener.callableLookup(key, callable);
+		}
+		if (callable == null) {
 			return new AdHocFunction(name);
 		}
-		return callables.get(key);
+		return callable;
 	}
 
 	public UserFunction registerUserFunction(String name)
@@ -122,8 +173,27 @@ public class Environment {
 			throw new EnvironmentException(
 					"Function name cannot contain special characters");
 		}
+		if (listener != null) {
+			listener.callableLookup(key, null);
+		}
 		UserFunction function = new UserFunction(name);
 		callables.put(key, function);
+		if (listener != null) {
+			listener.functionRegistered(function);
+		}
+		return function;
+	}
+
+	/**
+	 * Registers again a function registered before with the full names of
+	 * its argument variables.
+	 */
+	public UserFunction restoreUserFunction(String name, List<String> args)
+			throws EnvironmentException {
+		UserFunction function = registerUserFunction(name);
+		for (String arg : args) {
+			function.registerArgument(new Variable(arg));
+		}
 		return function;
 	}
 
@@ -7,6 +7,8 @@ import java.util.Scanner;
 
 public class EnvironmentFactory {
 
+	private static final String HEADER_MARKER = "@header ";
+
 	public static List<Variable> getBuiltinVariables() {
 		List<Variable> variables = new ArrayList<>();
 		try (Scanner scanner = new Scanner(
@@ -37,11 +39,17 @@ public class EnvironmentFactory {
 	private static List<Callable> getBuiltinFunctions(InputStream definitions,
 			Class<? extends BuiltinFunction> instanceClass) {
 		List<Callable> functions = new ArrayList<>();
+		String header = null;
 		try (Scanner scanner = new Scanner(definitions, "UTF-8")) {
 			while (scanner.hasNextLine()) {
 				String line = scanner.nextLine();
-				if (line.length() > 0 && line.charAt(0) != '#') {
-					functions.add(BuiltinFunction.parse(line, instanceClass));
+				if (line.startsWith(HEADER_MARKER)) {
+					header = line.substring(HEADER_MARKER.length()).trim();
+				} else if (line.length() > 0 && line.charAt(0) != '#') {
+					BuiltinFunction function = BuiltinFunction.parse(line,
+							instanceClass);
+					function.setRequiredHeader(header);
+					functions.add(function);
 				}
 			}
 		}
@@ -0,0 +1,25 @@
+package bridlensis.env;
+
+/**
+ * Receives the variables and functions looked up and registered in an
+ * {@link Environment}.
+ */
+public interface EnvironmentListener {
+
+	/**
+	 * Called with the normalized name of a variable looked up and the
+	 * variable, or <code>null</code> if there is none.
+	 */
+	void variableLookup(String name, Variable variable);
+
+	/**
+	 * Called with the lower case name of a function looked up and the
+	 * function, or <code>null</code> if there is none.
+	 */
+	void callableLookup(String name, Callable callable);
+
+	void variableRegistered(Variable variable, boolean generated);
+
+	void functionRegistered(UserFunction function);
+
+}
@@ -12,6 +12,7 @@ class FunctionGetFullPathName extends CustomFunction {
 	protected FunctionGetFullPathName() {
 		super(1, ReturnType.REQUIRED, "GetFullPathName");
 		registerArguments("path", "options");
+		setPure(true);
 	}
 
 	@Override
@@ -18,6 +18,8 @@ class FunctionWordFind extends CustomFunction {
 		super(3, ReturnType.REQUIRED, "WordFind" + (caseSensitive ? "S" : ""));
 		this.caseSensitive = caseSensitive;
 		registerArguments("string", "options", "delim1", "delim2", "center");
+		setPure(true);
+		setRequiredHeader("WordFunc.nsh");
 	}
 
 	@Override
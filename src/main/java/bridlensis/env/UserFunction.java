@@ -7,6 +7,9 @@ import bridlensis.NSISStatements;
 public class UserFunction extends Callable {
 
 	private boolean hasReturn = false;
+	private boolean registerCall = false;
+	private boolean profile = false;
+	private Variable returnVariable = null;
 
 	protected UserFunction(String name) {
 		super(name);
@@ -24,16 +27,58 @@ public class UserFunction extends Callable {
 
 	@Override
 	public ReturnType getReturnType() {
-		return hasReturn ? ReturnType.REQUIRED : ReturnType.VOID;
+		if (!hasReturn) {
+			return ReturnType.VOID;
+		}
+		// Return value stays in the return variable if caller doesn't need it
+		return registerCall ? ReturnType.OPTIONAL : ReturnType.REQUIRED;
 	}
 
 	public void setHasReturn(boolean hasReturn) {
 		this.hasReturn = hasReturn;
 	}
 
+	/**
+	 * Register calling convention passes the arguments directly in the
+	 * argument variables and the return value in the return variable of the
+	 * function instead of the stack.
+	 */
+	public boolean isRegisterCall() {
+		return registerCall;
+	}
+
+	public void setRegisterCall(boolean registerCall) {
+		this.registerCall = registerCall;
+		this.returnVariable = registerCall ? new Variable(getName()
+				+ ".return") : null;
+	}
+
+	public Variable getReturnVariable() {
+		return returnVariable;
+	}
+
+	/**
+	 * Profiled function counts its calls and the calls are timed.
+	 */
+	public boolean isProfile() {
+		return profile;
+	}
+
+	public void setProfile(boolean profile) {
+		this.profile = profile;
+	}
+
 	@Override
 	public String statementFor(String indent, List<TypeObject> args,
 			Variable returnVar) {
+		String statement = registerCall ? registerCallFor(indent, args,
+				returnVar) : stackCallFor(indent, args, returnVar);
+		return profile ? NSISStatements.profileCall(indent, this, statement)
+				: statement;
+	}
+
+	private String stackCallFor(String indent, List<TypeObject> args,
+			Variable returnVar) {
 		StringBuilder sb = new StringBuilder(indent);
 		for (int i = args.size() - 1; i >= 0; i--) {
 			sb.append("Push ");
@@ -52,6 +97,36 @@ public class UserFunction extends Callable {
 		return sb.toString();
 	}
 
+	private String registerCallFor(String indent, List<TypeObject> args,
+			Variable returnVar) {
+		StringBuilder sb = new StringBuilder();
+		// Recursive functions use the stack, so the arguments never refer to
+		// the argument variables being assigned
+		for (int i = 0; i < args.size(); i++) {
+			appendLine(sb, indent, "StrCpy " + getArgument(i).getValue() + " "
+					+ args.get(i).getValue());
+		}
+		sb.append(indent);
+		sb.append("Call ");
+		sb.append(getName());
+		if (hasReturn && returnVar != null && !returnVar.equals(returnVariable)) {
+			sb.append(NSISStatements.NEWLINE_MARKER);
+			sb.append(indent);
+			sb.append("StrCpy ");
+			sb.append(returnVar.getValue());
+			sb.append(' ');
+			sb.append(returnVariable.getValue());
+		}
+		return sb.toString();
+	}
+
+	private static void appendLine(StringBuilder sb, String indent,
+			String line) {
+		sb.append(indent);
+		sb.append(line);
+		sb.append(NSISStatements.NEWLINE_MARKER);
+	}
+
 	@Override
 	public String getDescription() {
 		throw new AssertionError();
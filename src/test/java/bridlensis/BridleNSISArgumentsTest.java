@@ -0,0 +1,20 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BridleNSISArgumentsTest {
+
+	@Test
+	public void testAddAllExcludes() {
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.addExclude("a.nsh");
+		arguments.addAllExcludes(Arrays.asList("b.nsh", "c.nsh"));
+		assertEquals(Arrays.asList("a.nsh", "b.nsh", "c.nsh"),
+				arguments.getExcludeFiles());
+	}
+
+}
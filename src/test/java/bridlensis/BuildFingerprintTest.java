@@ -0,0 +1,82 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BuildFingerprintTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		file.getParentFile().mkdirs();
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+
+	private String fingerprint(File script) throws IOException {
+		BuildFingerprint fingerprint = new BuildFingerprint(dir, "UTF-8");
+		fingerprint.add("/V4");
+		fingerprint.addScript(script);
+		return fingerprint.get();
+	}
+
+	@Test
+	public void testFingerprint() throws IOException {
+		File script = write("Installer.bnsi", "OutFile \"setup.exe\"\r\n"
+				+ "!include \"Lang.bnsh\"\r\n"
+				+ "File /r \"payload\\*.dll\"\r\n"
+				+ "Icon installer.ico\r\n");
+		write("Lang.bnsh", "LicenseData \"license.txt\"\r\n");
+		write("license.txt", "MIT");
+		write("installer.ico", "1");
+		write("payload/sub/a.dll", "1");
+		write("payload/b.txt", "1");
+
+		BuildFingerprint fingerprint = new BuildFingerprint(dir, "UTF-8");
+		fingerprint.addScript(script);
+		assertEquals(new File(dir, "setup.exe").getAbsolutePath(),
+				fingerprint.getInstaller().getAbsolutePath());
+
+		String first = fingerprint(script);
+		assertEquals(first, fingerprint(script));
+		write("payload/b.txt", "2");
+		assertEquals(first, fingerprint(script));
+
+		// Payload in subdirectory, included script and named files
+		write("payload/sub/a.dll", "2");
+		String second = fingerprint(script);
+		assertNotEquals(first, second);
+		write("license.txt", "GPL");
+		String third = fingerprint(script);
+		assertNotEquals(second, third);
+		write("installer.ico", "2");
+		assertNotEquals(third, fingerprint(script));
+	}
+
+	@Test
+	public void testUnresolved() throws IOException {
+		assertNull(fingerprint(write("Installer.bnsi",
+				"OutFile \"${NAME}.exe\"\r\n")));
+		assertNull(fingerprint(write("Installer.bnsi",
+				"OutFile \"setup.exe\"\r\nFile \"$INSTDIR\\a.dll\"\r\n")));
+		assertNull(fingerprint(write("Installer.bnsi",
+				"OutFile \"setup.exe\"\r\nOutFile \"setup2.exe\"\r\n")));
+	}
+
+}
@@ -0,0 +1,56 @@
+package bridlensis;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CallGraphTest {
+
+	private CallGraph scan(String code) throws IOException {
+		CallGraph callGraph = new CallGraph(null, null,
+				Collections.<String> emptyList());
+		callGraph.scan(code);
+		return callGraph;
+	}
+
+	@Test
+	public void testRecursion() throws IOException {
+		CallGraph callGraph = scan("Function a(x)\n  Return b(x)\nFunctionEnd\n"
+				+ "Function b(x)\n  If x > 0\n    c(x - 1)\n  EndIf\n"
+				+ "FunctionEnd\n"
+				+ "Function c(x)\n  a(x) ; Indirect recursion\nFunctionEnd\n"
+				+ "Function d(x)\n  c(x)\nFunctionEnd\n");
+		assertFalse(callGraph.isRegisterCallSafe("a"));
+		assertFalse(callGraph.isRegisterCallSafe("B"));
+		assertFalse(callGraph.isRegisterCallSafe("c"));
+		assertTrue(callGraph.isRegisterCallSafe("d"));
+	}
+
+	@Test
+	public void testReferences() throws IOException {
+		CallGraph callGraph = scan("Function a(x)\nFunctionEnd\n"
+				+ "Function b(x)\nFunctionEnd\n"
+				+ "Function c(x)\nFunctionEnd\n"
+				+ "Function d(x)\nFunctionEnd\n"
+				+ "Function e(x)\nFunctionEnd\n"
+				+ "Function f(x)\nFunctionEnd\n"
+				+ "Function .onInit\nFunctionEnd\n"
+				+ "Section\n  Call a\n  GetFunctionAddress $0 b\n"
+				+ "  Page custom c\n  DetailPrint \"$0 f($1)\"\n"
+				+ "  # Call e\n  /* Call e\n  */ e(1)\nSectionEnd\n"
+				+ "!macro M\n  d(1)\n!macroend\n");
+		assertFalse(callGraph.isRegisterCallSafe("a"));
+		assertFalse(callGraph.isRegisterCallSafe("b"));
+		assertFalse(callGraph.isRegisterCallSafe("c"));
+		assertFalse(callGraph.isRegisterCallSafe("d"));
+		assertTrue(callGraph.isRegisterCallSafe("e"));
+		assertFalse(callGraph.isRegisterCallSafe("f"));
+		assertFalse(callGraph.isRegisterCallSafe(".onInit"));
+		assertFalse(callGraph.isRegisterCallSafe("g"));
+	}
+
+}
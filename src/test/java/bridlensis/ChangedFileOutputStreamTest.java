@@ -0,0 +1,43 @@
+package bridlensis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class ChangedFileOutputStreamTest {
+
+	private static ChangedFileOutputStream write(File file, String content)
+			throws IOException {
+		ChangedFileOutputStream out = new ChangedFileOutputStream(file);
+		out.write(content.getBytes("UTF-8"));
+		out.close();
+		return out;
+	}
+
+	@Test
+	public void testWriteIfChanged() throws IOException {
+		File dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+		File file = new File(dir, "Test.bnsi");
+		file.deleteOnExit();
+
+		assertTrue(write(file, "StrCpy $a 1\r\n").isRewritten());
+		assertTrue(file.setLastModified(1000000000000L));
+
+		assertFalse(write(file, "StrCpy $a 1\r\n").isRewritten());
+		assertEquals(1000000000000L, file.lastModified());
+
+		assertTrue(write(file, "StrCpy $a 2\r\n").isRewritten());
+		assertArrayEquals("StrCpy $a 2\r\n".getBytes("UTF-8"),
+				Files.readAllBytes(file.toPath()));
+		assertEquals(1, dir.list().length);
+	}
+
+}
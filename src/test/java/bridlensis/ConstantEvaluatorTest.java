@@ -0,0 +1,145 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bridlensis.env.ComparisonStatement;
+import bridlensis.env.Environment;
+import bridlensis.env.EnvironmentException;
+import bridlensis.env.EnvironmentFactory;
+import bridlensis.env.SimpleTypeObject;
+import bridlensis.env.TypeObject;
+import bridlensis.env.TypeObject.Type;
+
+public class ConstantEvaluatorTest {
+
+	private static TypeObject str(String value) {
+		return new SimpleTypeObject(Type.STRING, value);
+	}
+
+	private static TypeObject integer(int value) {
+		return new SimpleTypeObject(Type.INTEGER, value);
+	}
+
+	private static ComparisonStatement statement(String key, TypeObject left,
+			String compare, TypeObject right) {
+		ComparisonStatement statement = new ComparisonStatement(key);
+		statement.addLeft(left);
+		statement.setCompare(compare);
+		statement.addRight(right);
+		return statement;
+	}
+
+	@Test
+	public void testAtoi() {
+		assertEquals(0, ConstantEvaluator.atoi(""));
+		assertEquals(42, ConstantEvaluator.atoi("42"));
+		assertEquals(-42, ConstantEvaluator.atoi("-42"));
+		assertEquals(16, ConstantEvaluator.atoi("0x10"));
+		assertEquals(255, ConstantEvaluator.atoi("0XfF"));
+		assertEquals(8, ConstantEvaluator.atoi("010"));
+		assertEquals(12, ConstantEvaluator.atoi("12abc"));
+		assertEquals(0, ConstantEvaluator.atoi("abc"));
+	}
+
+	@Test
+	public void testCompare() {
+		assertEquals(Boolean.TRUE, ConstantEvaluator.compare(statement("If",
+				str("abc"), "==", str("ABC"))));
+		assertEquals(Boolean.FALSE, ConstantEvaluator.compare(statement("If",
+				str("abc"), "!=", str("ABC"))));
+		assertEquals(Boolean.TRUE, ConstantEvaluator.compare(statement("If",
+				str("0x10"), "=", integer(16))));
+		assertEquals(Boolean.TRUE, ConstantEvaluator.compare(statement("If",
+				integer(-1), "<", integer(0))));
+		assertEquals(Boolean.FALSE, ConstantEvaluator.compare(statement("If",
+				str("abc"), "S==", str("ABC"))));
+		assertNull(ConstantEvaluator.compare(statement("If", str("$a"), "==",
+				str("a"))));
+		assertNull(ConstantEvaluator.compare(statement("If",
+				str("${Errors}"), null, str(""))));
+
+		ComparisonStatement not = statement("If", integer(1), "<=",
+				integer(2));
+		not.setNot(true);
+		assertEquals(Boolean.FALSE, ConstantEvaluator.compare(not));
+	}
+
+	@Test
+	public void testEvaluate() {
+		ComparisonStatement unknown = statement("If", str("$a"), "==",
+				str("a"));
+		ComparisonStatement yes = statement("If", integer(1), "=", integer(1));
+		ComparisonStatement no = statement("If", integer(1), "=", integer(2));
+		assertEquals(Boolean.FALSE, ConstantEvaluator.evaluate(Arrays.asList(
+				unknown, statement("AndIf", integer(1), "=", integer(2)))));
+		assertEquals(Boolean.TRUE, ConstantEvaluator.evaluate(Arrays.asList(
+				unknown, statement("OrIf", integer(1), "=", integer(1)))));
+		assertNull(ConstantEvaluator.evaluate(Arrays.asList(yes,
+				statement("AndIf", str("$a"), "==", str("a")))));
+		assertEquals(Boolean.TRUE, ConstantEvaluator.evaluate(Arrays.asList(
+				no, statement("OrIf", integer(2), ">", integer(1)))));
+	}
+
+	@Test
+	public void testCall() throws EnvironmentException {
+		Environment env = EnvironmentFactory.build(null);
+		List<TypeObject> args;
+
+		args = new ArrayList<>(Arrays.asList(str("hello")));
+		assertEquals("5", ConstantEvaluator.call(env.getCallable("strlen"),
+				args).getValue());
+
+		args = new ArrayList<>(Arrays.asList(str("hello"), integer(-1),
+				integer(1)));
+		assertEquals("\"ell\"",
+				ConstantEvaluator.call(env.getCallable("strcpy"), args)
+						.getValue());
+
+		args = new ArrayList<>(Arrays.asList(str("hello"), integer(0),
+				integer(-2)));
+		assertEquals("\"\"",
+				ConstantEvaluator.call(env.getCallable("strcpy"), args)
+						.getValue());
+
+		args = new ArrayList<>(Arrays.asList(str("ab"), str(""), integer(-5)));
+		assertEquals("\"\"",
+				ConstantEvaluator.call(env.getCallable("strcpy"), args)
+						.getValue());
+
+		args = new ArrayList<>(Arrays.asList(str("hello"), str(""),
+				integer(-2)));
+		assertEquals("\"lo\"",
+				ConstantEvaluator.call(env.getCallable("strcpy"), args)
+						.getValue());
+
+		args = new ArrayList<>(Arrays.asList(str("hello"), NSISStatements.NULL,
+				NSISStatements.NULL));
+		assertEquals("\"hello\"",
+				ConstantEvaluator.call(env.getCallable("strcpy"), args)
+						.getValue());
+
+		args = new ArrayList<>(Arrays.asList(integer(7), str("/"), integer(2)));
+		assertEquals("3", ConstantEvaluator.call(env.getCallable("intop"),
+				args).getValue());
+
+		// Division by zero sets the error flag at runtime
+		args = new ArrayList<>(Arrays.asList(integer(7), str("/"), integer(0)));
+		assertNull(ConstantEvaluator.call(env.getCallable("intop"), args));
+		args = new ArrayList<>(Arrays.asList(integer(7), str("%"), integer(0)));
+		assertNull(ConstantEvaluator.call(env.getCallable("intop"), args));
+
+		args = new ArrayList<>(Arrays.asList(str("$INSTDIR")));
+		assertNull(ConstantEvaluator.call(env.getCallable("strlen"), args));
+
+		args = new ArrayList<>(Arrays.asList(str("a"), str("b")));
+		assertNull(ConstantEvaluator.call(env.getCallable("detailprint"), args));
+	}
+
+}
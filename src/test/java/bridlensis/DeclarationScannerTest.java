@@ -0,0 +1,79 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeclarationScannerTest {
+
+	private static final String ENCODING = "Cp1252";
+
+	private static void write(File dir, String name, String content)
+			throws IOException {
+		File file = new File(dir, name);
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(ENCODING));
+	}
+
+	@Test
+	public void testDeclarations() throws IOException {
+		File dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+		write(dir, "Main.nsi", "Var a b ; c\r\n" + "!include \"Lib.nsh\"\r\n"
+				+ "Function .onInit\r\n" + "  !include \"Inner.nsh\"\r\n"
+				+ "FunctionEnd\r\n" + "!include \"Lib.nsh\"\r\n"
+				+ "!include \"Excluded.nsh\"\r\n" + "/* x = 1\r\n*/\r\n"
+				+ "d = 1\r\n" + "e == 1\r\n");
+		write(dir, "Lib.nsh", "Function add(a, B)\r\n" + "  x = a\r\n"
+				+ "  Return a + b\r\n" + "FunctionEnd\r\n"
+				+ "!macro M\r\n" + "  Var m\r\n" + "!macroend\r\n"
+				+ "Function none\r\n" + "  Return\r\n" + "FunctionEnd\r\n");
+		write(dir, "Inner.nsh", "i = 1\r\n");
+		write(dir, "Excluded.nsh", "Var excluded\r\n");
+
+		DeclarationScanner scanner = new DeclarationScanner(dir, ENCODING,
+				Arrays.asList("Excluded.nsh"), Collections.<String> emptyList());
+		scanner.scanFile(new File(dir, "Main.nsi"));
+		List<List<String>> declarations = scanner.getDeclarations();
+		assertEquals(Arrays.asList(Arrays.asList("variable", "a", "false"),
+				Arrays.asList("variable", "b", "false"), Arrays.asList(
+						"parsed", new File(dir, "Lib.nsh").getCanonicalPath(),
+						"Lib.bnsh"), Arrays.asList("declare", "add", "true",
+						"add.a", "add.b"), Arrays.asList("declare", "none",
+						"false"), Arrays.asList("parsed", new File(dir,
+						"Inner.nsh").getCanonicalPath(), "Inner.bnsh"), Arrays
+						.asList("declare", ".onInit", "false"), Arrays
+						.asList("clear"), Arrays.asList("variable", "d",
+						"false")), declarations);
+
+		// Included in a function, Inner.nsh is parsed in turn
+		assertEquals(1, scanner.getIncludes().size());
+		DeclarationScanner.Include include = scanner.getIncludes().get(0);
+		assertEquals(new File(dir, "Lib.nsh").getCanonicalPath(),
+				include.getPath());
+		assertEquals(3, include.getDeclarations());
+		assertFalse(scanner.containsPlaceholders());
+	}
+
+	@Test
+	public void testPlaceholders() throws IOException {
+		File dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+		write(dir, "Main.nsi", "DetailPrint \"_.p.0.\"\r\n");
+		DeclarationScanner scanner = new DeclarationScanner(dir, ENCODING,
+				Collections.<String> emptyList(),
+				Collections.<String> emptyList());
+		scanner.scanFile(new File(dir, "Main.nsi"));
+		assertTrue(scanner.containsPlaceholders());
+	}
+
+}
@@ -0,0 +1,110 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import bridlensis.env.EnvironmentFactory;
+import bridlensis.env.NameGenerator;
+import bridlensis.env.SimpleNameGenerator;
+
+public class DependenciesTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		file.getParentFile().mkdirs();
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+
+	private String read(File file) throws IOException {
+		file.deleteOnExit();
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+
+	private String path(String name) {
+		return new File(dir, name).getAbsolutePath();
+	}
+
+	@Test
+	public void testDependencies() throws IOException, ParserException {
+		write("Installer.nsi", "OutFile \"setup.exe\"\r\n"
+				+ "!include \"Lib.nsh\"\r\n" + "!include \"Skip.nsh\"\r\n"
+				+ "Section\r\n" + "File \"app #1.exe\"\r\n"
+				+ "File /r \"payload\\*.dll\"\r\n" + "File \"$INSTDIR\\x\"\r\n"
+				+ "SectionEnd\r\n");
+		write("Lib.nsh", "ReserveFile plugin.dll\r\n");
+		write("Skip.nsh", "\r\n");
+
+		NameGenerator nameGenerator = new SimpleNameGenerator();
+		Parser parser = new Parser(new StatementParser(
+				EnvironmentFactory.build(nameGenerator), nameGenerator), dir,
+				dir, "UTF-8", Arrays.asList("Skip.nsh"));
+		parser.setExcludeMode(Parser.ExcludeMode.REFERENCE);
+		parser.setDependencies(dir);
+		parser.parse("Installer.nsi", "Installer.bnsi");
+		read(new File(dir, "Installer.bnsi"));
+		read(new File(dir, "Lib.bnsh"));
+
+		assertEquals(path("Installer.bnsi") + " " + path("setup.exe") + ": \\\r\n" + "  "
+				+ path("Installer.nsi") + " \\\r\n" + "  " + path("Lib.nsh")
+				+ " \\\r\n" + "  " + path("Skip.nsh") + " \\\r\n" + "  "
+				+ path("plugin.dll") + " \\\r\n" + "  "
+				+ path("app\\ \\#1.exe") + "\r\n" + "\r\n"
+				+ path("Installer.nsi") + ":\r\n" + "\r\n" + path("Lib.nsh")
+				+ ":\r\n" + "\r\n" + path("Skip.nsh") + ":\r\n" + "\r\n"
+				+ path("plugin.dll") + ":\r\n" + "\r\n"
+				+ path("app\\ \\#1.exe") + ":\r\n",
+				read(new File(dir, "Installer.bnsi.d")));
+		assertEquals("{\r\n" + "  \"output\": \"" + path("Installer.bnsi")
+				+ "\",\r\n" + "  \"installer\": \"" + path("setup.exe")
+				+ "\",\r\n" + "  \"inputs\": [\"" + path("Installer.nsi")
+				+ "\", \"" + path("Lib.nsh") + "\"],\r\n"
+				+ "  \"excluded\": [\"" + path("Skip.nsh") + "\"],\r\n"
+				+ "  \"payloads\": [\"" + path("plugin.dll") + "\", \""
+				+ path("app #1.exe") + "\"],\r\n"
+				+ "  \"payloadPatterns\": [\""
+				+ path("payload" + File.separator + "*.dll") + "\"]\r\n"
+				+ "}\r\n", read(new File(dir, "Installer.bnsi.json")));
+	}
+
+	@Test
+	public void testWorkDir() throws IOException, BridleNSISException {
+		File inputFile = write("Installer.nsi", "File \"app.exe\"\r\n");
+		File outputFile = new File(dir, "Installer.bnsi");
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding("UTF-8");
+		arguments.setDependencies(true);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		read(outputFile);
+		assertTrue(read(new File(dir, "Installer.bnsi.d")).contains(
+				path("app.exe")));
+
+		// makensis stays in its work directory with /NOCD
+		arguments.setDir(new File(dir, "work"));
+		arguments.addNSISOption("/NOCD");
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertTrue(read(new File(dir, "Installer.bnsi.d")).contains(
+				path("work" + File.separator + "app.exe")));
+		read(new File(dir, "Installer.bnsi.json"));
+	}
+
+}
@@ -151,6 +151,23 @@ public class InputReaderTest {
 
 	}
 
+	@Test
+	public void testPeekWord() throws InvalidSyntaxException {
+		InputReader reader = readerFor("a = b * 2, c");
+		assertTrue(reader.goToNextStatement());
+		assertEquals("a", reader.nextWord().getValue());
+		assertEquals("b", reader.nextWord().getValue());
+		assertEquals("", reader.getWordTail().getPattern());
+		assertEquals("*", reader.peekWord().getValue());
+		assertEquals("", reader.getWordTail().getPattern());
+		assertEquals("*", reader.nextWord().getValue());
+		assertEquals("2", reader.peekWord().getValue());
+		assertEquals("2", reader.nextWord().getValue());
+		assertEquals(",", reader.getWordTail().getPattern());
+		assertEquals("c", reader.nextWord().getValue());
+		assertFalse(reader.hasNextWord());
+	}
+
 	@Test
 	public void testMultiLineClauses() throws InvalidSyntaxException {
 		InputReader reader = readerFor("DetailPrint foo(a, \\\r\n    b)\r\nStrCpy $a \\\r\n    $b");
@@ -1,17 +1,22 @@
 package bridlensis;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Scanner;
+import java.util.regex.Pattern;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -93,6 +98,257 @@ public class MakeBridleNSISTest {
 		assertFiles(expectedFile2, outputFile2, DEFAULT_ENCODING);
 	}
 
+	@Test
+	public void testAutoInclude() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("AutoInclude.nsh");
+		File expectedFile = getResourceAsFile("AutoInclude.bnsh");
+		File outputFile = new File(tempDir, "AutoInclude.bnsh");
+		outputFile.deleteOnExit();
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setAutoInclude(true);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertFiles(expectedFile, outputFile, DEFAULT_ENCODING);
+
+		// Excluded files may need the headers included by the script
+		arguments.addExclude("Excluded.nsh");
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		try (Scanner actual = new Scanner(outputFile, DEFAULT_ENCODING)) {
+			assertNotNull(actual.findWithinHorizon(
+					"\\n!include \"WordFunc.nsh\"", 0));
+		}
+	}
+
+	@Test
+	public void testPreprocessInclude() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = new File(tempDir, "Preprocess.nsi");
+		File outputFile = new File(tempDir, "Preprocess.bnsi");
+		inputFile.deleteOnExit();
+		outputFile.deleteOnExit();
+		Files.write(inputFile.toPath(), ("Var a\r\n!include \"MUI2.nsh\"\r\n"
+				+ "!ifndef PRO\r\na = 1\r\n!endif\r\n").getBytes(
+				DEFAULT_ENCODING));
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setPreprocess(true);
+		arguments.addNSISOption("/DPRO");
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		try (Scanner actual = new Scanner(outputFile, DEFAULT_ENCODING)) {
+			// Include file found by makensis may undefine the symbol
+			assertNotNull(actual.findWithinHorizon("StrCpy \\$a 1", 0));
+		}
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		File inputFile = new File(tempDir, "Stream.nsi");
+		File outputFile = new File(tempDir, "Stream.bnsi");
+		inputFile.deleteOnExit();
+		final boolean[] closed = { false };
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+
+		};
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+
+		Files.write(inputFile.toPath(), "a = 1\r\n".getBytes(DEFAULT_ENCODING));
+		try {
+			MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(),
+					inputFile, outputFile, arguments, out);
+		} catch (BridleNSISException e) {
+			fail(e.getMessage());
+		}
+		assertTrue(out.toString(DEFAULT_ENCODING).endsWith("StrCpy $a 1\r\n"));
+		assertFalse(closed[0]);
+
+		// Stream isn't ended after an error, so makensis can be stopped
+		out.reset();
+		Files.write(inputFile.toPath(),
+				"a = 1\r\nReturn 1\r\n".getBytes(DEFAULT_ENCODING));
+		try {
+			MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(),
+					inputFile, outputFile, arguments, out);
+			fail();
+		} catch (BridleNSISException e) {
+			// OK
+		}
+		assertFalse(closed[0]);
+	}
+
+	@Test
+	public void testAmalgamate() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("Amalgamate.nsh");
+		File expectedFile = getResourceAsFile("Amalgamate.bnsh");
+		File outputFile = new File(tempDir, "Amalgamate.bnsh");
+		outputFile.deleteOnExit();
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setAmalgamate(true);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertFiles(expectedFile, outputFile, DEFAULT_ENCODING);
+	}
+
+	@Test
+	public void testProfile() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("Profile.nsh");
+		File expectedFile = getResourceAsFile("Profile.bnsh");
+		File outputFile = new File(tempDir, "Profile.bnsh");
+		outputFile.deleteOnExit();
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setProfile(true);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertFiles(expectedFile, outputFile, DEFAULT_ENCODING);
+	}
+
+	@Test
+	public void testParallel() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("Include1.nsh");
+		File outputFile1 = new File(tempDir, "Include1.bnsh");
+		File outputFile2 = new File(tempDir, "Include2.bnsh");
+		outputFile1.deleteOnExit();
+		outputFile2.deleteOnExit();
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setParallel(true);
+		String log = makeBridleNSIS(inputFile, outputFile1, arguments);
+		assertTrue(log, log.contains("Parsed ahead: "
+				+ getResourceAsFile("Include2.nsh").getAbsolutePath()));
+		assertFiles(getResourceAsFile("Include1.bnsh"), outputFile1,
+				DEFAULT_ENCODING);
+		assertFiles(getResourceAsFile("Include2.bnsh"), outputFile2,
+				DEFAULT_ENCODING);
+
+		File outputFile = new File(tempDir, "I18N.bnsi");
+		File outputFile_ja = new File(tempDir, "I18N_ja.bnsh");
+		outputFile.deleteOnExit();
+		outputFile_ja.deleteOnExit();
+		arguments.setEncoding("UTF-16LE");
+		makeBridleNSIS(getResourceAsFile("I18N.nsi"), outputFile, arguments);
+		assertFiles(getResourceAsFile("I18N.bnsi"), outputFile, "UTF-16LE");
+		assertEquals(2, outputFile_ja.length());
+	}
+
+	@Test
+	public void testParallelInTurn() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = new File(tempDir, "Main.nsi");
+		File outputFile = new File(tempDir, "Main.bnsi");
+		inputFile.deleteOnExit();
+		outputFile.deleteOnExit();
+		writeScript("Main.nsi", "!include \"Lib.nsh\"\r\n"
+				+ "!include \"Init.nsh\"\r\n"
+				+ "!include \"Use.nsh\"\r\n" + "Section\r\n"
+				+ "  c = add(x, 1)\r\n" + "SectionEnd\r\n");
+		writeScript("Lib.nsh", "Function add(a, b)\r\n"
+				+ "  If a > b\r\n" + "    Return a + b\r\n" + "  EndIf\r\n"
+				+ "  Return b\r\n" + "FunctionEnd\r\n" + "x = \"lib\"\r\n");
+		writeScript("Init.nsh", "!define NO_Z\r\n" + "!ifndef NO_Z\r\n"
+				+ "  z = 1\r\n" + "!endif\r\n");
+		writeScript("Use.nsh", "z = x\r\n" + "Function use()\r\n"
+				+ "  y = add(1, global.z)\r\n" + "FunctionEnd\r\n");
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding(DEFAULT_ENCODING);
+		arguments.setPreprocess(true);
+		makeBridleNSIS(inputFile, outputFile, arguments);
+		String[] names = { "Main.bnsi", "Lib.bnsh", "Init.bnsh", "Use.bnsh" };
+		String[] expected = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			expected[i] = readScript(names[i]);
+		}
+
+		// Use.nsh declares a variable the scan found in a skipped branch
+		arguments.setParallel(true);
+		String log = makeBridleNSIS(inputFile, outputFile, arguments);
+		assertTrue(log, log.contains("Parsed ahead: "
+				+ new File(tempDir, "Lib.nsh").getAbsolutePath()));
+		assertFalse(log, log.contains("Parsed ahead: "
+				+ new File(tempDir, "Use.nsh").getAbsolutePath()));
+		for (int i = 0; i < names.length; i++) {
+			assertEquals(names[i], expected[i], readScript(names[i]));
+		}
+	}
+
+	private void writeScript(String name, String content) throws IOException {
+		File file = new File(tempDir, name);
+		file.deleteOnExit();
+		new File(tempDir, MakeBridleNSIS.convertToBridleFilename(name))
+				.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(DEFAULT_ENCODING));
+	}
+
+	private String readScript(String name) throws IOException {
+		return new String(Files.readAllBytes(new File(tempDir, name).toPath()),
+				DEFAULT_ENCODING);
+	}
+
+	/**
+	 * Converts the script and returns the debug log.
+	 */
+	private static String makeBridleNSIS(File inputFile, File outputFile,
+			BridleNSISArguments arguments) throws IOException,
+			BridleNSISException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		Logger logger = Logger.getInstance();
+		logger.setPrintStream(new PrintStream(log, true));
+		logger.setLogLevel(Logger.DEBUG);
+		try {
+			MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(),
+					inputFile, outputFile, arguments);
+		} finally {
+			logger.setPrintStream(System.out);
+			logger.setLogLevel(Logger.INFO);
+		}
+		return log.toString();
+	}
+
+	@Test
+	public void testIncludeOnce() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("Amalgamate.nsh");
+		File expectedFile = getResourceAsFile("IncludeOnce.bnsh");
+		File outputFile = new File(tempDir, "Amalgamate.bnsh");
+		outputFile.deleteOnExit();
+		new File(tempDir, "Include1.bnsh").deleteOnExit();
+		new File(tempDir, "Include2.bnsh").deleteOnExit();
+
+		// Include2.nsh is parsed once though included twice
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, DEFAULT_ENCODING, null);
+		assertFiles(expectedFile, outputFile, DEFAULT_ENCODING);
+
+		try {
+			MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(),
+					getResourceAsFile("Cycle1.nsh"), new File(tempDir,
+							"Cycle1.bnsh"), DEFAULT_ENCODING, null);
+			fail();
+		} catch (BridleNSISException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith(
+					"Include cycle: Cycle1.nsh -> Cycle2.nsh -> Cycle1.nsh"));
+		}
+	}
+
 	@Test
 	public void testI18N() throws IOException, ParserException,
 			BridleNSISException {
@@ -127,6 +383,43 @@ public class MakeBridleNSISTest {
 		assertTrue(outputFile_ja.delete());
 	}
 
+	@Test
+	public void testExcludeMode() throws IOException, ParserException,
+			BridleNSISException {
+		File inputFile = getResourceAsFile("I18N.nsi");
+		File inputFile_ja = getResourceAsFile("I18N_ja.nsh");
+		File outputFile = new File(tempDir, "I18N.bnsi");
+		File outputFile_ja = new File(tempDir, "I18N_ja.bnsh");
+		outputFile.deleteOnExit();
+		outputFile_ja.deleteOnExit();
+
+		BridleNSISArguments arguments = new BridleNSISArguments();
+		arguments.setEncoding("UTF-16LE");
+		arguments.addExclude("I18N_ja.nsh");
+		arguments.setExcludeMode(Parser.ExcludeMode.REFERENCE);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertFalse(outputFile_ja.exists());
+		try (Scanner actual = new Scanner(outputFile, "UTF-16LE")) {
+			assertNotNull(actual.findWithinHorizon("!include \""
+					+ Pattern.quote(inputFile_ja.getAbsolutePath()) + "\"", 0));
+		}
+
+		// Copy is skipped when size and modification time match
+		arguments.setExcludeMode(Parser.ExcludeMode.COPY);
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertEquals(inputFile_ja.length(), outputFile_ja.length());
+		assertEquals(inputFile_ja.lastModified(), outputFile_ja.lastModified());
+		byte[] marker = new byte[(int) outputFile_ja.length()];
+		Files.write(outputFile_ja.toPath(), marker);
+		assertTrue(outputFile_ja.setLastModified(inputFile_ja.lastModified()));
+		MakeBridleNSIS.makeBridleNSIS(new SimpleNameGenerator(), inputFile,
+				outputFile, arguments);
+		assertArrayEquals(marker, Files.readAllBytes(outputFile_ja.toPath()));
+		assertTrue(outputFile_ja.delete());
+	}
+
 	private void assertFiles(File expectedFile, File actualFile, String encoding)
 			throws FileNotFoundException, IOException {
 		Scanner expected = new Scanner(expectedFile, encoding);
@@ -0,0 +1,40 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MinifierTest {
+
+	@Test
+	public void testMinify() {
+		Minifier minifier = new Minifier();
+		assertEquals(
+				"!define A \"B\"\r\n"
+						+ "StrCpy $a \"x  ; y\"\r\n"
+						+ "DetailPrint 'it$\\'s  # here'\r\n"
+						+ "MessageBox MB_OK \"a\" IDOK done\r\n"
+						+ "done:\r\n"
+						+ "StrCpy $b $a#c\r\n",
+				minifier.minify("!define   A  \"B\"\r\n"
+						+ "\r\n"
+						+ ";@line 4\r\n"
+						+ "    StrCpy $a   \"x  ; y\" ; comment\r\n"
+						+ ";@line 5\r\n"
+						+ "# comment\r\n"
+						+ "DetailPrint\t'it$\\'s  # here'\r\n"
+						+ ";@line 7\r\n"
+						+ "MessageBox MB_OK \\\r\n"
+						+ "    \"a\" /* block\r\n"
+						+ "    comment */ IDOK done\r\n"
+						+ ";@line 10\r\n"
+						+ "done: /* c */\r\n"
+						+ ";@line 2 Include.nsh\r\n"
+						+ "StrCpy $b $a#c \r\n"));
+		assertEquals(Arrays.asList("0", "4", "5", "7", "10", "Include.nsh:2"),
+				minifier.getLineMap());
+	}
+
+}
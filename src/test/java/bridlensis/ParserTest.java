@@ -3,10 +3,13 @@ package bridlensis;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Scanner;
 
 import org.junit.Test;
 
+import bridlensis.env.CompactNameGenerator;
 import bridlensis.env.EnvironmentException;
 import bridlensis.env.EnvironmentFactory;
 import bridlensis.env.SimpleNameGenerator;
@@ -21,12 +24,71 @@ public class ParserTest {
 		return parser;
 	}
 
+	private Parser createNativeJumpsParser() {
+		SimpleNameGenerator nameGenerator = new SimpleNameGenerator();
+		StatementParser statementParser = new StatementParser(
+				EnvironmentFactory.build(nameGenerator), nameGenerator);
+		statementParser.setNativeJumps(true);
+		return new Parser(statementParser, null, null, null, null);
+	}
+
+	private Parser createRegisterCallsParser(String script)
+			throws IOException {
+		SimpleNameGenerator nameGenerator = new SimpleNameGenerator();
+		StatementParser statementParser = new StatementParser(
+				EnvironmentFactory.build(nameGenerator), nameGenerator);
+		statementParser.setRegisterCalls(true);
+		CallGraph callGraph = new CallGraph(null, null,
+				Collections.<String> emptyList());
+		callGraph.scan(script);
+		statementParser.setCallGraph(callGraph);
+		return new Parser(statementParser, null, null, null, null);
+	}
+
+	private Parser createOptimizingParser() {
+		Parser parser = createParser();
+		parser.setOptimize(true);
+		return parser;
+	}
+
 	private InputReader readerFor(String string) throws InvalidSyntaxException {
 		InputReader reader = new InputReader(new Scanner(string));
 		reader.goToNextStatement();
 		return reader;
 	}
 
+	@Test
+	public void testCompactNames() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		CompactNameGenerator nameGenerator = new CompactNameGenerator();
+		Parser parser = new Parser(new StatementParser(
+				EnvironmentFactory.build(nameGenerator), nameGenerator), null,
+				null, null, null);
+		StringBuilder expected;
+
+		// Temporary variables don't collide with variables of the user
+		assertEquals("Var /GLOBAL _1\r\nStrCpy $_1 \"keep\"",
+				parser.parseStatement(readerFor("_1 = \"keep\"")));
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL a\r\n");
+		expected.append("Push 1\r\n");
+		expected.append("Call f\r\n");
+		expected.append("Pop $a\r\n");
+		expected.append("Var /GLOBAL _.0\r\n");
+		expected.append("Push 2\r\n");
+		expected.append("Call f\r\n");
+		expected.append("Pop $_.0\r\n");
+		expected.append("Var /GLOBAL _.1\r\n");
+		expected.append("Push 3\r\n");
+		expected.append("Call f\r\n");
+		expected.append("Pop $_.1\r\n");
+		expected.append("StrCpy $a \"$a$_.0$_.1\"");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("a = f(1) + f(2) + f(3)")));
+		assertEquals("Var /GLOBAL _0\r\nStrCpy $_0 $a",
+				parser.parseStatement(readerFor("_0 = a")));
+	}
+
 	@Test
 	public void testPlainNSIS() throws InvalidSyntaxException, ParserException,
 			EnvironmentException {
@@ -958,11 +1020,16 @@ public class ParserTest {
 		inputStatement.append("If world == \"world\" \\\r\n");
 		inputStatement.append("    And hello() != \"hello \"");
 		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s02\r\n");
+		expected.append("StrCpy $s02 0\r\n");
+		expected.append("StrCmp $world \"world\" 0 cond_s03\r\n");
 		expected.append("Var /GLOBAL s01\r\n");
 		expected.append("Call hello\r\n");
 		expected.append("Pop $s01\r\n");
-		expected.append("${If} $world == \"world\"\r\n");
-		expected.append("${AndIf} $s01 != \"hello \"");
+		expected.append("StrCmp $s01 \"hello \" cond_s03 0\r\n");
+		expected.append("StrCpy $s02 1\r\n");
+		expected.append("cond_s03:\r\n");
+		expected.append("${If} $s02 = 1");
 		assertEquals(expected.toString(),
 				parser.parseStatement(readerFor(inputStatement.toString())));
 
@@ -1079,6 +1146,527 @@ public class ParserTest {
 				parser.parseStatement(readerFor(inputStatement.toString())));
 	}
 
+	@Test
+	public void testNativeIf() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createNativeJumpsParser();
+		StringBuilder inputStatement;
+		StringBuilder expected;
+
+		parser.parseStatement(readerFor("world = \"world\""));
+
+		inputStatement = new StringBuilder();
+		inputStatement.append("If world == \"a\" Or world == \"b\" \\\r\n");
+		inputStatement.append("    And Not ${Errors} Or world < 3");
+		expected = new StringBuilder();
+		expected.append("StrCmp $world \"a\" cond_s02 0\r\n");
+		expected.append("StrCmp $world \"b\" 0 cond_s03\r\n");
+		expected.append("cond_s02:\r\n");
+		expected.append("IfErrors 0 cond_s04\r\n");
+		expected.append("cond_s03:\r\n");
+		expected.append("IntCmp $world 3 else_s01 0 else_s01\r\n");
+		expected.append("cond_s04:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor(inputStatement.toString())));
+
+		inputStatement = new StringBuilder();
+		inputStatement.append("  ElseIf ${FileExists} \"$INSTDIR\\x\" \\\r\n");
+		inputStatement.append("    Or ${SectionIsSelected} 1");
+		expected = new StringBuilder();
+		expected.append("  GoTo endif_s01\r\n");
+		expected.append("  else_s01:\r\n");
+		expected.append("  IfFileExists \"$INSTDIR\\x\" cond_s06 0\r\n");
+		expected.append("  ${IfNotThen} ${SectionIsSelected} 1 ${|} GoTo else_s05 ${|}\r\n");
+		expected.append("  cond_s06:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor(inputStatement.toString())));
+
+		expected = new StringBuilder();
+		expected.append("GoTo endif_s01\r\n");
+		expected.append("else_s05:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Else")));
+
+		try {
+			parser.parseStatement(readerFor("ElseIf world = 1"));
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// OK
+		}
+
+		assertEquals("endif_s01:", parser.parseStatement(readerFor("EndIf")));
+
+		expected = new StringBuilder();
+		expected.append("IntCmp $world 1 else_s07 0 0");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("If world <> 1")));
+		assertEquals("else_s07:", parser.parseStatement(readerFor("EndIf")));
+
+		try {
+			parser.parseStatement(readerFor("EndIf"));
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testNativeDo() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createNativeJumpsParser();
+		StringBuilder expected;
+
+		parser.parseStatement(readerFor("a = 1"));
+		parser.parseStatement(readerFor("Function Inc(i)"));
+		parser.parseStatement(readerFor("  Return IntOp(i, \"+\", 1)"));
+		parser.parseStatement(readerFor("FunctionEnd"));
+
+		expected = new StringBuilder();
+		expected.append("do_s02:\r\n");
+		expected.append("IntCmp $a 2 0 enddo_s02 0");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Do While a >= 2")));
+		parser.parseStatement(readerFor("If a != 1"));
+		assertEquals("GoTo loop_s02",
+				parser.parseStatement(readerFor("Continue")));
+		parser.parseStatement(readerFor("EndIf"));
+		assertEquals("GoTo enddo_s02",
+				parser.parseStatement(readerFor("Break")));
+
+		expected = new StringBuilder();
+		expected.append("loop_s02:\r\n");
+		expected.append("Var /GLOBAL s04\r\n");
+		expected.append("Push $a\r\n");
+		expected.append("Call inc\r\n");
+		expected.append("Pop $s04\r\n");
+		expected.append("IntCmp $a $s04 do_s02 do_s02 0\r\n");
+		expected.append("enddo_s02:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Loop Until a > Inc(a)")));
+
+		assertEquals("do_s05:", parser.parseStatement(readerFor("Do")));
+		assertEquals("IfSilent do_s05 0",
+				parser.parseStatement(readerFor("Loop While ${Silent}")));
+
+		// Outside native loop fall back to LogicLib
+		assertEquals("${Continue}",
+				parser.parseStatement(readerFor("Continue")));
+
+		try {
+			parser.parseStatement(readerFor("Loop"));
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testSelfAssign() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createParser();
+		assertEquals("Var /GLOBAL a\r\nStrCpy $a $a",
+				parser.parseStatement(readerFor("a = a")));
+		assertEquals("StrCpy $a $a",
+				parser.parseStatement(readerFor("a = a")));
+		assertEquals("IntOp $a $a * 1 ",
+				parser.parseStatement(readerFor("a = a * 1")));
+	}
+
+	@Test
+	public void testConstantIf() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createOptimizingParser();
+
+		assertEquals("Var /GLOBAL a\r\nStrCpy $a 4",
+				parser.parseStatement(readerFor("a = StrLen(\"abcd\")")));
+		assertEquals("Var /GLOBAL b\r\nStrCpy $b \"x312\"",
+				parser.parseStatement(readerFor("b = \"x\" + StrLen(\"abc\") "
+						+ "+ IntOp(3, \"*\", 4)")));
+
+		// Always true
+		assertEquals("",
+				parser.parseStatement(readerFor("If \"a\" == \"A\"")));
+		assertEquals("", parser.parseStatement(readerFor("ElseIf a == 1")));
+		assertEquals("", parser.parseStatement(readerFor("Else")));
+		assertEquals("", parser.parseStatement(readerFor("EndIf")));
+
+		// Always false, runtime ElseIf becomes If
+		assertEquals("", parser.parseStatement(readerFor("If 1 > 2")));
+		assertEquals("${If} $a S== 1",
+				parser.parseStatement(readerFor("ElseIf a == 1")));
+		assertEquals("", parser.parseStatement(readerFor("ElseIf 2 < 1")));
+		assertEquals("${Else}",
+				parser.parseStatement(readerFor("ElseIf StrLen(\"ab\") <> 1")));
+		assertEquals("", parser.parseStatement(readerFor("Else")));
+		assertEquals("${EndIf}", parser.parseStatement(readerFor("EndIf")));
+
+		// Loops never and always repeated
+		assertEquals("", parser.parseStatement(readerFor("Do While 1 > 2")));
+		assertEquals("", parser.parseStatement(readerFor("Loop")));
+		assertEquals("${Do}", parser.parseStatement(readerFor("Do Until 1 = 2")));
+		assertEquals("${LoopUntil} 1 = 1",
+				parser.parseStatement(readerFor("Loop Until 1 = 1")));
+
+		// Continue of a never repeated loop reaches the exit test
+		parser = createNativeJumpsParser();
+		parser.setOptimize(true);
+		assertEquals("do_s01:", parser.parseStatement(readerFor("Do")));
+		assertEquals("GoTo loop_s01",
+				parser.parseStatement(readerFor("Continue")));
+		assertEquals("loop_s01:\r\nStrCmp \"a\" \"a\" 0 do_s01",
+				parser.parseStatement(readerFor("Loop Until \"a\" == \"a\"")));
+		parser = createOptimizingParser();
+
+		try {
+			parser.parseStatement(readerFor("Else"));
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testShortCircuit() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createNativeJumpsParser();
+		StringBuilder expected;
+
+		parser.parseStatement(readerFor("world = \"world\""));
+		parser.parseStatement(readerFor("function hello()"));
+		parser.parseStatement(readerFor("  return \"hello \""));
+		parser.parseStatement(readerFor("functionend"));
+
+		// Call is made only when the first term doesn't hold
+		expected = new StringBuilder();
+		expected.append("StrCmp $world \"a\" cond_s03 0\r\n");
+		expected.append("Var /GLOBAL s01\r\n");
+		expected.append("Call hello\r\n");
+		expected.append("Pop $s01\r\n");
+		expected.append("StrCmp $s01 \"b\" 0 else_s02\r\n");
+		expected.append("cond_s03:");
+		assertEquals(expected.toString(), parser.parseStatement(readerFor(
+				"If world == \"a\" Or hello() == \"b\"")));
+		assertEquals("else_s02:", parser.parseStatement(readerFor("EndIf")));
+
+		parser = createParser();
+		parser.parseStatement(readerFor("world = \"world\""));
+		parser.parseStatement(readerFor("function hello()"));
+		parser.parseStatement(readerFor("  return \"hello \""));
+		parser.parseStatement(readerFor("functionend"));
+
+		// ElseIf setup is run only when the earlier branches were not taken
+		assertEquals("${If} $world == \"a\"",
+				parser.parseStatement(readerFor("If world == \"a\"")));
+		expected = new StringBuilder();
+		expected.append("${Else}\r\n");
+		expected.append("Var /GLOBAL s01\r\n");
+		expected.append("Call hello\r\n");
+		expected.append("Pop $s01\r\n");
+		expected.append("${If} $s01 == \"b\"");
+		assertEquals(expected.toString(), parser.parseStatement(readerFor(
+				"ElseIf hello() == \"b\"")));
+		assertEquals("${Else}", parser.parseStatement(readerFor("Else")));
+		assertEquals("${EndIf}\r\n${EndIf}",
+				parser.parseStatement(readerFor("EndIf")));
+		assertEquals("${If} $world == \"c\"",
+				parser.parseStatement(readerFor("If world == \"c\"")));
+		assertEquals("${EndIf}", parser.parseStatement(readerFor("EndIf")));
+	}
+
+	@Test
+	public void testLoopCondition() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createParser();
+		StringBuilder expected;
+
+		parser.parseStatement(readerFor("a = 1"));
+		parser.parseStatement(readerFor("Function Inc(i)"));
+		parser.parseStatement(readerFor("  Return IntOp(i, \"+\", 1)"));
+		parser.parseStatement(readerFor("FunctionEnd"));
+
+		// Function is called on every iteration
+		expected = new StringBuilder();
+		expected.append("${Do}\r\n");
+		expected.append("Var /GLOBAL s02\r\n");
+		expected.append("Push $a\r\n");
+		expected.append("Call inc\r\n");
+		expected.append("Pop $s02\r\n");
+		expected.append("${IfNotThen} $a > $s02 ${|} ${ExitDo} ${|}");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Do While a > Inc(a)")));
+		assertEquals("${Continue}",
+				parser.parseStatement(readerFor("Continue")));
+		assertEquals("${Loop}", parser.parseStatement(readerFor("Loop")));
+
+		// Continue runs the Loop condition setup
+		assertEquals("${Do}", parser.parseStatement(readerFor("Do")));
+		assertEquals("GoTo loop_s03",
+				parser.parseStatement(readerFor("Continue")));
+		expected = new StringBuilder();
+		expected.append("loop_s03:\r\n");
+		expected.append("Var /GLOBAL s04\r\n");
+		expected.append("Push $a\r\n");
+		expected.append("Call inc\r\n");
+		expected.append("Pop $s04\r\n");
+		expected.append("${LoopUntil} $a > $s04");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Loop Until a > Inc(a)")));
+
+		// Invariant calls are made once before the loop
+		parser = createOptimizingParser();
+		parser.parseStatement(readerFor("Var i s"));
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s01\r\n");
+		expected.append("StrLen $s01 $s \r\n");
+		expected.append("${DoWhile} $i < $s01");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Do While i < StrLen(s)")));
+		parser.parseStatement(readerFor("i = i - 1"));
+		assertEquals("${Loop}", parser.parseStatement(readerFor("Loop")));
+
+		parser.parseStatement(readerFor("Do While i < StrLen(s)"));
+		parser.parseStatement(readerFor("s = s + \"x\""));
+		expected = new StringBuilder();
+		expected.append("StrLen $s02 $s \r\n");
+		expected.append("${Loop}");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Loop")));
+
+		parser = createNativeJumpsParser();
+		parser.setOptimize(true);
+		parser.parseStatement(readerFor("Var i s"));
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s01\r\n");
+		expected.append("StrLen $s01 $s \r\n");
+		expected.append("do_s02:\r\n");
+		expected.append("IntCmp $i $s01 enddo_s02 0 enddo_s02");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Do While i < StrLen(s)")));
+		parser.parseStatement(readerFor("s = s + \"x\""));
+		assertEquals("GoTo loop_s02", parser.parseStatement(readerFor("Continue")));
+		expected = new StringBuilder();
+		expected.append("loop_s02:\r\n");
+		expected.append("StrLen $s01 $s \r\n");
+		expected.append("GoTo do_s02\r\n");
+		expected.append("enddo_s02:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Loop")));
+	}
+
+	@Test
+	public void testSelect() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createParser();
+		StringBuilder expected;
+
+		parser.parseStatement(readerFor("Var a s"));
+
+		assertEquals("GoTo select_s01",
+				parser.parseStatement(readerFor("Select a")));
+		assertEquals("case_s02:",
+				parser.parseStatement(readerFor("Case 1, \"b\"")));
+		parser.parseStatement(readerFor("DetailPrint \"one\""));
+		assertEquals("GoTo endselect_s01\r\ncase_s03:",
+				parser.parseStatement(readerFor("Case s")));
+		assertEquals("GoTo endselect_s01\r\ncase_s04:",
+				parser.parseStatement(readerFor("Case Else")));
+		expected = new StringBuilder();
+		expected.append("GoTo endselect_s01\r\n");
+		expected.append("select_s01:\r\n");
+		expected.append("StrCmp $a 1 case_s02 0\r\n");
+		expected.append("StrCmp $a \"b\" case_s02 0\r\n");
+		expected.append("StrCmp $a $s case_s03 0\r\n");
+		expected.append("GoTo case_s04\r\n");
+		expected.append("endselect_s01:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("EndSelect")));
+
+		// Integer values are searched with a binary tree
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s05\r\n");
+		expected.append("StrLen $s05 $s \r\n");
+		expected.append("Var /GLOBAL s06\r\n");
+		expected.append("IntOp $s06 $s05 - 1 \r\n");
+		expected.append("GoTo select_s07");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("Select StrLen(s) - 1")));
+		for (int i = 1; i <= 5; i++) {
+			parser.parseStatement(readerFor("Case " + i * 2));
+		}
+		expected = new StringBuilder();
+		expected.append("GoTo endselect_s07\r\n");
+		expected.append("select_s07:\r\n");
+		expected.append("IntCmp $s06 6 case_s10 0 search_s13\r\n");
+		expected.append("IntCmp $s06 4 case_s09 0 endselect_s07\r\n");
+		expected.append("IntCmp $s06 2 case_s08 endselect_s07 endselect_s07\r\n");
+		expected.append("search_s13:\r\n");
+		expected.append("IntCmp $s06 10 case_s12 0 endselect_s07\r\n");
+		expected.append("IntCmp $s06 8 case_s11 endselect_s07 endselect_s07\r\n");
+		expected.append("endselect_s07:");
+		assertEquals(expected.toString(),
+				parser.parseStatement(readerFor("EndSelect")));
+
+		try {
+			parser.parseStatement(readerFor("Case 1"));
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testPureCalls() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createOptimizingParser();
+		parser.parseStatement(readerFor("Var a b"));
+
+		assertEquals("Var /GLOBAL s01\r\nStrLen $s01 $a \r\n"
+				+ "${If} $s01 > 1\r\n${OrIf} $s01 < 5",
+				parser.parseStatement(readerFor(
+						"If StrLen(a) > 1 Or StrLen(a) < 5")));
+		assertEquals("StrCpy $b \"$s01\"",
+				parser.parseStatement(readerFor("b = \"\" + StrLen(a)")));
+		parser.parseStatement(readerFor("a = \"abc\""));
+		assertEquals("Var /GLOBAL s02\r\nStrLen $s02 $a \r\n"
+				+ "StrCpy $b \"$s02\"",
+				parser.parseStatement(readerFor("b = \"\" + StrLen(a)")));
+		assertEquals("${EndIf}", parser.parseStatement(readerFor("EndIf")));
+		assertEquals("Var /GLOBAL s03\r\nStrLen $s03 $a \r\n"
+				+ "StrCpy $b \"$s03\"",
+				parser.parseStatement(readerFor("b = \"\" + StrLen(a)")));
+
+		// Impure function call may change the arguments
+		parser.parseStatement(readerFor("ReadEnvStr(\"X\")"));
+		assertEquals("Var /GLOBAL s04\r\nStrLen $s04 $a \r\n"
+				+ "StrCpy $b \"$s04\"",
+				parser.parseStatement(readerFor("b = \"\" + StrLen(a)")));
+	}
+
+	@Test
+	public void testHeaderLowering() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createOptimizingParser();
+		parser.parseStatement(readerFor("Var a b"));
+
+		assertEquals("Var /GLOBAL s01\r\nVar /GLOBAL s02\r\nVar /GLOBAL s03\r\n"
+				+ "StrCpy $s01 0 \r\nheader_s04:\r\n"
+				+ "StrCpy $s03 $a 1 $s01 \r\n"
+				+ "StrCmpS $s03 \"\" header_s07 0\r\n"
+				+ "StrCmp $s03 \",\" 0 header_s05\r\nIntOp $s01 $s01 + 1 \r\n"
+				+ "GoTo header_s04\r\nheader_s05:\r\nStrCpy $s02 $s01 \r\n"
+				+ "header_s06:\r\nIntOp $s02 $s02 + 1 \r\n"
+				+ "StrCpy $s03 $a 1 $s02 \r\n"
+				+ "StrCmpS $s03 \"\" header_s09 0\r\n"
+				+ "StrCmp $s03 \",\" 0 header_s06\r\nheader_s09:\r\n"
+				+ "IntOp $s02 $s02 - $s01 \r\nStrCpy $b $a $s02 $s01 \r\n"
+				+ "GoTo header_s08\r\nheader_s07:\r\nStrCpy $b $a \r\n"
+				+ "header_s08:",
+				parser.parseStatement(readerFor(
+						"b = WordFind(a, \"+1\", \",\")")));
+		assertEquals("Var /GLOBAL s10\r\nVar /GLOBAL s11\r\nVar /GLOBAL s12\r\n"
+				+ "StrLen $s11 $a \r\nheader_s13:\r\nIntOp $s11 $s11 - 1 \r\n"
+				+ "IntCmp $s11 0 0 header_s16 0\r\nStrCpy $s12 $a 1 $s11 \r\n"
+				+ "StrCmpS $s12 \"x\" header_s13 0\r\nStrCpy $s10 $s11 \r\n"
+				+ "header_s15:\r\nIntOp $s10 $s10 - 1 \r\n"
+				+ "IntCmp $s10 0 0 header_s14 0\r\nStrCpy $s12 $a 1 $s10 \r\n"
+				+ "StrCmpS $s12 \"x\" 0 header_s15\r\nheader_s14:\r\n"
+				+ "IntOp $s10 $s10 + 1 \r\nIntOp $s11 $s11 - $s10 \r\n"
+				+ "IntOp $s11 $s11 + 1 \r\nStrCpy $b $a $s11 $s10 \r\n"
+				+ "GoTo header_s17\r\nheader_s16:\r\nStrCpy $b $a \r\n"
+				+ "header_s17:",
+				parser.parseStatement(readerFor("b = WordFindS(a, \"-1\", \"x\")")));
+
+		// No specialized lowering
+		assertEquals("${WordFind} $a \",\" \"+2\" $b",
+				parser.parseStatement(readerFor("b = WordFind(a, \"+2\", \",\")")));
+		assertEquals("${WordFind} $a \", \" \"+1\" $b",
+				parser.parseStatement(readerFor("b = WordFind(a, \"+1\", \", \")")));
+	}
+
+	@Test
+	public void testRegisterCalls() throws InvalidSyntaxException,
+			ParserException, EnvironmentException, IOException {
+		Parser parser = createRegisterCallsParser("Var x\n"
+				+ "Function foo(a, b)\nReturn a * b + 1\nFunctionEnd\n"
+				+ "Function fact(n)\nReturn fact(n)\nFunctionEnd\n"
+				+ "Function baz(d)\nFunctionEnd\n"
+				+ "GetFunctionAddress $0 baz\n");
+		parser.parseStatement(readerFor("Var x"));
+
+		assertEquals("Var /GLOBAL foo.a\r\nVar /GLOBAL foo.b\r\nFunction foo",
+				parser.parseStatement(readerFor("Function foo(a, b)")));
+		assertEquals("Var /GLOBAL foo.return\r\nVar /GLOBAL foo.s01\r\n"
+				+ "IntOp $foo.s01 $foo.a * $foo.b \r\n"
+				+ "IntOp $foo.return $foo.s01 + 1 \r\nReturn",
+				parser.parseStatement(readerFor("Return a * b + 1")));
+		assertEquals("FunctionEnd",
+				parser.parseStatement(readerFor("FunctionEnd")));
+
+		assertEquals("StrCpy $foo.a 1\r\nStrCpy $foo.b $x\r\nCall foo\r\n"
+				+ "StrCpy $x $foo.return",
+				parser.parseStatement(readerFor("x = foo(1, x)")));
+		assertEquals("StrCpy $foo.a 1\r\nStrCpy $foo.b 2\r\nCall foo",
+				parser.parseStatement(readerFor("foo(1, 2)")));
+
+		// Called before declaration
+		assertEquals("Push 1\r\nCall bar",
+				parser.parseStatement(readerFor("bar(1)")));
+		assertEquals("Var /GLOBAL bar.c\r\nFunction bar\r\n    Pop $bar.c",
+				parser.parseStatement(readerFor("Function bar(c)")));
+		parser.parseStatement(readerFor("FunctionEnd"));
+
+		// Recursive function
+		assertEquals("Var /GLOBAL fact.n\r\nFunction fact\r\n    Pop $fact.n",
+				parser.parseStatement(readerFor("Function fact(n)")));
+		assertEquals("Var /GLOBAL fact.s02\r\nPush $fact.n\r\nCall fact\r\n"
+				+ "Pop $fact.s02\r\nPush $fact.s02\r\nReturn",
+				parser.parseStatement(readerFor("Return fact(n)")));
+		parser.parseStatement(readerFor("FunctionEnd"));
+
+		// Function referenced by name
+		assertEquals("Var /GLOBAL baz.d\r\nFunction baz\r\n    Pop $baz.d",
+				parser.parseStatement(readerFor("Function baz(d)")));
+		parser.parseStatement(readerFor("FunctionEnd"));
+	}
+
+	@Test
+	public void testTypeInference() throws InvalidSyntaxException,
+			ParserException, EnvironmentException {
+		Parser parser = createNativeJumpsParser();
+		parser.parseStatement(readerFor("Var a b"));
+
+		// Literal without letters, case doesn't matter
+		assertEquals("StrCmpS $a \"1.0\" 0 else_s01",
+				parser.parseStatement(readerFor("If a == \"1.0\"")));
+		parser.parseStatement(readerFor("EndIf"));
+		assertEquals("StrCmp $a \"abc\" 0 else_s02",
+				parser.parseStatement(readerFor("If a == \"abc\"")));
+		parser.parseStatement(readerFor("EndIf"));
+
+		// Variables holding integers
+		parser.parseStatement(readerFor("a = StrLen(\"abc\")"));
+		assertEquals("StrCmpS $a $b else_s03 0",
+				parser.parseStatement(readerFor("If a != b")));
+		parser.parseStatement(readerFor("EndIf"));
+		assertEquals("StrCmp $a $b else_s04 0",
+				parser.parseStatement(readerFor("If a != b")));
+		parser.parseStatement(readerFor("EndIf"));
+
+		parser.parseStatement(readerFor("b = a * 2"));
+		assertEquals("StrCmpS $b $a 0 else_s05",
+				parser.parseStatement(readerFor("If b == a")));
+		parser.parseStatement(readerFor("EndIf"));
+	}
+
+	@Test
+	public void testDeadCode() {
+		assertEquals("", StatementParser.deadCode("DetailPrint \"foo\""));
+		assertEquals("Var /GLOBAL a\r\n!define FOO \\\r\n    bar",
+				StatementParser.deadCode("Var /GLOBAL a\r\nStrCpy $a 1\r\n"
+						+ "!define FOO \\\r\n    bar\r\n"
+						+ "!insertmacro BAR\r\nCall foo"));
+	}
+
 	@Test
 	public void testMacros() throws InvalidSyntaxException,
 			EnvironmentException, ParserException {
@@ -0,0 +1,126 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bridlensis.env.Environment;
+import bridlensis.env.EnvironmentException;
+import bridlensis.env.EnvironmentFactory;
+import bridlensis.env.Variable;
+
+public class PeepholeOptimizerTest {
+
+	private PeepholeOptimizer createOptimizer(String... temporaries)
+			throws EnvironmentException {
+		Environment env = EnvironmentFactory.build(null);
+		List<Variable> variables = new ArrayList<>();
+		for (String name : temporaries) {
+			variables.add(env.registerVariable(name, null));
+		}
+		return new PeepholeOptimizer(variables);
+	}
+
+	private static String lines(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines.length; i++) {
+			if (i > 0) {
+				sb.append(NSISStatements.NEWLINE_MARKER);
+			}
+			sb.append(lines[i]);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testSelfCopy() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer();
+		assertEquals(lines("StrCpy $a $b", "DetailPrint $a"),
+				optimizer.optimize(lines("StrCpy $a $b", "StrCpy $a $a",
+						"  StrCpy $a \"$a\"", "DetailPrint $a")));
+		assertEquals(4, optimizer.getInstructionsIn());
+		assertEquals(2, optimizer.getInstructionsOut());
+	}
+
+	@Test
+	public void testJumpToNextLabel() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer();
+		assertEquals(lines("StrCpy $a 1", "; comment", "exit:", "Return"),
+				optimizer.optimize(lines("StrCpy $a 1", "GoTo exit",
+						"; comment", "exit:", "Return")));
+		assertEquals(
+				lines("GoTo exit", "StrCpy $a 1", "exit:"),
+				optimizer.optimize(lines("GoTo exit", "StrCpy $a 1", "exit:")));
+	}
+
+	@Test
+	public void testTemporaryCopy() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer("s01", "s02");
+		assertEquals(lines("StrLen $a \"foo\" "),
+				optimizer.optimize(lines("Var /GLOBAL s01",
+						"StrLen $s01 \"foo\"", "StrCpy $a $s01")));
+		assertEquals(
+				lines("Var /GLOBAL s02", "StrLen $s02 \"foo\"",
+						"StrCpy $a $s02", "DetailPrint $s02"),
+				optimizer.optimize(lines("Var /GLOBAL s02",
+						"StrLen $s02 \"foo\"", "StrCpy $a $s02",
+						"DetailPrint $s02")));
+	}
+
+	@Test
+	public void testPopPush() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer("s01");
+		assertEquals(lines("Call Foo", "Call Bar"),
+				optimizer.optimize(lines("Var /GLOBAL s01", "Call Foo",
+						"Pop $s01", "Push $s01", "Call Bar")));
+	}
+
+	@Test
+	public void testErrorFlag() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer("s01", "s02");
+		assertEquals(lines("ClearErrors", "Delete \"foo.txt\"",
+				"${IfNot} ${Errors}", "${EndIf}"), optimizer.optimize(lines(
+				"Var /GLOBAL s01", "StrCpy $s01 1 ", "ClearErrors",
+				"Delete \"foo.txt\"", "IfErrors +2", "    StrCpy $s01 0 ",
+				"${If} $s01 == 0", "${EndIf}")));
+		assertEquals(lines("ClearErrors", "Delete \"foo.txt\"",
+				"${If} ${Errors}", "${EndIf}"), optimizer.optimize(lines(
+				"Var /GLOBAL s02", "StrCpy $s02 1 ", "ClearErrors",
+				"Delete \"foo.txt\"", "IfErrors +2", "    StrCpy $s02 0 ",
+				"${IfNot} $s02 != 1", "${EndIf}")));
+	}
+
+	@Test
+	public void testRelativeJumps() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer("s01");
+		String code = lines("IfErrors +3", "StrCpy $a $a", "GoTo exit",
+				"exit:", "Return");
+		assertEquals(code, optimizer.optimize(code));
+		code = lines("Var /GLOBAL s01", "IntCmp $b 0 +2", "Pop $s01",
+				"Push $s01", "Return");
+		assertEquals(code, optimizer.optimize(code));
+		code = lines("StrCpy $a $a", "Goto -2");
+		assertEquals(code, optimizer.optimize(code));
+		code = lines("IfErrors +2", "!ifdef FOO", "DetailPrint foo",
+				"!endif", "StrCpy $a $a", "Return");
+		assertEquals(code, optimizer.optimize(code));
+		assertEquals(lines("IfErrors +2", "Return", "Function Foo",
+				"FunctionEnd"), optimizer.optimize(lines("IfErrors +2",
+				"Return", "Function Foo", "StrCpy $a $a", "FunctionEnd")));
+	}
+
+	@Test
+	public void testMacroAndComments() throws EnvironmentException {
+		PeepholeOptimizer optimizer = createOptimizer();
+		String code = lines("!macro Foo", "StrCpy $a $a", "!macroend",
+				"/* StrCpy $a $a", "StrCpy $a $a */", "StrCpy $b \\",
+				"    $b 3");
+		assertEquals(Arrays.asList(code.split("\r\n")),
+				Arrays.asList(optimizer.optimize(code).split("\r\n")));
+	}
+
+}
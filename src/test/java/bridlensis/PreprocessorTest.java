@@ -0,0 +1,172 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PreprocessorTest {
+
+	private static Preprocessor preprocessor(String... options) {
+		return new Preprocessor(Preprocessor.definesOf(Arrays.asList(options)));
+	}
+
+	@Test
+	public void testDefinesOf() {
+		Map<String, String> defines = Preprocessor.definesOf(Arrays.asList(
+				"/DPRO", "/DEDITION=pro", "/V4", "/dX=a=b"));
+		assertEquals(3, defines.size());
+		assertEquals("", defines.get("PRO"));
+		assertEquals("pro", defines.get("EDITION"));
+		assertEquals("a=b", defines.get("X"));
+	}
+
+	@Test
+	public void testIfdef() {
+		Preprocessor preprocessor = preprocessor("/DPRO");
+		assertTrue(preprocessor.accept("!undef LITE"));
+		assertTrue(preprocessor.accept("!ifdef PRO"));
+		assertTrue(preprocessor.accept("    DetailPrint(\"pro\")"));
+		assertTrue(preprocessor.accept("!else"));
+		assertFalse(preprocessor.accept("    DetailPrint(\"lite\")"));
+		assertFalse(preprocessor.accept("    !ifdef PRO ; nested"));
+		assertFalse(preprocessor.accept("    !endif"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		assertTrue(preprocessor.accept("!ifndef PRO"));
+		assertFalse(preprocessor.accept("    a = 1"));
+		assertTrue(preprocessor.accept("!else ifdef LITE"));
+		assertFalse(preprocessor.accept("    a = 2"));
+		assertTrue(preprocessor.accept("!else"));
+		assertTrue(preprocessor.accept("    a = 3"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		assertTrue(preprocessor.accept("!ifdef LITE | PRO"));
+		assertTrue(preprocessor.accept("    a = 4"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifdef LITE & PRO"));
+		assertFalse(preprocessor.accept("    a = 5"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		assertEquals(6, preprocessor.getSkipped());
+	}
+
+	@Test
+	public void testDefine() {
+		Preprocessor preprocessor = preprocessor();
+		assertTrue(preprocessor.accept("!undef GUARD"));
+		assertTrue(preprocessor.accept("!ifndef GUARD"));
+		assertTrue(preprocessor.accept("!define GUARD"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifndef GUARD"));
+		assertFalse(preprocessor.accept("a = 1"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!undef GUARD"));
+		assertTrue(preprocessor.accept("!ifdef GUARD"));
+		assertFalse(preprocessor.accept("a = 2"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		// Symbols defined in branches and macros with unknown outcome
+		assertTrue(preprocessor.accept("!ifdef NSIS_UNICODE"));
+		assertTrue(preprocessor.accept("a = 3"));
+		assertTrue(preprocessor.accept("!define UNSURE"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifdef UNSURE"));
+		assertTrue(preprocessor.accept("a = 4"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!macro foo"));
+		assertTrue(preprocessor.accept("    !define FROM_MACRO"));
+		assertTrue(preprocessor.accept("    !ifdef GUARD"));
+		assertTrue(preprocessor.accept("    !endif"));
+		assertTrue(preprocessor.accept("!macroend"));
+		assertTrue(preprocessor.accept("!ifndef FROM_MACRO"));
+		assertTrue(preprocessor.accept("a = 5"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		// Undefined when the macro is inserted
+		assertTrue(preprocessor.accept("!define FOO"));
+		assertTrue(preprocessor.accept("!macro M"));
+		assertTrue(preprocessor.accept("    !undef FOO"));
+		assertTrue(preprocessor.accept("!macroend"));
+		assertTrue(preprocessor.accept("!insertmacro M"));
+		assertTrue(preprocessor.accept("!ifdef FOO"));
+		assertTrue(preprocessor.accept("a = 6"));
+		assertTrue(preprocessor.accept("!else"));
+		assertTrue(preprocessor.accept("b = 7"));
+		assertTrue(preprocessor.accept("!endif"));
+	}
+
+	@Test
+	public void testIf() {
+		Preprocessor preprocessor = preprocessor("/DEDITION=Pro", "/DLEVEL=3");
+		assertTrue(preprocessor.accept("!if \"${EDITION}\" == \"pro\""));
+		assertTrue(preprocessor.accept("a = 1"));
+		assertTrue(preprocessor.accept("!else if ${EDITION} == lite"));
+		assertFalse(preprocessor.accept("a = 2"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		assertTrue(preprocessor.accept("!if ${LEVEL} > 5 \\\r\n    ; level"));
+		assertFalse(preprocessor.accept("a = 3"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!if ! ${LEVEL}"));
+		assertFalse(preprocessor.accept("a = 4"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!if ${EDITION} S== pro"));
+		assertFalse(preprocessor.accept("a = 5"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		// Unknown symbols and runtime values
+		assertTrue(preprocessor.accept("!if ${OTHER} == 1"));
+		assertTrue(preprocessor.accept("a = 6"));
+		assertTrue(preprocessor.accept("!else"));
+		assertTrue(preprocessor.accept("a = 7"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!if /FileExists \"a.txt\""));
+		assertTrue(preprocessor.accept("a = 8"));
+		assertTrue(preprocessor.accept("!endif"));
+	}
+
+	@Test
+	public void testUnknownSymbols() {
+		Preprocessor preprocessor = preprocessor("/DPRO");
+
+		// Symbols never defined nor undefined may be predefined by NSIS
+		assertTrue(preprocessor.accept("!ifdef NSISDIR"));
+		assertTrue(preprocessor.accept("a = 1"));
+		assertTrue(preprocessor.accept("!else"));
+		assertTrue(preprocessor.accept("a = 2"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifndef LITE"));
+		assertTrue(preprocessor.accept("a = 3"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		// Include file not parsed may define or undefine anything
+		assertTrue(preprocessor.accept("!undef LITE"));
+		assertTrue(preprocessor.accept("!include \"MUI2.nsh\""));
+		preprocessor.includeUnknown();
+		assertTrue(preprocessor.accept("!ifdef MUI_INCLUDED"));
+		assertTrue(preprocessor.accept("a = 4"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifdef PRO"));
+		assertTrue(preprocessor.accept("!else"));
+		assertTrue(preprocessor.accept("a = 5"));
+		assertTrue(preprocessor.accept("!endif"));
+		assertTrue(preprocessor.accept("!ifdef LITE"));
+		assertTrue(preprocessor.accept("a = 6"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		// Known again when defined after the include
+		assertTrue(preprocessor.accept("!define PRO"));
+		assertTrue(preprocessor.accept("!ifdef PRO"));
+		assertTrue(preprocessor.accept("!else"));
+		assertFalse(preprocessor.accept("a = 7"));
+		assertTrue(preprocessor.accept("!endif"));
+
+		assertEquals(1, preprocessor.getSkipped());
+	}
+
+}
@@ -0,0 +1,41 @@
+package bridlensis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProfileReportTest {
+
+	@Test
+	public void testAggregate() throws IOException {
+		ProfileReport report = new ProfileReport();
+		report.add("run\tsetup.exe\r\n" + "fact\t5\t5\t40\r\n"
+				+ ".onguiend\t1\t\t\r\n" + "unused\t\t\t\r\n");
+		report.add("run\tsetup.exe\r\n" + "fact\t3\t2\t10\r\n"
+				+ ".onguiend\t1\t\t\r\n" + "unused\t\t\t\r\n"
+				+ "run\tsetup.exe\r\n" + "fact\t1\t1\t0\r\n" + "other\t2\t2\t80\r\n");
+		assertEquals(3, report.getRuns());
+
+		List<ProfileReport.Entry> entries = report.getEntries();
+		assertEquals(4, entries.size());
+		assertEquals("other", entries.get(0).getFunction());
+		assertEquals(1, entries.get(0).getRuns());
+
+		ProfileReport.Entry fact = entries.get(1);
+		assertEquals("fact", fact.getFunction());
+		assertEquals(3, fact.getRuns());
+		assertEquals(9, fact.getCalls());
+		assertEquals(8, fact.getTimedCalls());
+		assertEquals(50, fact.getMs());
+
+		assertEquals(".onguiend", entries.get(2).getFunction());
+		assertEquals(2, entries.get(2).getCalls());
+		assertEquals(0, entries.get(2).getTimedCalls());
+		assertEquals("unused", entries.get(3).getFunction());
+		assertEquals(0, entries.get(3).getRuns());
+	}
+
+}
@@ -134,6 +134,91 @@ public class StatementParserTest {
 
 	}
 
+	@Test
+	public void testIntegerExpression() throws InvalidSyntaxException,
+			EnvironmentException {
+		StatementParser parser = createStatementParser();
+		InputReader reader;
+		StringBuilder buffer;
+		StringBuilder expected;
+
+		parser.parseVarDeclare(readerFor("a b c"));
+
+		buffer = new StringBuilder();
+		reader = readerFor("2 * 3 + 4 % 3");
+		assertEquals("7", parser.parseExpression(reader.nextWord(), buffer,
+				reader).getValue());
+		assertEquals("", buffer.toString());
+
+		buffer = new StringBuilder();
+		reader = readerFor("a * 2 + b");
+		assertEquals("$s01", parser.parseExpression(reader.nextWord(),
+				buffer, reader).getValue());
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s01\r\n");
+		expected.append("IntOp $s01 $a * 2 \r\n");
+		expected.append("IntOp $s01 $s01 + $b \r\n");
+		assertEquals(expected.toString(), buffer.toString());
+
+		buffer = new StringBuilder();
+		reader = readerFor("a - 1 + 2 * 2");
+		assertEquals("$s02", parser.parseExpression(reader.nextWord(),
+				buffer, reader).getValue());
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s02\r\n");
+		expected.append("IntOp $s02 $a - -3 \r\n");
+		assertEquals(expected.toString(), buffer.toString());
+
+		buffer = new StringBuilder();
+		reader = readerFor("a * b + b * c + c * a");
+		assertEquals("$s03", parser.parseExpression(reader.nextWord(),
+				buffer, reader).getValue());
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s03\r\n");
+		expected.append("IntOp $s03 $a * $b \r\n");
+		expected.append("Var /GLOBAL s04\r\n");
+		expected.append("IntOp $s04 $b * $c \r\n");
+		expected.append("IntOp $s03 $s03 + $s04 \r\n");
+		expected.append("IntOp $s04 $c * $a \r\n");
+		expected.append("IntOp $s03 $s03 + $s04 \r\n");
+		assertEquals(expected.toString(), buffer.toString());
+
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s05\r\n");
+		expected.append("IntOp $s05 $b * 2 \r\n");
+		expected.append("IntOp $a $s05 | $c ");
+		assertEquals(expected.toString(),
+				parser.parseVarAssign(new Word("a"), readerFor("b * 2 | c")));
+
+		expected = new StringBuilder();
+		expected.append("StrLen $a \"abc\" \r\n");
+		expected.append("IntOp $a $a / 2 ");
+		assertEquals(expected.toString(),
+				parser.parseVarAssign(new Word("a"),
+						readerFor("StrLen(\"abc\") / 2")));
+
+		expected = new StringBuilder();
+		expected.append("Var /GLOBAL s06\r\n");
+		expected.append("IntOp $s06 $b - 1 \r\n");
+		expected.append("StrCpy $a $s06 2 ");
+		assertEquals(expected.toString(),
+				parser.parseVarAssign(new Word("a"),
+						readerFor("StrCpy(b - 1, 2)")));
+
+		// Division by zero is left to set the error flag at runtime
+		assertEquals("IntOp $a 7 / 0 ", parser.parseVarAssign(new Word("a"),
+				readerFor("7 / 0")));
+
+		try {
+			reader = readerFor("a * (b)");
+			parser.parseExpression(reader.nextWord(), new StringBuilder(),
+					reader);
+			fail();
+		} catch (InvalidSyntaxException e) {
+			// All good
+		}
+	}
+
 	@Test
 	public void testCall() throws InvalidSyntaxException, EnvironmentException {
 		StatementParser parser = createStatementParser();
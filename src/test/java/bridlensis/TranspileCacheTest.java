@@ -0,0 +1,157 @@
+package bridlensis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import bridlensis.env.EnvironmentFactory;
+import bridlensis.env.SimpleNameGenerator;
+
+public class TranspileCacheTest {
+
+	private static final String ENCODING = "Cp1252";
+
+	@Test
+	public void testLookup() throws IOException {
+		File dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+		File input = new File(dir, "Installer.nsi");
+
+		TranspileCache cache = new TranspileCache(new File(dir, ".cache"),
+				"key");
+		String key = TranspileCache.keyOf(input, "a = 1\r\n".getBytes(ENCODING));
+		assertNull(cache.lookup(key));
+		TranspileCache.Entry entry = new TranspileCache.Entry(key);
+		entry.read("fn:foo", "-");
+		entry.change("var:a", "variable", "a", "false");
+		entry.change(null, "define", "NAME", "tab\tand\\ line\r\nbreak");
+		entry.read("var:a", "+");
+		entry.addOutput("Lang.bnsh", "StrCpy $b 2\r\n".getBytes(ENCODING));
+		entry.setText("Var /GLOBAL a\r\nStrCpy $a 1\r\n");
+		entry.setInputLines(1);
+		entry.setFileCount(1);
+		entry.setGeneratedNames(3);
+		cache.store(entry);
+
+		entry = cache.lookup(key);
+		assertNotNull(entry);
+		assertEquals("{fn:foo=-}", entry.getSymbols().toString());
+		assertEquals(Arrays.asList(Arrays.asList("variable", "a", "false"),
+				Arrays.asList("define", "NAME", "tab\tand\\ line\r\nbreak")),
+				entry.getChanges());
+		assertArrayEquals("StrCpy $b 2\r\n".getBytes(ENCODING), entry
+				.getOutputs().get("Lang.bnsh"));
+		assertEquals("Var /GLOBAL a\r\nStrCpy $a 1\r\n", entry.getText());
+		assertEquals(1, entry.getInputLines());
+		assertEquals(1, entry.getFileCount());
+		assertEquals(3, entry.getGeneratedNames());
+
+		// Other content and other options use other entries
+		assertNull(cache.lookup(TranspileCache.keyOf(input,
+				"a = 2\r\n".getBytes(ENCODING))));
+		assertNull(new TranspileCache(new File(dir, ".cache"), "other")
+				.lookup(key));
+	}
+
+	@Test
+	public void testRestore() throws IOException, ParserException {
+		File dir = Files.createTempDirectory("BRIDLE").toFile();
+		dir.deleteOnExit();
+		File cacheDir = new File(dir, ".cache");
+		write(dir, "Main.nsi", "!include \"Lib.nsh\"\r\n"
+				+ "!include \"Use.nsh\"\r\n");
+		write(dir, "Lib.nsh", "Function add(a, b)\r\n" + "  Return a + b\r\n"
+				+ "FunctionEnd\r\n" + "x = \"lib\"\r\n");
+		write(dir, "Use.nsh", "add(1, 2)\r\n" + "y = x\r\n"
+				+ "!include \"Missing.nsh\"\r\n");
+		assertSameOutput(dir, cacheDir);
+		// Restored from the cache
+		assertSameOutput(dir, cacheDir);
+
+		// Unchanged include file is restored even if its includer changed
+		File use = new File(dir, "Use.nsh");
+		TranspileCache cache = new TranspileCache(cacheDir, "key");
+		String key = TranspileCache.keyOf(use, Files.readAllBytes(use.toPath()));
+		TranspileCache.Entry entry = cache.lookup(key);
+		entry.setText("; Restored" + "\r\n" + entry.getText());
+		cache.store(entry);
+		write(dir, "Main.nsi", "!include \"Lib.nsh\"\r\n" + "; Changed\r\n"
+				+ "!include \"Use.nsh\"\r\n");
+		assertTrue(parse(dir, cacheDir, "cached").startsWith("; Restored"));
+
+		// Changed function and variable of another file outdate the entry
+		write(dir, "Lib.nsh", "Function add(a, b)\r\n" + "FunctionEnd\r\n"
+				+ "x = \"lib\"\r\n");
+		assertSameOutput(dir, cacheDir);
+		write(dir, "Lib.nsh", "Function add(a, b)\r\n" + "  Return a + b\r\n"
+				+ "FunctionEnd\r\n");
+		try {
+			parse(dir, cacheDir, "cached");
+			fail();
+		} catch (ParserException e) {
+			assertEquals("Unknown variable 'x'", e.getCause().getMessage());
+		}
+
+		// Include file appeared
+		write(dir, "Lib.nsh", "Function add(a, b)\r\n" + "  Return a + b\r\n"
+				+ "FunctionEnd\r\n" + "x = \"lib\"\r\n");
+		assertSameOutput(dir, cacheDir);
+		write(dir, "Missing.nsh", "z = 1\r\n");
+		assertSameOutput(dir, cacheDir);
+		assertTrue(new File(dir, "cached/Missing.bnsh").isFile());
+	}
+
+	private static void write(File dir, String name, String content)
+			throws IOException {
+		File file = new File(dir, name);
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(ENCODING));
+	}
+
+	/**
+	 * Parses the script with and without the cache and returns the output of
+	 * Use.nsh.
+	 */
+	private static String parse(File dir, File cacheDir, String outDirName)
+			throws IOException, ParserException {
+		CountingNameGenerator names = new CountingNameGenerator(
+				new SimpleNameGenerator());
+		File outDir = new File(dir, outDirName);
+		Parser parser = new Parser(new StatementParser(
+				EnvironmentFactory.build(names), names), dir, outDir,
+				ENCODING, null);
+		if (cacheDir != null) {
+			parser.setCache(new TranspileCache(cacheDir, "key"), names);
+		}
+		parser.parse("Main.nsi", "Main.bnsi");
+		return read(outDir, "Use.bnsh");
+	}
+
+	private static String read(File dir, String name) throws IOException {
+		return new String(Files.readAllBytes(new File(dir, name).toPath()),
+				ENCODING);
+	}
+
+	private static void assertSameOutput(File dir, File cacheDir)
+			throws IOException, ParserException {
+		assertEquals(parse(dir, null, "parsed"),
+				parse(dir, cacheDir, "cached"));
+		File parsed = new File(dir, "parsed");
+		File cached = new File(dir, "cached");
+		for (String name : parsed.list()) {
+			assertEquals(name, read(parsed, name), read(cached, name));
+		}
+		assertEquals(parsed.list().length, cached.list().length);
+	}
+
+}
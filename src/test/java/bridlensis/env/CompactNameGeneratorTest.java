@@ -0,0 +1,48 @@
+package bridlensis.env;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CompactNameGeneratorTest {
+
+	@Test
+	public void testGenerate() {
+		CompactNameGenerator generator = new CompactNameGenerator();
+		assertEquals("_.0", generator.generate());
+		assertEquals("_.1", generator.generate());
+		for (int i = 2; i < 35; i++) {
+			generator.generate();
+		}
+		assertEquals("_.z", generator.generate());
+		assertEquals("_.10", generator.generate());
+		for (int i = 37; i < 36 * 36 - 1; i++) {
+			generator.generate();
+		}
+		assertEquals("_.zz", generator.generate());
+		assertEquals("_.100", generator.generate());
+	}
+
+	@Test
+	public void testUnbounded() throws EnvironmentException {
+		CompactNameGenerator generator = new CompactNameGenerator();
+		String name = null;
+		for (int i = 0; i < 36 * 36 * 36 * 36; i++) {
+			name = generator.generate();
+		}
+		assertEquals("_.zzzz", name);
+		assertEquals("_.10000", generator.generate());
+
+		Environment env = EnvironmentFactory.build(null);
+		assertEquals("_.10001",
+				env.registerGeneratedVariable(generator.generate(), null)
+						.getName());
+	}
+
+	@Test(expected = EnvironmentException.class)
+	public void testReservedForGenerator() throws EnvironmentException {
+		Environment env = EnvironmentFactory.build(null);
+		env.registerVariable(new CompactNameGenerator().generate(), null);
+	}
+
+}